@@ -0,0 +1,361 @@
+package com.example.android.common.logger;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * LogNode that hands log data to a background thread, which passes it on to the rest of the
+ * chain. Callers only copy a few references into a preallocated record, so logging from the
+ * capture thread no longer pays for android.util.Log or for formatting in later nodes.
+ *
+ * <p>Records live in a bounded ring shared by any number of logging threads and drained by the
+ * dispatch thread alone. Each slot carries a sequence number telling producers and the consumer
+ * whose turn it is, so no locks are taken. When the ring is full the {@link OverflowPolicy}
+ * decides whether the caller waits or the record is dropped; dropped records are counted and
+ * reported down the chain once the ring has room again.</p>
+ *
+ * <p>Messages logged with a format string are formatted on the dispatch thread, or passed on
+ * unformatted when the next node is a {@link FormattingLogNode}.</p>
+ *
+ * <p>Work that nodes further down need done on the dispatch thread, such as reporting what
+ * they held back, can be queued behind the records with {@link #post(Runnable)}, or run
+ * periodically while no records arrive with {@link #setIdleTask(Runnable, long)}.</p>
+ */
+public class AsyncLogNode implements FormattingLogNode {
+
+    private static final String TAG = "AsyncLogNode";
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    public enum OverflowPolicy {
+        /** Drop the record being logged and count it. */
+        DROP,
+        /** Wait for the dispatch thread to free a slot. */
+        BLOCK
+    }
+
+    private static final class Record {
+        int priority;
+        String tag;
+        String msg;
+        Object[] args;
+        Throwable tr;
+        // Set instead of the log data for posted tasks.
+        Runnable task;
+    }
+
+    private final Record[] mRecords;
+    private final AtomicLongArray mSequences;
+    private final int mMask;
+    private final OverflowPolicy mPolicy;
+
+    private final AtomicLong mTail = new AtomicLong();
+    // Only touched by the dispatch thread.
+    private long mHead;
+
+    private final AtomicLong mDropped = new AtomicLong();
+    private long mReportedDropped;
+
+    private volatile Runnable mIdleTask;
+    private volatile long mIdleIntervalNs;
+    // Only touched by the dispatch thread.
+    private long mLastIdleRun;
+
+    private final Thread mThread;
+    private volatile boolean mWaiting;
+    private volatile boolean mRunning = true;
+
+    // For piping:  The next node to receive Log data after this one has done its work.
+    private volatile LogNode mNext;
+
+    /**
+     * Creates the node and starts its dispatch thread.
+     *
+     * @param capacity Number of records the ring holds, rounded up to a power of two.
+     * @param policy What to do when logging faster than the chain can keep up.
+     */
+    public AsyncLogNode(int capacity, OverflowPolicy policy) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mRecords = new Record[size];
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mRecords[i] = new Record();
+            mSequences.set(i, i);
+        }
+        mMask = size - 1;
+        mPolicy = policy;
+
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        }, "AsyncLogNode");
+        mThread.setDaemon(true);
+        mThread.setPriority(Thread.MIN_PRIORITY);
+        mThread.start();
+    }
+
+    public AsyncLogNode() {
+        this(DEFAULT_CAPACITY, OverflowPolicy.DROP);
+    }
+
+    /**
+     * Returns the next LogNode in the linked list.
+     */
+    public LogNode getNext() {
+        return mNext;
+    }
+
+    /**
+     * Sets the LogNode data will be sent to, on the dispatch thread.
+     */
+    public void setNext(LogNode node) {
+        mNext = node;
+    }
+
+    /**
+     * Queues the log data for the dispatch thread.
+     * @param priority Log level of the data being logged.  Verbose, Error, etc.
+     * @param tag Tag for for the log data.  Can be used to organize log statements.
+     * @param msg The actual message to be logged. The actual message to be logged.
+     * @param tr If an exception was thrown, this can be sent along for the logging facilities
+     *           to extract and print useful information.
+     */
+    @Override
+    public void println(int priority, String tag, String msg, Throwable tr) {
+        enqueue(priority, tag, msg, null, tr, null);
+    }
+
+    /**
+     * Queues a format string and its arguments, formatted on the dispatch thread.
+     */
+    @Override
+    public void printf(int priority, String tag, Throwable tr, String format, Object[] args) {
+        enqueue(priority, tag, format, args, tr, null);
+    }
+
+    /**
+     * Runs a task on the dispatch thread once the records queued before it have been passed
+     * on. Subject to the overflow policy like a record.
+     */
+    public void post(Runnable task) {
+        enqueue(0, null, null, null, null, task);
+    }
+
+    /**
+     * Runs a task on the dispatch thread whenever it runs out of records, at most and, while
+     * no records arrive, at least every {@code intervalMs}. Null stops it.
+     */
+    public void setIdleTask(Runnable task, long intervalMs) {
+        mIdleIntervalNs = intervalMs * 1000000L;
+        mIdleTask = task;
+        wakeDispatcher();
+    }
+
+    private void enqueue(int priority, String tag, String msg, Object[] args, Throwable tr,
+                         Runnable task) {
+        if (!mRunning) {
+            mDropped.incrementAndGet();
+            return;
+        }
+        long tail;
+        int index;
+        while (true) {
+            tail = mTail.get();
+            index = (int) tail & mMask;
+            long sequence = mSequences.get(index);
+            if (sequence == tail) {
+                if (mTail.compareAndSet(tail, tail + 1)) {
+                    break;
+                }
+            } else if (sequence < tail) {
+                // Full: the slot still holds a record from the previous lap.
+                if (mPolicy == OverflowPolicy.DROP || !mRunning) {
+                    mDropped.incrementAndGet();
+                    return;
+                }
+                wakeDispatcher();
+                Thread.yield();
+            }
+            // Otherwise another producer claimed this slot first, retry with the new tail.
+        }
+
+        Record record = mRecords[index];
+        record.priority = priority;
+        record.tag = tag;
+        record.msg = msg;
+        record.args = args;
+        record.tr = tr;
+        record.task = task;
+        // Publishes the record to the dispatch thread.
+        mSequences.set(index, tail + 1);
+
+        if (mWaiting) {
+            wakeDispatcher();
+        }
+    }
+
+    private void wakeDispatcher() {
+        LockSupport.unpark(mThread);
+    }
+
+    private void dispatch() {
+        while (true) {
+            if (drain()) {
+                continue;
+            }
+            reportDropped();
+            long idleWaitNs = runIdleTask();
+            if (!mRunning) {
+                // Records published after the last drain are still dispatched.
+                if (!drain()) {
+                    return;
+                }
+                continue;
+            }
+            mWaiting = true;
+            // Checked again after announcing the wait, so a record published in between is
+            // either seen here or its producer sees mWaiting and unparks this thread.
+            if (!isEmpty()) {
+                mWaiting = false;
+                continue;
+            }
+            if (idleWaitNs > 0) {
+                LockSupport.parkNanos(this, idleWaitNs);
+            } else {
+                LockSupport.park(this);
+            }
+            mWaiting = false;
+        }
+    }
+
+    /**
+     * Runs the idle task if it is due. Returns how long until it is due again, or 0 if there
+     * is none.
+     */
+    private long runIdleTask() {
+        Runnable task = mIdleTask;
+        if (task == null) {
+            return 0;
+        }
+        long interval = Math.max(1, mIdleIntervalNs);
+        long now = System.nanoTime();
+        long since = now - mLastIdleRun;
+        if (mLastIdleRun != 0 && since < interval) {
+            return interval - since;
+        }
+        mLastIdleRun = now;
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            android.util.Log.e(TAG, "Idle task failed", e);
+        }
+        return interval;
+    }
+
+    private boolean isEmpty() {
+        return mSequences.get((int) mHead & mMask) != mHead + 1;
+    }
+
+    /**
+     * Passes on every published record. Returns whether there were any.
+     */
+    private boolean drain() {
+        boolean drained = false;
+        while (true) {
+            int index = (int) mHead & mMask;
+            if (mSequences.get(index) != mHead + 1) {
+                return drained;
+            }
+            Record record = mRecords[index];
+            int priority = record.priority;
+            String tag = record.tag;
+            String msg = record.msg;
+            Object[] args = record.args;
+            Throwable tr = record.tr;
+            Runnable task = record.task;
+            record.tag = null;
+            record.msg = null;
+            record.args = null;
+            record.tr = null;
+            record.task = null;
+            // Hands the slot back to producers for the next lap.
+            mSequences.set(index, mHead + mRecords.length);
+            mHead++;
+            drained = true;
+
+            if (task != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    android.util.Log.e(TAG, "Posted task failed", e);
+                }
+                continue;
+            }
+            LogNode next = mNext;
+            if (next != null) {
+                try {
+                    if (args == null) {
+                        next.println(priority, tag, msg, tr);
+                    } else if (next instanceof FormattingLogNode) {
+                        // Still not formatted, the next node may yet filter it out.
+                        ((FormattingLogNode) next).printf(priority, tag, tr, msg, args);
+                    } else {
+                        next.println(priority, tag, Log.format(msg, args), tr);
+                    }
+                } catch (RuntimeException e) {
+                    // Keep dispatching, a failing node must not silence the rest of the log.
+                    android.util.Log.e(TAG, "LogNode failed", e);
+                }
+            }
+        }
+    }
+
+    private void reportDropped() {
+        long dropped = mDropped.get();
+        if (dropped == mReportedDropped) {
+            return;
+        }
+        LogNode next = mNext;
+        if (next != null) {
+            next.println(Log.WARN, TAG,
+                    "Dropped " + (dropped - mReportedDropped) + " log records", null);
+        }
+        mReportedDropped = dropped;
+    }
+
+    /**
+     * Number of records dropped because the ring was full.
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * Waits until every record queued before this call has been passed on.
+     */
+    public void flush() throws InterruptedException {
+        long target = mTail.get();
+        while (mRunning || mThread.isAlive()) {
+            int index = (int) (target - 1) & mMask;
+            // The last queued slot has been handed back once its sequence moved a lap on.
+            if (target == 0 || mSequences.get(index) >= target - 1 + mRecords.length) {
+                return;
+            }
+            wakeDispatcher();
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Stops the dispatch thread after it has passed on everything already queued. Records
+     * logged afterwards are dropped.
+     */
+    public void shutdown() throws InterruptedException {
+        mRunning = false;
+        wakeDispatcher();
+        mThread.join();
+    }
+}
@@ -0,0 +1,207 @@
+package com.example.android.common.logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IllegalFormatException;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Turns the segment files written by {@link MappedEventLogNode} back into readable lines, oldest
+ * segment first. Uses plain Java only, so it runs on a desktop JVM against files pulled from a
+ * device:
+ *
+ * <pre>
+ *   java -cp classes com.example.android.common.logger.EventLogDecoder trace/*.evl
+ * </pre>
+ *
+ * Each event prints as wall clock time, level, tag and message.
+ */
+public class EventLogDecoder {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String LEVELS = "??VDIWEA";
+
+    private final SimpleDateFormat mTimeFormat =
+            new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+    private final PrintStream mOut;
+    private long mEventCount;
+
+    public EventLogDecoder(PrintStream out) {
+        mOut = out;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: EventLogDecoder <segment.evl>...");
+            System.exit(1);
+        }
+        File[] files = new File[args.length];
+        for (int i = 0; i < args.length; i++) {
+            files[i] = new File(args[i]);
+        }
+        new EventLogDecoder(System.out).decode(files);
+    }
+
+    /**
+     * Returns the sequence number in the segment's header, or -1 if the file is missing or is
+     * not a segment.
+     */
+    public static long readSequence(File file) throws IOException {
+        if (!file.isFile() || file.length() < MappedEventLogNode.SEGMENT_HEADER_SIZE) {
+            return -1;
+        }
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer header = ByteBuffer.allocate(MappedEventLogNode.SEGMENT_HEADER_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            input.getChannel().read(header, 0);
+            if (header.getInt(0) != MappedEventLogNode.MAGIC
+                    || header.getInt(4) != MappedEventLogNode.VERSION) {
+                return -1;
+            }
+            return header.getLong(8);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Decodes the given segments in sequence order, skipping files that are not segments.
+     */
+    public void decode(File... files) throws IOException {
+        List<File> segments = new ArrayList<File>();
+        final HashMap<File, Long> sequences = new HashMap<File, Long>();
+        for (File file : files) {
+            long sequence = readSequence(file);
+            if (sequence >= 0) {
+                segments.add(file);
+                sequences.put(file, sequence);
+            }
+        }
+        Collections.sort(segments, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long difference = sequences.get(a) - sequences.get(b);
+                return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+            }
+        });
+        for (File segment : segments) {
+            decodeSegment(segment);
+        }
+    }
+
+    /**
+     * Number of events printed so far.
+     */
+    public long getEventCount() {
+        return mEventCount;
+    }
+
+    private void decodeSegment(File file) throws IOException {
+        ByteBuffer buffer;
+        FileInputStream input = new FileInputStream(file);
+        try {
+            FileChannel channel = input.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            input.close();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        buffer.position(8);
+        long sequence = buffer.getLong();
+        long wallClockMs = buffer.getLong();
+        // Event times are relative to this, which is when wallClockMs was taken.
+        buffer.getLong();
+        mOut.println("--- segment " + sequence + " started "
+                + mTimeFormat.format(new Date(wallClockMs)));
+
+        HashMap<Integer, String> strings = new HashMap<Integer, String>();
+        while (buffer.remaining() >= 3) {
+            int start = buffer.position();
+            int length = buffer.getShort() & 0xFFFF;
+            if (length == 0 || length > buffer.remaining() + 2) {
+                // End of the written part, or a record cut short by a crash.
+                break;
+            }
+            int end = start + length;
+            int type = buffer.get() & 0xFF;
+            if (type == MappedEventLogNode.TYPE_STRING) {
+                int id = buffer.getShort() & 0xFFFF;
+                strings.put(id, readUtf8(buffer, end - buffer.position()));
+            } else if (type == MappedEventLogNode.TYPE_EVENT) {
+                int level = buffer.get();
+                String tag = strings.get(buffer.getShort() & 0xFFFF);
+                String format = strings.get(buffer.getShort() & 0xFFFF);
+                long nanos = buffer.getLong();
+                Object[] args = new Object[buffer.get() & 0xFF];
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = readField(buffer);
+                }
+                print(wallClockMs, nanos, level, tag, format(format, args));
+            } else if (type == MappedEventLogNode.TYPE_MESSAGE) {
+                int level = buffer.get();
+                String tag = strings.get(buffer.getShort() & 0xFFFF);
+                long nanos = buffer.getLong();
+                print(wallClockMs, nanos, level, tag, readUtf8(buffer, end - buffer.position()));
+            }
+            // Unknown record types are skipped, so newer writers stay readable.
+            buffer.position(end);
+        }
+    }
+
+    private static Object readField(ByteBuffer buffer) {
+        int kind = buffer.get();
+        switch (kind) {
+            case MappedEventLogNode.FIELD_LONG:
+                return buffer.getLong();
+            case MappedEventLogNode.FIELD_DOUBLE:
+                return buffer.getDouble();
+            case MappedEventLogNode.FIELD_BOOLEAN:
+                return buffer.get() != 0;
+            case MappedEventLogNode.FIELD_STRING:
+                return readUtf8(buffer, buffer.getShort() & 0xFFFF);
+            default:
+                return null;
+        }
+    }
+
+    private static String format(String format, Object[] args) {
+        if (format == null || args.length == 0) {
+            return format;
+        }
+        try {
+            return String.format(format, args);
+        } catch (IllegalFormatException e) {
+            return format + " " + Arrays.toString(args);
+        }
+    }
+
+    private static String readUtf8(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private void print(long wallClockMs, long nanos, int level, String tag, String message) {
+        char levelChar = level >= 0 && level < LEVELS.length() ? LEVELS.charAt(level) : '?';
+        String time = mTimeFormat.format(new Date(wallClockMs + nanos / 1000000));
+        mOut.println(time + " " + levelChar + " " + tag + ": " + message);
+        mEventCount++;
+    }
+}
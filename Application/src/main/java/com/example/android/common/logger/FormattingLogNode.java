@@ -0,0 +1,20 @@
+package com.example.android.common.logger;
+
+/**
+ * LogNode that accepts a format string and its arguments instead of finished text, so that
+ * formatting can be postponed until, and unless, the text is needed.
+ */
+public interface FormattingLogNode extends LogNode {
+
+    /**
+     * Prints the message {@code String.format(format, args)} would produce.
+     * @param priority Log level of the data being logged.  Verbose, Error, etc.
+     * @param tag Tag for for the log data.  Can be used to organize log statements.
+     * @param tr If an exception was thrown, this can be sent along for the logging facilities
+     *           to extract and print useful information.
+     * @param format A {@link String#format(String, Object...)} format string.
+     * @param args Arguments referenced by the format string.
+     */
+    public void printf(int priority, String tag, Throwable tr, String format, Object[] args);
+
+}
@@ -37,6 +37,16 @@ public class Log {
     // Stores the beginning of the LogNode topology.
     private static LogNode mLogNode;
 
+    // Anything below this level is discarded before a message is even built.
+    private static volatile int sMinLevel = VERBOSE;
+
+    /**
+     * Produces a log message on demand, only once it is known the message will be logged.
+     */
+    public interface MessageSupplier {
+        String get();
+    }
+
     /**
      * Returns the next LogNode in the linked list.
      */
@@ -51,6 +61,26 @@ public class Log {
         mLogNode = node;
     }
 
+    /**
+     * Sets the lowest priority that is logged. Defaults to VERBOSE, {@link #NONE} is not a
+     * valid level here; use ASSERT + 1 to silence everything.
+     */
+    public static void setMinLevel(int priority) {
+        sMinLevel = priority;
+    }
+
+    public static int getMinLevel() {
+        return sMinLevel;
+    }
+
+    /**
+     * Whether data at this priority would reach a LogNode. Hot paths can check this before
+     * doing any work for a message, including boxing primitive arguments.
+     */
+    public static boolean isLoggable(int priority) {
+        return priority >= sMinLevel && mLogNode != null;
+    }
+
     /**
      * Instructs the LogNode to print the log data provided. Other LogNodes can
      * be chained to the end of the LogNode as desired.
@@ -62,8 +92,59 @@ public class Log {
      *           to extract and print useful information.
      */
     public static void println(int priority, String tag, String msg, Throwable tr) {
-        if (mLogNode != null) {
-            mLogNode.println(priority, tag, msg, tr);
+        LogNode node = mLogNode;
+        if (node != null && priority >= sMinLevel) {
+            node.println(priority, tag, msg, tr);
+        }
+    }
+
+    /**
+     * Formats and prints a message, unless its priority is below the minimum level. When the
+     * first LogNode is a {@link FormattingLogNode} formatting is left to it, which may do it on
+     * another thread, so arguments should not be modified after the call.
+     *
+     * @param priority Log level of the data being logged. Verbose, Error, etc.
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param tr If an exception was thrown, this can be sent along for the logging facilities
+     *           to extract and print useful information.
+     * @param format A {@link String#format(String, Object...)} format string.
+     * @param args Arguments referenced by the format string.
+     */
+    public static void printf(int priority, String tag, Throwable tr, String format,
+                              Object... args) {
+        LogNode node = mLogNode;
+        if (node == null || priority < sMinLevel) {
+            return;
+        }
+        if (node instanceof FormattingLogNode) {
+            ((FormattingLogNode) node).printf(priority, tag, tr, format, args);
+        } else {
+            node.println(priority, tag, format(format, args), tr);
+        }
+    }
+
+    /**
+     * Prints the message produced by {@code supplier}, which is only called when the priority
+     * is at or above the minimum level.
+     */
+    public static void println(int priority, String tag, MessageSupplier supplier) {
+        LogNode node = mLogNode;
+        if (node != null && priority >= sMinLevel) {
+            node.println(priority, tag, supplier.get(), null);
+        }
+    }
+
+    /**
+     * Formats a message the way {@link #printf} does, tolerating a bad format string.
+     */
+    static String format(String format, Object[] args) {
+        if (format == null || args == null || args.length == 0) {
+            return format;
+        }
+        try {
+            return String.format(format, args);
+        } catch (java.util.IllegalFormatException e) {
+            return format + " " + java.util.Arrays.toString(args);
         }
     }
 
@@ -98,7 +179,19 @@ public class Log {
      * @param msg The actual message to be logged.
      */
     public static void v(String tag, String msg) {
-        v(tag, msg, null);
+        v(tag, msg, (Throwable) null);
+    }
+
+    /**
+     * Prints a formatted message at VERBOSE priority. Nothing is formatted if VERBOSE is below the
+     * minimum level.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format A {@link String#format(String, Object...)} format string.
+     * @param args Arguments referenced by the format string.
+     */
+    public static void v(String tag, String format, Object... args) {
+        printf(VERBOSE, tag, null, format, args);
     }
 
 
@@ -121,7 +214,19 @@ public class Log {
      * @param msg The actual message to be logged.
      */
     public static void d(String tag, String msg) {
-        d(tag, msg, null);
+        d(tag, msg, (Throwable) null);
+    }
+
+    /**
+     * Prints a formatted message at DEBUG priority. Nothing is formatted if DEBUG is below the
+     * minimum level.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format A {@link String#format(String, Object...)} format string.
+     * @param args Arguments referenced by the format string.
+     */
+    public static void d(String tag, String format, Object... args) {
+        printf(DEBUG, tag, null, format, args);
     }
 
     /**
@@ -143,7 +248,19 @@ public class Log {
      * @param msg The actual message to be logged.
      */
     public static void i(String tag, String msg) {
-        i(tag, msg, null);
+        i(tag, msg, (Throwable) null);
+    }
+
+    /**
+     * Prints a formatted message at INFO priority. Nothing is formatted if INFO is below the
+     * minimum level.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format A {@link String#format(String, Object...)} format string.
+     * @param args Arguments referenced by the format string.
+     */
+    public static void i(String tag, String format, Object... args) {
+        printf(INFO, tag, null, format, args);
     }
 
     /**
@@ -165,7 +282,19 @@ public class Log {
      * @param msg The actual message to be logged.
      */
     public static void w(String tag, String msg) {
-        w(tag, msg, null);
+        w(tag, msg, (Throwable) null);
+    }
+
+    /**
+     * Prints a formatted message at WARN priority. Nothing is formatted if WARN is below the
+     * minimum level.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format A {@link String#format(String, Object...)} format string.
+     * @param args Arguments referenced by the format string.
+     */
+    public static void w(String tag, String format, Object... args) {
+        printf(WARN, tag, null, format, args);
     }
 
     /**
@@ -198,7 +327,19 @@ public class Log {
      * @param msg The actual message to be logged.
      */
     public static void e(String tag, String msg) {
-        e(tag, msg, null);
+        e(tag, msg, (Throwable) null);
+    }
+
+    /**
+     * Prints a formatted message at ERROR priority. Nothing is formatted if ERROR is below the
+     * minimum level.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format A {@link String#format(String, Object...)} format string.
+     * @param args Arguments referenced by the format string.
+     */
+    public static void e(String tag, String format, Object... args) {
+        printf(ERROR, tag, null, format, args);
     }
 
     /**
@@ -48,6 +48,8 @@ import android.widget.ScrollView;
  */
 public class LogFragment extends Fragment {
 
+    private static final int LOG_LINE_CAPACITY = 500;
+
     private LogView mLogView;
     private ScrollView mScrollView;
 
@@ -61,6 +63,8 @@ public class LogFragment extends Fragment {
         mScrollView.setLayoutParams(scrollParams);
 
         mLogView = new LogView(getActivity());
+        // One text update and scroll per frame at most, however much is being logged.
+        mLogView.setCoalescing(LOG_LINE_CAPACITY, 0);
         ViewGroup.LayoutParams logParams = new ViewGroup.LayoutParams(scrollParams);
         logParams.height = ViewGroup.LayoutParams.WRAP_CONTENT;
         mLogView.setLayoutParams(logParams);
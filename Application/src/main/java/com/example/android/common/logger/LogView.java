@@ -17,13 +17,60 @@ package com.example.android.common.logger;
 
 import android.app.Activity;
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.*;
 import android.widget.TextView;
 
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /** Simple TextView which is used to output log data received through the LogNode interface.
+ *
+ * <p>By default every line is posted to the UI thread and appended on its own. With
+ * {@link #setCoalescing(int, long)} lines are instead queued without locking, applied at most
+ * once per animation frame or flush interval, and only the most recent lines are kept, so heavy
+ * logging costs one text update per frame instead of one per line. Flushes are scheduled through
+ * the main looper, since lines may arrive on any thread and before the view is attached.</p>
 */
 public class LogView extends TextView implements LogNode {
 
+    // Coalescing mode; a capacity of 0 means lines are appended one by one.
+    private int mLineCapacity;
+    private long mFlushIntervalMs;
+    private final ConcurrentLinkedQueue<String> mPending = new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger mPendingCount = new AtomicInteger();
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean();
+    private long mLastFlushTime;
+    // Ring of the lines currently shown, oldest at mHead.
+    private String[] mLines;
+    private int mHead;
+    private int mLineCount;
+    private final StringBuilder mText = new StringBuilder();
+    // Views only run posts from other threads once attached, so the main looper is used instead.
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flushPending();
+        }
+    };
+
+    // Runs on the main thread: waits for the next frame if there is one to wait for.
+    private final Runnable mScheduleFlush = new Runnable() {
+        @Override
+        public void run() {
+            if (isAttachedToWindow()) {
+                postOnAnimation(mFlush);
+            } else {
+                flushPending();
+            }
+        }
+    };
+
     public LogView(Context context) {
         super(context);
     }
@@ -90,15 +137,19 @@ public class LogView extends TextView implements LogNode {
         appendIfNotNull(outputBuilder, msg, delimiter);
         appendIfNotNull(outputBuilder, exceptionStr, delimiter);
 
-        // In case this was originally called from an AsyncTask or some other off-UI thread,
-        // make sure the update occurs within the UI thread.
-        ((Activity) getContext()).runOnUiThread( (new Thread(new Runnable() {
-            @Override
-            public void run() {
-                // Display the text we just generated within the LogView.
-                appendToLog(outputBuilder.toString());
-            }
-        })));
+        if (mLineCapacity > 0) {
+            enqueue(outputBuilder.toString());
+        } else {
+            // In case this was originally called from an AsyncTask or some other off-UI thread,
+            // make sure the update occurs within the UI thread.
+            ((Activity) getContext()).runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    // Display the text we just generated within the LogView.
+                    appendToLog(outputBuilder.toString());
+                }
+            });
+        }
 
         if (mNext != null) {
             mNext.println(priority, tag, msg, tr);
@@ -141,5 +192,73 @@ public class LogView extends TextView implements LogNode {
         append("\n" + s);
     }
 
+    /**
+     * Switches to coalesced updates. Must be called on the UI thread, before logging starts.
+     * @param lineCapacity Number of most recent lines kept on screen; older ones are dropped.
+     * @param flushIntervalMs Minimum time between two updates of the text. With 0 the text is
+     *                        updated at most once per animation frame.
+     */
+    public void setCoalescing(int lineCapacity, long flushIntervalMs) {
+        mLineCapacity = lineCapacity;
+        mFlushIntervalMs = flushIntervalMs;
+        mLines = new String[lineCapacity];
+        mHead = 0;
+        mLineCount = 0;
+    }
+
+    private void enqueue(String line) {
+        mPending.offer(line);
+        // Lines beyond the capacity would be dropped on flush anyway, so bound the queue too.
+        if (mPendingCount.incrementAndGet() > mLineCapacity && mPending.poll() != null) {
+            mPendingCount.decrementAndGet();
+        }
+        if (mFlushScheduled.compareAndSet(false, true)) {
+            long wait = mLastFlushTime + mFlushIntervalMs - SystemClock.uptimeMillis();
+            if (wait > 0) {
+                mMainHandler.postDelayed(mScheduleFlush, wait);
+            } else {
+                mMainHandler.post(mScheduleFlush);
+            }
+        }
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (mLineCapacity > 0) {
+            // Shows whatever was queued meanwhile, even if a scheduled flush went missing.
+            mMainHandler.removeCallbacks(mScheduleFlush);
+            flushPending();
+        }
+    }
+
+    private void flushPending() {
+        // Cleared first, so lines queued while draining schedule another flush.
+        mFlushScheduled.set(false);
+        mLastFlushTime = SystemClock.uptimeMillis();
+
+        String line;
+        boolean changed = false;
+        while ((line = mPending.poll()) != null) {
+            mPendingCount.decrementAndGet();
+            mLines[(mHead + mLineCount) % mLineCapacity] = line;
+            if (mLineCount < mLineCapacity) {
+                mLineCount++;
+            } else {
+                mHead = (mHead + 1) % mLineCapacity;
+            }
+            changed = true;
+        }
+        if (!changed) {
+            return;
+        }
+
+        mText.setLength(0);
+        for (int i = 0; i < mLineCount; i++) {
+            mText.append('\n').append(mLines[(mHead + i) % mLineCapacity]);
+        }
+        setText(mText);
+    }
+
 
 }
@@ -0,0 +1,427 @@
+package com.example.android.common.logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * LogNode that records log data as compact binary events in memory-mapped files.
+ *
+ * <p>Events go to a ring of fixed size segment files, {@code <name>.<n>.evl}; once a segment is
+ * full the next one is mapped and the oldest is overwritten. A new node appends to the newest
+ * segment left by an earlier one, so restarting does not eat into the ring. Writing an event is a handful of
+ * stores into the mapping, and because the pages belong to the kernel the trace survives the
+ * process crashing. {@link EventLogDecoder} turns the segments back into text.</p>
+ *
+ * <p>Tags and format strings are written once per segment as string definitions and then
+ * referred to by id. Data logged through {@link Log#printf} keeps its numeric arguments as
+ * numbers instead of formatting them, so a per-frame event costs a few dozen bytes and no
+ * formatting at all. All values are little endian:</p>
+ *
+ * <pre>
+ *   segment  = magic:i32 version:i32 sequence:i64 wallClockMs:i64 startNanos:i64 record*
+ *   record   = length:u16 type:u8 body         (a length of 0 ends the segment)
+ *   STRING   = id:u16 utf8
+ *   EVENT    = level:u8 tag:u16 format:u16 nanos:i64 count:u8 field*
+ *   MESSAGE  = level:u8 tag:u16 nanos:i64 utf8
+ *   field    = LONG value:i64 | DOUBLE value:f64 | BOOLEAN value:u8 | STRING length:u16 utf8 | NULL
+ * </pre>
+ *
+ * <p>Event times are nanoseconds since the segment's {@code startNanos}.</p>
+ */
+public class MappedEventLogNode implements FormattingLogNode, Closeable {
+
+    public static final int MAGIC = 0x314C5645;
+    public static final int VERSION = 1;
+    public static final int SEGMENT_HEADER_SIZE = 32;
+    public static final String SEGMENT_SUFFIX = ".evl";
+
+    public static final int TYPE_STRING = 1;
+    public static final int TYPE_EVENT = 2;
+    public static final int TYPE_MESSAGE = 3;
+
+    public static final int FIELD_LONG = 0;
+    public static final int FIELD_DOUBLE = 1;
+    public static final int FIELD_BOOLEAN = 2;
+    public static final int FIELD_STRING = 3;
+    public static final int FIELD_NULL = 4;
+
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    public static final int DEFAULT_SEGMENT_COUNT = 4;
+
+    private static final int MAX_RECORD_SIZE = 0xFFFF;
+    // Keeps any event, with all its fields, below the record size.
+    private static final int MAX_FIELDS = 32;
+    private static final int MAX_FIELD_BYTES = 1024;
+    private static final int MAX_TEXT_BYTES = MAX_RECORD_SIZE - 16;
+    private static final int MAX_STRINGS = 0xFFFF;
+    private static final long MAX_CLOCK_DRIFT_MS = 1000;
+
+    private final File mDirectory;
+    private final String mName;
+    private final int mSegmentSize;
+    private final int mSegmentCount;
+
+    private MappedByteBuffer mBuffer;
+    private long mSequence;
+    private long mStartNanos;
+
+    // Ids of tags and format strings, and the segment each was last defined in.
+    private final HashMap<String, Integer> mStringIds = new HashMap<String, Integer>();
+    private long[] mDefinedIn = new long[64];
+    private boolean mOpen = true;
+    private long mEventCount;
+
+    LogNode mNext;
+
+    /**
+     * Reopens the newest segment already in the directory and appends to it, or maps a new one
+     * after it if it is full or its times cannot be continued, so the most recent trace is never
+     * overwritten first.
+     *
+     * @param directory Directory holding the segment files.
+     * @param name Base name of the segment files.
+     * @param segmentSize Size in bytes of each segment file.
+     * @param segmentCount Number of segment files kept before the oldest is reused.
+     */
+    public MappedEventLogNode(File directory, String name, int segmentSize, int segmentCount)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        mDirectory = directory;
+        mName = name;
+        // Room for an event and the two definitions it may need, so it always fits a new segment.
+        mSegmentSize = Math.max(segmentSize, SEGMENT_HEADER_SIZE + 3 * MAX_RECORD_SIZE);
+        mSegmentCount = Math.max(1, segmentCount);
+
+        long last = -1;
+        for (int i = 0; i < mSegmentCount; i++) {
+            last = Math.max(last, EventLogDecoder.readSequence(segmentFile(i)));
+        }
+        if (last < 0 || !reopenSegment(last)) {
+            mapSegment(last + 1);
+        }
+    }
+
+    public MappedEventLogNode(File directory, String name) throws IOException {
+        this(directory, name, DEFAULT_SEGMENT_SIZE, DEFAULT_SEGMENT_COUNT);
+    }
+
+    /**
+     * Returns the file backing the segment at the given position in the ring.
+     */
+    public File segmentFile(int index) {
+        return new File(mDirectory, mName + "." + index + SEGMENT_SUFFIX);
+    }
+
+    private void mapSegment(long sequence) throws IOException {
+        if (mBuffer != null) {
+            mBuffer.force();
+        }
+        RandomAccessFile file = new RandomAccessFile(
+                segmentFile((int) (sequence % mSegmentCount)), "rw");
+        try {
+            // Truncating first zero fills the mapping, which ends the segment after the last
+            // record even when an older, longer trace was here.
+            file.setLength(0);
+            file.setLength(mSegmentSize);
+            mBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+        } finally {
+            // The mapping stays valid after the file is closed.
+            file.close();
+        }
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        mSequence = sequence;
+        mStartNanos = System.nanoTime();
+        mBuffer.putInt(MAGIC).putInt(VERSION).putLong(sequence)
+                .putLong(System.currentTimeMillis()).putLong(mStartNanos);
+    }
+
+    /**
+     * Maps an existing segment and positions it after its last record, or returns false if it
+     * cannot be appended to.
+     */
+    private boolean reopenSegment(long sequence) throws IOException {
+        File segment = segmentFile((int) (sequence % mSegmentCount));
+        if (segment.length() != mSegmentSize) {
+            return false;
+        }
+        MappedByteBuffer buffer;
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+        } finally {
+            file.close();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        long wallClockMs = buffer.getLong(16);
+        long startNanos = buffer.getLong(24);
+        // Event times count from startNanos, which only carries over within the same boot; after
+        // a reboot, or time spent asleep, the clocks disagree and a new segment starts instead.
+        long drift = wallClockMs + (System.nanoTime() - startNanos) / 1000000
+                - System.currentTimeMillis();
+        if (Math.abs(drift) > MAX_CLOCK_DRIFT_MS) {
+            return false;
+        }
+
+        int end = SEGMENT_HEADER_SIZE;
+        while (end + 2 <= mSegmentSize) {
+            int length = buffer.getShort(end) & 0xFFFF;
+            if (length == 0 || end + length > mSegmentSize) {
+                break;
+            }
+            end += length;
+        }
+        // A crash mid-write can leave part of a record, without its length, after the end.
+        int partial = Math.min(mSegmentSize, end + MAX_RECORD_SIZE);
+        for (int i = end; i < partial; i++) {
+            buffer.put(i, (byte) 0);
+        }
+        buffer.position(end);
+        mBuffer = buffer;
+        mSequence = sequence;
+        mStartNanos = startNanos;
+        // This node has no ids yet, so its strings are defined again after the old records.
+        return true;
+    }
+
+    @Override
+    public void println(int priority, String tag, String msg, Throwable tr) {
+        write(priority, tag, msg, null, tr, false);
+        if (mNext != null) {
+            mNext.println(priority, tag, msg, tr);
+        }
+    }
+
+    @Override
+    public void printf(int priority, String tag, Throwable tr, String format, Object[] args) {
+        write(priority, tag, format, args, tr, true);
+        if (mNext instanceof FormattingLogNode) {
+            ((FormattingLogNode) mNext).printf(priority, tag, tr, format, args);
+        } else if (mNext != null) {
+            mNext.println(priority, tag, Log.format(format, args), tr);
+        }
+    }
+
+    private synchronized void write(int priority, String tag, String msg, Object[] args,
+                                    Throwable tr, boolean formatted) {
+        if (!mOpen) {
+            return;
+        }
+        try {
+            // An exception is recorded as a plain message, it is rare and has no fields.
+            if (tr != null) {
+                msg = (formatted ? Log.format(msg, args) : msg) + "\n" + tr;
+                formatted = false;
+            }
+            if (mStringIds.size() >= MAX_STRINGS - 2) {
+                // Ids are reassigned from scratch; definitions are read in order, so a string
+                // defined again under a reused id simply replaces the old one.
+                mStringIds.clear();
+                Arrays.fill(mDefinedIn, 0);
+            }
+            long nanos = System.nanoTime();
+            if (!tryWrite(priority, tag, msg, args, formatted, nanos)) {
+                mapSegment(mSequence + 1);
+                tryWrite(priority, tag, msg, args, formatted, nanos);
+            }
+            mEventCount++;
+        } catch (IOException e) {
+            // Tracing is best effort, stop rather than fail the caller.
+            android.util.Log.e("MappedEventLogNode", "Unable to map event log segment", e);
+            mOpen = false;
+        }
+    }
+
+    /**
+     * Writes the definitions the event needs and the event itself, or returns false without
+     * leaving a partial record behind if the segment is too full.
+     */
+    private boolean tryWrite(int priority, String tag, String msg, Object[] args,
+                             boolean formatted, long nanos) {
+        MappedByteBuffer buffer = mBuffer;
+        int start = buffer.position();
+        int tagId = define(tag);
+        int msgId = formatted ? define(msg) : 0;
+        if (tagId < 0 || msgId < 0) {
+            return rollBack(start);
+        }
+
+        int record = buffer.position();
+        if (buffer.remaining() < 2 + 1 + 1 + 2 + 2 + 8 + 1 + 2) {
+            return rollBack(start);
+        }
+        buffer.position(record + 2);
+        if (formatted) {
+            buffer.put((byte) TYPE_EVENT).put((byte) priority).putShort((short) tagId)
+                    .putShort((short) msgId).putLong(nanos - mStartNanos);
+            int count = args != null ? Math.min(args.length, MAX_FIELDS) : 0;
+            buffer.put((byte) count);
+            for (int i = 0; i < count; i++) {
+                if (!putField(buffer, args[i])) {
+                    return rollBack(start);
+                }
+            }
+        } else {
+            buffer.put((byte) TYPE_MESSAGE).put((byte) priority).putShort((short) tagId)
+                    .putLong(nanos - mStartNanos);
+            if (!putUtf8(buffer, msg != null ? msg : "", MAX_TEXT_BYTES)) {
+                return rollBack(start);
+            }
+        }
+        buffer.putShort(record, (short) (buffer.position() - record));
+        return true;
+    }
+
+    private boolean rollBack(int position) {
+        int end = mBuffer.position();
+        mBuffer.position(position);
+        // Clear the partial bytes so the segment still ends after the last whole record.
+        for (int i = position; i < end; i++) {
+            mBuffer.put(i, (byte) 0);
+        }
+        return false;
+    }
+
+    /**
+     * Returns the id of the string, writing its definition if this segment lacks it, or -1 if
+     * there is no room.
+     */
+    private int define(String value) {
+        if (value == null) {
+            value = "";
+        }
+        Integer known = mStringIds.get(value);
+        int id;
+        if (known != null) {
+            id = known;
+            if (mDefinedIn[id] == mSequence + 1) {
+                return id;
+            }
+        } else {
+            id = mStringIds.size();
+            mStringIds.put(value, id);
+            if (id >= mDefinedIn.length) {
+                long[] definedIn = new long[mDefinedIn.length * 2];
+                System.arraycopy(mDefinedIn, 0, definedIn, 0, mDefinedIn.length);
+                mDefinedIn = definedIn;
+            }
+        }
+
+        MappedByteBuffer buffer = mBuffer;
+        int record = buffer.position();
+        if (buffer.remaining() < 2 + 1 + 2) {
+            return -1;
+        }
+        buffer.position(record + 2);
+        buffer.put((byte) TYPE_STRING).putShort((short) id);
+        if (!putUtf8(buffer, value, MAX_TEXT_BYTES)) {
+            return -1;
+        }
+        buffer.putShort(record, (short) (buffer.position() - record));
+        // Stored off by one so the zero filled array means "never defined".
+        mDefinedIn[id] = mSequence + 1;
+        return id;
+    }
+
+    private static boolean putField(MappedByteBuffer buffer, Object value) {
+        if (buffer.remaining() < 1 + 8) {
+            return false;
+        }
+        if (value instanceof Integer || value instanceof Long || value instanceof Short
+                || value instanceof Byte) {
+            buffer.put((byte) FIELD_LONG).putLong(((Number) value).longValue());
+        } else if (value instanceof Float || value instanceof Double) {
+            buffer.put((byte) FIELD_DOUBLE).putDouble(((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            buffer.put((byte) FIELD_BOOLEAN).put((byte) (((Boolean) value) ? 1 : 0));
+        } else if (value == null) {
+            buffer.put((byte) FIELD_NULL);
+        } else {
+            buffer.put((byte) FIELD_STRING);
+            int length = buffer.position();
+            if (buffer.remaining() < 2) {
+                return false;
+            }
+            buffer.position(length + 2);
+            if (!putUtf8(buffer, String.valueOf(value), MAX_FIELD_BYTES)) {
+                return false;
+            }
+            buffer.putShort(length, (short) (buffer.position() - length - 2));
+        }
+        return true;
+    }
+
+    /**
+     * Encodes the string as UTF-8 without allocating, cutting it short after {@code maxBytes}.
+     * Returns false only if the segment itself is out of room.
+     */
+    private static boolean putUtf8(MappedByteBuffer buffer, String value, int maxBytes) {
+        int limit = buffer.position() + maxBytes;
+        int end = Math.min(buffer.limit(), limit);
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            int c = value.charAt(i);
+            if (Character.isHighSurrogate((char) c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                c = Character.toCodePoint((char) c, value.charAt(++i));
+            }
+            int bytes = c < 0x80 ? 1 : c < 0x800 ? 2 : c < 0x10000 ? 3 : 4;
+            if (buffer.position() + bytes > end) {
+                // Running out of segment space fails, reaching maxBytes truncates.
+                return end == limit;
+            }
+            if (bytes == 1) {
+                buffer.put((byte) c);
+            } else if (bytes == 2) {
+                buffer.put((byte) (0xC0 | c >> 6)).put((byte) (0x80 | c & 0x3F));
+            } else if (bytes == 3) {
+                buffer.put((byte) (0xE0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3F))
+                        .put((byte) (0x80 | c & 0x3F));
+            } else {
+                buffer.put((byte) (0xF0 | c >> 18)).put((byte) (0x80 | c >> 12 & 0x3F))
+                        .put((byte) (0x80 | c >> 6 & 0x3F)).put((byte) (0x80 | c & 0x3F));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Number of events recorded since this node was created.
+     */
+    public synchronized long getEventCount() {
+        return mEventCount;
+    }
+
+    /**
+     * Flushes the current segment to storage and stops recording.
+     */
+    @Override
+    public synchronized void close() {
+        if (mOpen) {
+            mOpen = false;
+            mBuffer.force();
+        }
+    }
+
+    /**
+     * Returns the next LogNode in the chain.
+     */
+    public LogNode getNext() {
+        return mNext;
+    }
+
+    /**
+     * Sets the LogNode data will be sent to.
+     */
+    public void setNext(LogNode node) {
+        mNext = node;
+    }
+}
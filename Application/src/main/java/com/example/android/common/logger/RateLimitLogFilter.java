@@ -0,0 +1,295 @@
+package com.example.android.common.logger;
+
+/**
+ * Filter that rate limits repetitive log data, so per-frame diagnostics can stay enabled.
+ *
+ * <p>Every tag and message pair gets a token bucket holding up to {@code burst} tokens and
+ * refilled at {@code ratePerSecond}. Data passes on while its bucket has a token and is counted
+ * as suppressed otherwise. At most once per summary interval, every key with suppressed data
+ * produces a "Suppressed N messages" line. Summaries fall due as data arrives; once it stops,
+ * only {@link #emitDueSummaries()} or {@link #flushSummaries()} write them, so call one of them
+ * periodically, for instance from {@link AsyncLogNode#setIdleTask(Runnable, long)}. Data logged through {@link Log#printf} is keyed by its
+ * format string, so lines that only differ in their arguments share a bucket and nothing is
+ * formatted for data that is suppressed.</p>
+ *
+ * <p>Buckets live in a map keyed by a primitive hash of tag and message, held in parallel
+ * arrays, so steady state filtering allocates nothing. Messages built by concatenation each get
+ * a key of their own, so the map holds at most {@link #MAX_KEYS}. When it is full, keys whose
+ * buckets have refilled are dropped, after their summary if they have one. If no bucket has
+ * refilled, every key is summarized and the map starts over. Priorities at or above
+ * {@code unlimitedPriority} are never limited.</p>
+ */
+public class RateLimitLogFilter implements FormattingLogNode {
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    // Tokens are counted in millionths, so fractional refills need no floating point.
+    private static final long TOKEN = 1000000L;
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int MAX_CAPACITY = 1024;
+    public static final int MAX_KEYS = MAX_CAPACITY * 3 / 4;
+
+    private final long mRatePerSecond;
+    private final long mBurstTokens;
+    private final long mFillNs;
+    private final long mSummaryIntervalNs;
+    private final int mUnlimitedPriority;
+
+    // Open addressing map from key to bucket state, in parallel arrays.
+    private long[] mKeys = new long[INITIAL_CAPACITY];
+    private boolean[] mUsed = new boolean[INITIAL_CAPACITY];
+    private long[] mTokens = new long[INITIAL_CAPACITY];
+    private long[] mRefillTimes = new long[INITIAL_CAPACITY];
+    private int[] mSuppressed = new int[INITIAL_CAPACITY];
+    private int[] mPriorities = new int[INITIAL_CAPACITY];
+    private String[] mTags = new String[INITIAL_CAPACITY];
+    private String[] mSamples = new String[INITIAL_CAPACITY];
+    private int mSize;
+
+    private long mLastSummaryTime;
+    private long mSuppressedTotal;
+
+    LogNode mNext;
+
+    /**
+     * @param ratePerSecond Sustained number of lines passed on per key and second.
+     * @param burst Number of lines a key may log at once after being quiet.
+     * @param summaryIntervalMs Minimum time between two rounds of suppression summaries.
+     * @param unlimitedPriority Lowest priority that is never limited, for instance
+     *                          {@link Log#WARN}.
+     */
+    public RateLimitLogFilter(int ratePerSecond, int burst, long summaryIntervalMs,
+                              int unlimitedPriority) {
+        mRatePerSecond = Math.max(1, ratePerSecond);
+        mBurstTokens = Math.max(1, burst) * TOKEN;
+        mFillNs = Math.max(1, burst) * NANOS_PER_SECOND / mRatePerSecond;
+        mSummaryIntervalNs = summaryIntervalMs * 1000000L;
+        mUnlimitedPriority = unlimitedPriority;
+        mLastSummaryTime = System.nanoTime();
+    }
+
+    /**
+     * Limits every key to 5 lines per second with bursts of 10, summarizing every 5 seconds.
+     */
+    public RateLimitLogFilter() {
+        this(5, 10, 5000, Log.WARN);
+    }
+
+    @Override
+    public void println(int priority, String tag, String msg, Throwable tr) {
+        if (admit(priority, tag, msg) && mNext != null) {
+            mNext.println(priority, tag, msg, tr);
+        }
+    }
+
+    @Override
+    public void printf(int priority, String tag, Throwable tr, String format, Object[] args) {
+        if (admit(priority, tag, format) && mNext != null) {
+            if (mNext instanceof FormattingLogNode) {
+                ((FormattingLogNode) mNext).printf(priority, tag, tr, format, args);
+            } else {
+                mNext.println(priority, tag, Log.format(format, args), tr);
+            }
+        }
+    }
+
+    /**
+     * Takes a token for the key and reports whether the data may pass. Also emits any due
+     * summaries.
+     */
+    private synchronized boolean admit(int priority, String tag, String msg) {
+        long now = System.nanoTime();
+        emitSummariesIfDue(now);
+        if (priority >= mUnlimitedPriority) {
+            return true;
+        }
+
+        long key = key(tag, msg);
+        int slot = find(key);
+        if (!mUsed[slot]) {
+            if (mSize + 1 > mKeys.length * 3 / 4) {
+                makeRoom(now);
+                slot = find(key);
+            }
+            mUsed[slot] = true;
+            mKeys[slot] = key;
+            mTokens[slot] = mBurstTokens;
+            mRefillTimes[slot] = now;
+            mSize++;
+        }
+        mTags[slot] = tag;
+        mSamples[slot] = msg;
+        mPriorities[slot] = priority;
+
+        long elapsed = now - mRefillTimes[slot];
+        mRefillTimes[slot] = now;
+        // Capped at the time it takes to fill an empty bucket, which also keeps this from
+        // overflowing after a long quiet period.
+        long refill = Math.min(elapsed, mFillNs) * mRatePerSecond * TOKEN / NANOS_PER_SECOND;
+        long tokens = Math.min(mBurstTokens, mTokens[slot] + refill);
+        if (tokens >= TOKEN) {
+            mTokens[slot] = tokens - TOKEN;
+            return true;
+        }
+        mTokens[slot] = tokens;
+        mSuppressed[slot]++;
+        mSuppressedTotal++;
+        return false;
+    }
+
+    private void emitSummariesIfDue(long now) {
+        if (now - mLastSummaryTime >= mSummaryIntervalNs) {
+            mLastSummaryTime = now;
+            emitSummaries();
+        }
+    }
+
+    private void emitSummaries() {
+        for (int i = 0; i < mKeys.length; i++) {
+            if (mUsed[i]) {
+                emitSummary(i);
+            }
+        }
+    }
+
+    private void emitSummary(int slot) {
+        if (mSuppressed[slot] > 0 && mNext != null) {
+            mNext.println(mPriorities[slot], mTags[slot], "Suppressed " + mSuppressed[slot]
+                    + " messages like: " + mSamples[slot], null);
+        }
+        mSuppressed[slot] = 0;
+    }
+
+    /**
+     * Makes room for one more key: grows the map up to {@link #MAX_CAPACITY}, then drops the
+     * keys whose buckets have refilled, then every key.
+     */
+    private void makeRoom(long now) {
+        if (mKeys.length < MAX_CAPACITY) {
+            rehash(mKeys.length * 2);
+            return;
+        }
+        for (int i = 0; i < mKeys.length; i++) {
+            if (mUsed[i] && isRefilled(i, now)) {
+                emitSummary(i);
+                drop(i);
+            }
+        }
+        if (mSize + 1 > mKeys.length * 3 / 4) {
+            // Every key is still being limited.
+            for (int i = 0; i < mKeys.length; i++) {
+                if (mUsed[i]) {
+                    emitSummary(i);
+                    drop(i);
+                }
+            }
+        }
+        // Dropping breaks probe sequences, the survivors are placed again.
+        rehash(mKeys.length);
+    }
+
+    private boolean isRefilled(int slot, long now) {
+        long elapsed = Math.min(now - mRefillTimes[slot], mFillNs);
+        return mTokens[slot] + elapsed * mRatePerSecond * TOKEN / NANOS_PER_SECOND
+                >= mBurstTokens;
+    }
+
+    private void drop(int slot) {
+        mUsed[slot] = false;
+        mTags[slot] = null;
+        mSamples[slot] = null;
+        mSize--;
+    }
+
+    private static long key(String tag, String msg) {
+        long tagHash = tag != null ? tag.hashCode() : 0;
+        long msgHash = msg != null ? msg.hashCode() : 0;
+        return (tagHash << 32) ^ (msgHash & 0xFFFFFFFFL);
+    }
+
+    private int find(long key) {
+        int mask = mKeys.length - 1;
+        // Spreads the tag half into the low bits used for indexing.
+        int slot = (int) (key ^ (key >>> 32)) * 0x9E3779B9 >>> 7 & mask;
+        while (mUsed[slot] && mKeys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash(int capacity) {
+        long[] keys = mKeys;
+        boolean[] used = mUsed;
+        long[] tokens = mTokens;
+        long[] refillTimes = mRefillTimes;
+        int[] suppressed = mSuppressed;
+        int[] priorities = mPriorities;
+        String[] tags = mTags;
+        String[] samples = mSamples;
+
+        mKeys = new long[capacity];
+        mUsed = new boolean[capacity];
+        mTokens = new long[capacity];
+        mRefillTimes = new long[capacity];
+        mSuppressed = new int[capacity];
+        mPriorities = new int[capacity];
+        mTags = new String[capacity];
+        mSamples = new String[capacity];
+        for (int i = 0; i < keys.length; i++) {
+            if (used[i]) {
+                int slot = find(keys[i]);
+                mUsed[slot] = true;
+                mKeys[slot] = keys[i];
+                mTokens[slot] = tokens[i];
+                mRefillTimes[slot] = refillTimes[i];
+                mSuppressed[slot] = suppressed[i];
+                mPriorities[slot] = priorities[i];
+                mTags[slot] = tags[i];
+                mSamples[slot] = samples[i];
+            }
+        }
+    }
+
+    /**
+     * Emits the summaries if the summary interval has passed, as the next data logged would.
+     * Call periodically, so what was suppressed is reported even once logging goes quiet.
+     */
+    public synchronized void emitDueSummaries() {
+        emitSummariesIfDue(System.nanoTime());
+    }
+
+    /**
+     * Emits summaries for everything suppressed so far, without waiting for the interval.
+     */
+    public synchronized void flushSummaries() {
+        mLastSummaryTime = System.nanoTime();
+        emitSummaries();
+    }
+
+    /**
+     * Number of keys currently tracked, at most {@link #MAX_KEYS}.
+     */
+    public synchronized int getKeyCount() {
+        return mSize;
+    }
+
+    /**
+     * Total number of lines suppressed since this filter was created.
+     */
+    public synchronized long getSuppressedCount() {
+        return mSuppressedTotal;
+    }
+
+    /**
+     * Returns the next LogNode in the chain.
+     */
+    public LogNode getNext() {
+        return mNext;
+    }
+
+    /**
+     * Sets the LogNode data will be sent to.
+     */
+    public void setNext(LogNode node) {
+        mNext = node;
+    }
+}
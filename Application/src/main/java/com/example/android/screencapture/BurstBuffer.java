@@ -0,0 +1,167 @@
+package com.example.android.screencapture;
+
+import com.example.android.common.logger.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Holds a burst of raw RGBA frames in memory so they can be captured at the rate the reader
+ * delivers them and stored afterwards.
+ *
+ * <p>All frames live in one direct buffer allocated up front, so the burst causes no garbage
+ * collection and no allocation while it runs; adding a frame is a copy of its rows, without
+ * padding, into the next slot. On ART a direct buffer is a non-movable array on the Java heap
+ * and counts against the app's heap limit, so the number of frames is capped to
+ * {@link #HEAP_SHARE} of that limit, and never more than {@link #MAX_BYTES}, whatever the frame
+ * size. If the allocation still fails, the burst is halved until it fits. Not thread safe: fill
+ * it on the capture thread, then read it back once {@link #isFull()} or the burst is over.</p>
+ */
+public class BurstBuffer {
+
+    private static final String TAG = "BurstBuffer";
+
+    public static final long MAX_BYTES = 192L * 1024 * 1024;
+    // Fraction of the heap limit a burst may take: one in HEAP_SHARE.
+    public static final int HEAP_SHARE = 4;
+
+    private final ByteBuffer mArena;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFrameBytes;
+    private final int mCapacity;
+    private final long[] mTimestamps;
+    private int mCount;
+
+    /**
+     * @param frames Frames wanted; fewer are kept if that many would exceed the budget of
+     *               {@link #budgetFor(long)} this process' heap limit.
+     * @throws OutOfMemoryError If not even one frame could be allocated.
+     */
+    public BurstBuffer(int width, int height, int frames) {
+        this(width, height, frames, budgetFor(Runtime.getRuntime().maxMemory()));
+    }
+
+    /**
+     * @param budgetBytes Most bytes the frames may take.
+     */
+    public BurstBuffer(int width, int height, int frames, long budgetBytes) {
+        mWidth = width;
+        mHeight = height;
+        mFrameBytes = width * height * FrameSpool.BYTES_PER_PIXEL;
+        mArena = allocate(capacityFor(frames, mFrameBytes, budgetBytes), mFrameBytes);
+        mCapacity = mArena.capacity() / Math.max(1, mFrameBytes);
+        mTimestamps = new long[mCapacity];
+    }
+
+    /**
+     * Bytes a burst may take with the given heap limit, such as {@link Runtime#maxMemory()}.
+     */
+    public static long budgetFor(long maxHeapBytes) {
+        return Math.min(MAX_BYTES, maxHeapBytes / HEAP_SHARE);
+    }
+
+    /**
+     * Frames of {@code frameBytes} each that fit within {@code budgetBytes}, at most
+     * {@code frames} and at least one.
+     */
+    public static int capacityFor(int frames, int frameBytes, long budgetBytes) {
+        long fit = budgetBytes / Math.max(1, frameBytes);
+        return (int) Math.max(1, Math.min(frames, fit));
+    }
+
+    private static ByteBuffer allocate(int frames, int frameBytes) {
+        while (true) {
+            try {
+                return ByteBuffer.allocateDirect(frames * frameBytes);
+            } catch (OutOfMemoryError e) {
+                if (frames == 1) {
+                    throw e;
+                }
+                Log.w(TAG, "No memory for a burst of %d frames, trying %d", frames, frames / 2);
+                frames /= 2;
+            }
+        }
+    }
+
+    /**
+     * Copies a frame into the next slot.
+     *
+     * @param pixels Plane buffer positioned at the first pixel; its position is not changed.
+     * @return False if the buffer is already full and the frame was not kept.
+     */
+    public boolean add(ByteBuffer pixels, int rowStride, long timestamp) {
+        if (mCount == mCapacity) {
+            return false;
+        }
+        int rowBytes = mWidth * FrameSpool.BYTES_PER_PIXEL;
+        ByteBuffer target = mArena.duplicate();
+        target.position(mCount * mFrameBytes);
+        ByteBuffer source = pixels.duplicate();
+        int base = pixels.position();
+        if (rowStride == rowBytes) {
+            source.limit(base + mFrameBytes);
+            target.put(source);
+        } else {
+            for (int y = 0; y < mHeight; y++) {
+                int start = base + y * rowStride;
+                source.limit(start + rowBytes);
+                source.position(start);
+                target.put(source);
+            }
+        }
+        mTimestamps[mCount++] = timestamp;
+        return true;
+    }
+
+    /**
+     * Returns a view of a stored frame, rows packed at {@link #getRowStride()}.
+     */
+    public ByteBuffer getFrame(int index) {
+        ByteBuffer frame = mArena.duplicate();
+        frame.limit((index + 1) * mFrameBytes);
+        frame.position(index * mFrameBytes);
+        return frame.slice();
+    }
+
+    public long getTimestamp(int index) {
+        return mTimestamps[index];
+    }
+
+    public int getFrameCount() {
+        return mCount;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public boolean isFull() {
+        return mCount == mCapacity;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getRowStride() {
+        return mWidth * FrameSpool.BYTES_PER_PIXEL;
+    }
+
+    /**
+     * Bytes between pixels of a stored frame, which keeps its pixels packed.
+     */
+    public int getPixelStride() {
+        return FrameSpool.BYTES_PER_PIXEL;
+    }
+
+    /**
+     * Forgets the stored frames, keeping the memory for the next burst.
+     */
+    public void clear() {
+        mCount = 0;
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.android.screencapture;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rectangle of a captured frame that is processed on its own, so work on a frame is limited to
+ * the rows and columns it covers.
+ *
+ * <p>Regions are given in captured pixels, after any capture scale, and written in preferences as
+ * {@code x,y,width,height}, several separated by {@code ;}.</p>
+ */
+public final class CaptureRegion {
+
+    public static final CaptureRegion[] NONE = new CaptureRegion[0];
+
+    private final int mLeft;
+    private final int mTop;
+    private final int mWidth;
+    private final int mHeight;
+
+    public CaptureRegion(int left, int top, int width, int height) {
+        mLeft = left;
+        mTop = top;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * Parses a region list, skipping malformed or empty entries. Returns {@link #NONE} for a
+     * null or blank specification, meaning the whole frame.
+     */
+    public static CaptureRegion[] parse(String spec) {
+        if (spec == null || spec.trim().length() == 0) {
+            return NONE;
+        }
+        List<CaptureRegion> regions = new ArrayList<CaptureRegion>();
+        for (String entry : spec.split(";")) {
+            String[] parts = entry.split(",");
+            if (parts.length != 4) {
+                continue;
+            }
+            try {
+                int left = Integer.parseInt(parts[0].trim());
+                int top = Integer.parseInt(parts[1].trim());
+                int width = Integer.parseInt(parts[2].trim());
+                int height = Integer.parseInt(parts[3].trim());
+                if (left >= 0 && top >= 0 && width > 0 && height > 0) {
+                    regions.add(new CaptureRegion(left, top, width, height));
+                }
+            } catch (NumberFormatException e) {
+                // Skip the entry, the rest may still be usable.
+            }
+        }
+        return regions.toArray(new CaptureRegion[regions.size()]);
+    }
+
+    /**
+     * Returns the part of this region inside a frame of the given size, or null if none is.
+     */
+    public CaptureRegion clampTo(int frameWidth, int frameHeight) {
+        // In long, a region reaching past Integer.MAX_VALUE is still clamped rather than lost.
+        int right = (int) Math.min((long) mLeft + mWidth, frameWidth);
+        int bottom = (int) Math.min((long) mTop + mHeight, frameHeight);
+        if (mLeft >= right || mTop >= bottom) {
+            return null;
+        }
+        if (right - mLeft == mWidth && bottom - mTop == mHeight) {
+            return this;
+        }
+        return new CaptureRegion(mLeft, mTop, right - mLeft, bottom - mTop);
+    }
+
+    /**
+     * Byte offset of the region's first pixel in a plane with the given strides.
+     */
+    public int offset(int rowStride, int pixelStride) {
+        return mTop * rowStride + mLeft * pixelStride;
+    }
+
+    public int getLeft() {
+        return mLeft;
+    }
+
+    public int getTop() {
+        return mTop;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof CaptureRegion)) {
+            return false;
+        }
+        CaptureRegion other = (CaptureRegion) o;
+        return mLeft == other.mLeft && mTop == other.mTop
+                && mWidth == other.mWidth && mHeight == other.mHeight;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((mLeft * 31 + mTop) * 31 + mWidth) * 31 + mHeight;
+    }
+
+    @Override
+    public String toString() {
+        return mLeft + "," + mTop + "," + mWidth + "," + mHeight;
+    }
+}
@@ -0,0 +1,312 @@
+package com.example.android.screencapture;
+
+import android.graphics.PixelFormat;
+import android.hardware.display.VirtualDisplay;
+import android.media.Image;
+import android.media.ImageReader;
+import android.media.projection.MediaProjection;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.view.Surface;
+
+import com.example.android.common.logger.Log;
+
+/**
+ * Owns a MediaProjection and the VirtualDisplay mirroring it, and keeps both alive for as long
+ * as the session is in use.
+ *
+ * <p>Stopping capture only detaches the display's surface, so starting again, switching
+ * between an on-screen preview and an ImageReader, or changing size reuses the same display
+ * through {@link VirtualDisplay#setSurface(Surface)} and {@link VirtualDisplay#resize} rather
+ * than tearing it down. ImageReader frames are delivered on a dedicated capture thread.</p>
+ *
+ * <pre>
+ *   IDLE --start--> CAPTURING --pause--> PAUSED --start--> CAPTURING
+ *     \__________________\___________________\--release--> RELEASED
+ * </pre>
+ *
+ * <p>When the projection is stopped from outside, for instance from the system UI, the session
+ * releases itself. With a {@link StopListener} set, its capture thread is kept running until
+ * {@link #release()} is called, so the owner can still finish the work it queued there.</p>
+ *
+ * <p>The time from each start to the first ImageReader frame is measured and logged, see
+ * {@link #getFirstFrameLatencyMs()}.</p>
+ */
+public class CaptureSession {
+
+    private static final String TAG = "CaptureSession";
+
+    public enum State {
+        IDLE,
+        CAPTURING,
+        PAUSED,
+        RELEASED
+    }
+
+    /**
+     * Receives frames from the session's ImageReader.
+     */
+    public interface FrameListener {
+        /**
+         * Called on the capture thread with the latest frame. The session closes the image once
+         * this returns.
+         */
+        void onFrame(Image image);
+    }
+
+    /**
+     * Told when the projection is stopped from outside the app.
+     */
+    public interface StopListener {
+        /**
+         * Called on the main thread once the session has been released. The capture thread
+         * keeps handling what is posted to it until {@link #release()} is called.
+         */
+        void onProjectionStopped(CaptureSession session);
+    }
+
+    private final MediaProjection mProjection;
+    private final int mDensity;
+    private final int mFlags;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    private State mState = State.IDLE;
+    private VirtualDisplay mVirtualDisplay;
+    private int mWidth;
+    private int mHeight;
+    private volatile ImageReader mImageReader;
+    private volatile FrameListener mFrameListener;
+    private volatile StopListener mStopListener;
+    private boolean mQuitting;
+
+    private volatile long mStartTime;
+    private volatile boolean mAwaitingFirstFrame;
+    private volatile long mFirstFrameLatencyMs = -1;
+
+    /**
+     * @param projection Projection to mirror. The session stops it when released.
+     * @param densityDpi Density of the virtual display.
+     * @param flags {@link android.hardware.display.DisplayManager} virtual display flags.
+     */
+    public CaptureSession(MediaProjection projection, int densityDpi, int flags) {
+        mProjection = projection;
+        mDensity = densityDpi;
+        mFlags = flags;
+        mThread = new HandlerThread("CaptureSession");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mProjection.registerCallback(new ProjectionCallback(), mHandler);
+    }
+
+    /**
+     * Returns a handler for the capture thread, on which all frames are delivered.
+     */
+    public Handler getHandler() {
+        return mHandler;
+    }
+
+    public void setStopListener(StopListener listener) {
+        mStopListener = listener;
+    }
+
+    public synchronized State getState() {
+        return mState;
+    }
+
+    public synchronized boolean isCapturing() {
+        return mState == State.CAPTURING;
+    }
+
+    /**
+     * Mirrors the screen into the given surface, for instance a SurfaceView preview.
+     */
+    public synchronized void startToSurface(Surface surface, int width, int height) {
+        checkNotReleased();
+        mFrameListener = null;
+        attach(surface, width, height);
+    }
+
+    /**
+     * Mirrors the screen into an RGBA_8888 ImageReader owned by the session, delivering its frames
+     * to {@code listener}. The reader from a previous start is reused when its size and image
+     * count still match.
+     */
+    public synchronized void startToReader(int width, int height, int maxImages,
+                                           FrameListener listener) {
+        checkNotReleased();
+        ImageReader previous = mImageReader;
+        ImageReader reader = previous;
+        if (reader == null || reader.getWidth() != width || reader.getHeight() != height
+                || reader.getMaxImages() != maxImages) {
+            reader = ImageReader.newInstance(width, height, PixelFormat.RGBA_8888, maxImages);
+            reader.setOnImageAvailableListener(new ImageAvailableListener(), mHandler);
+            mImageReader = reader;
+        }
+        mFrameListener = listener;
+        attach(reader.getSurface(), width, height);
+        if (previous != reader) {
+            // Only safe once the display has moved over to the new reader's surface.
+            retireImageReader(previous);
+        }
+    }
+
+    /**
+     * Stops producing frames while keeping the projection and display alive.
+     */
+    public synchronized void pause() {
+        if (mState != State.CAPTURING) {
+            return;
+        }
+        mFrameListener = null;
+        mAwaitingFirstFrame = false;
+        mVirtualDisplay.setSurface(null);
+        mState = State.PAUSED;
+    }
+
+    /**
+     * Releases the display, the reader and the projection, and stops the capture thread once
+     * it has handled everything already posted to it.
+     */
+    public synchronized void release() {
+        releaseProjection();
+        if (mQuitting) {
+            return;
+        }
+        mQuitting = true;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mThread.quitSafely();
+            }
+        });
+    }
+
+    private synchronized void releaseProjection() {
+        if (mState == State.RELEASED) {
+            return;
+        }
+        mState = State.RELEASED;
+        mFrameListener = null;
+        if (mVirtualDisplay != null) {
+            mVirtualDisplay.release();
+            mVirtualDisplay = null;
+        }
+        retireImageReader(mImageReader);
+        mImageReader = null;
+        mProjection.stop();
+    }
+
+    /**
+     * Milliseconds from the most recent start to its first ImageReader frame, or -1 if no frame
+     * has arrived yet.
+     */
+    public long getFirstFrameLatencyMs() {
+        return mFirstFrameLatencyMs;
+    }
+
+    private void attach(Surface surface, int width, int height) {
+        mStartTime = System.nanoTime();
+        mFirstFrameLatencyMs = -1;
+        mAwaitingFirstFrame = mFrameListener != null;
+
+        if (mVirtualDisplay == null) {
+            Log.i(TAG, "Creating VirtualDisplay: %dx%d (%d)", width, height, mDensity);
+            mVirtualDisplay = mProjection.createVirtualDisplay("ScreenCapture",
+                    width, height, mDensity, mFlags, surface, new VirtualDisplayCallback(), mHandler);
+        } else {
+            if (width != mWidth || height != mHeight) {
+                Log.i(TAG, "Resizing VirtualDisplay: %dx%d", width, height);
+                mVirtualDisplay.resize(width, height, mDensity);
+            }
+            mVirtualDisplay.setSurface(surface);
+        }
+        mWidth = width;
+        mHeight = height;
+        mState = State.CAPTURING;
+    }
+
+    private void retireImageReader(final ImageReader reader) {
+        if (reader == null) {
+            return;
+        }
+        // Close on the capture thread, behind any frame of this reader still being handled.
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                reader.close();
+            }
+        });
+    }
+
+    private void checkNotReleased() {
+        if (mState == State.RELEASED) {
+            throw new IllegalStateException("CaptureSession has been released");
+        }
+    }
+
+    private class ImageAvailableListener implements ImageReader.OnImageAvailableListener {
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image image = reader.acquireLatestImage();
+            if (image == null) {
+                return;
+            }
+            try {
+                // Frames still queued for a reader that has been swapped out are dropped.
+                FrameListener listener = mFrameListener;
+                if (reader != mImageReader || listener == null) {
+                    return;
+                }
+                if (mAwaitingFirstFrame) {
+                    mAwaitingFirstFrame = false;
+                    mFirstFrameLatencyMs = (System.nanoTime() - mStartTime) / 1000000;
+                    Log.i(TAG, "First frame %d ms after start", mFirstFrameLatencyMs);
+                }
+                listener.onFrame(image);
+            } finally {
+                image.close();
+            }
+        }
+    }
+
+    private class VirtualDisplayCallback extends VirtualDisplay.Callback {
+        @Override
+        public void onPaused() {
+            super.onPaused();
+            Log.d(TAG, "VirtualDisplayCallback: onPaused");
+        }
+
+        @Override
+        public void onResumed() {
+            super.onResumed();
+            Log.d(TAG, "VirtualDisplayCallback: onResumed");
+        }
+
+        @Override
+        public void onStopped() {
+            super.onStopped();
+            Log.d(TAG, "VirtualDisplayCallback: onStopped");
+        }
+    }
+
+    private class ProjectionCallback extends MediaProjection.Callback {
+        @Override
+        public void onStop() {
+            Log.i(TAG, "MediaProjection stopped");
+            final StopListener listener = mStopListener;
+            if (listener == null) {
+                release();
+                return;
+            }
+            releaseProjection();
+            new Handler(Looper.getMainLooper()).post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onProjectionStopped(CaptureSession.this);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package com.example.android.screencapture;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.preference.PreferenceManager;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Immutable snapshot of the capture preferences.
+ *
+ * <p>The current snapshot is held in a volatile field and replaced as a whole by a preference
+ * change listener, so capture code reads every knob with a single volatile load instead of going
+ * through {@link SharedPreferences}, and always sees a consistent set of values. Components that
+ * need to react to a change while capturing, for instance by resizing the display, register an
+ * {@link OnChangeListener}.</p>
+ */
+public final class CaptureSettings {
+
+    public static final String FORMAT_JPEG = "jpeg";
+    public static final String FORMAT_PNG = "png";
+    public static final String FORMAT_WEBP = "webp";
+    public static final String RAW_FORMAT_RGBA = "rgba";
+    public static final String RAW_FORMAT_I420 = "i420";
+    public static final String RAW_FORMAT_NV12 = "nv12";
+
+    /**
+     * Notified on the main thread after a new snapshot has been published.
+     */
+    public interface OnChangeListener {
+        void onCaptureSettingsChanged(CaptureSettings previous, CaptureSettings current);
+    }
+
+    private static final Object sLock = new Object();
+    private static final CopyOnWriteArrayList<OnChangeListener> sListeners =
+            new CopyOnWriteArrayList<OnChangeListener>();
+    private static volatile CaptureSettings sCurrent;
+    // Held strongly, SharedPreferences only keeps weak references to its listeners.
+    private static SharedPreferences.OnSharedPreferenceChangeListener sPreferenceListener;
+
+    private final boolean mScreenshot;
+    private final boolean mRawSpool;
+    private final boolean mCompressSpool;
+    private final int mRawFormat;
+    private final long mStorageBudgetBytes;
+    private final int mMaxFps;
+    private final float mScale;
+    private final String mOutputFormat;
+    private final int mQuality;
+    private final int mBufferCount;
+    private final int mParallelism;
+    private final int mFramesInFlight;
+    private final CaptureRegion[] mRegions;
+    private final boolean mGrayscale;
+    private final float mMotionThreshold;
+    private final int mBurstFrames;
+    private final int mReplaySeconds;
+    private final boolean mStoreThumbnails;
+    private final int mStreamPort;
+
+    private CaptureSettings(SharedPreferences preferences) {
+        mScreenshot = preferences.getBoolean(SettingsActivity.KEY_PREF_CAPTURE_SCREENSHOT, false);
+        mRawSpool = preferences.getBoolean(SettingsActivity.KEY_PREF_RAW_SPOOL, false);
+        mCompressSpool = preferences.getBoolean(SettingsActivity.KEY_PREF_COMPRESS_SPOOL, true);
+        String rawFormat = preferences.getString(SettingsActivity.KEY_PREF_RAW_FORMAT,
+                RAW_FORMAT_RGBA);
+        mRawFormat = RAW_FORMAT_I420.equals(rawFormat) ? FrameSpool.FORMAT_I420
+                : RAW_FORMAT_NV12.equals(rawFormat) ? FrameSpool.FORMAT_NV12
+                : FrameSpool.PIXEL_FORMAT;
+        mStorageBudgetBytes = SettingsActivity.getStorageBudgetBytes(preferences);
+        mMaxFps = Math.max(0, getInt(preferences, SettingsActivity.KEY_PREF_MAX_FPS, 0));
+        int percent = getInt(preferences, SettingsActivity.KEY_PREF_CAPTURE_SCALE, 100);
+        mScale = Math.min(100, Math.max(10, percent)) / 100f;
+        String format = preferences.getString(SettingsActivity.KEY_PREF_OUTPUT_FORMAT, FORMAT_JPEG);
+        mOutputFormat = FORMAT_PNG.equals(format) || FORMAT_WEBP.equals(format) ? format : FORMAT_JPEG;
+        mQuality = Math.min(100, Math.max(0,
+                getInt(preferences, SettingsActivity.KEY_PREF_OUTPUT_QUALITY, 100)));
+        // ImageReader needs a second image to acquire the latest while one is still held.
+        mBufferCount = Math.max(2, getInt(preferences, SettingsActivity.KEY_PREF_BUFFER_COUNT, 2));
+        mParallelism = Math.max(1, getInt(preferences, SettingsActivity.KEY_PREF_PARALLELISM, 1));
+        // By default one frame per encoder thread plus one being copied in.
+        int framesInFlight = getInt(preferences, SettingsActivity.KEY_PREF_FRAMES_IN_FLIGHT, 0);
+        mFramesInFlight = framesInFlight > 0 ? framesInFlight : mParallelism + 1;
+        mRegions = CaptureRegion.parse(
+                preferences.getString(SettingsActivity.KEY_PREF_CAPTURE_REGIONS, ""));
+        mGrayscale = preferences.getBoolean(SettingsActivity.KEY_PREF_GRAYSCALE, false);
+        mMotionThreshold = Math.min(100, Math.max(0,
+                getInt(preferences, SettingsActivity.KEY_PREF_MOTION_THRESHOLD, 0))) / 100f;
+        mBurstFrames = Math.max(0, getInt(preferences, SettingsActivity.KEY_PREF_BURST_FRAMES, 0));
+        mReplaySeconds = Math.max(0,
+                getInt(preferences, SettingsActivity.KEY_PREF_REPLAY_SECONDS, 0));
+        mStoreThumbnails = preferences.getBoolean(SettingsActivity.KEY_PREF_STORE_THUMBNAILS,
+                false);
+        mStreamPort = Math.min(65535, Math.max(0,
+                getInt(preferences, SettingsActivity.KEY_PREF_STREAM_PORT, 0)));
+    }
+
+    private static int getInt(SharedPreferences preferences, String key, int defaultValue) {
+        // ListPreference values are stored as strings.
+        try {
+            return Integer.parseInt(preferences.getString(key, Integer.toString(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the current snapshot, loading it and starting to follow preference changes on the
+     * first call.
+     */
+    public static CaptureSettings get(Context context) {
+        CaptureSettings current = sCurrent;
+        if (current != null) {
+            return current;
+        }
+        synchronized (sLock) {
+            if (sCurrent == null) {
+                final SharedPreferences preferences = PreferenceManager
+                        .getDefaultSharedPreferences(context.getApplicationContext());
+                sPreferenceListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+                    @Override
+                    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences,
+                                                          String key) {
+                        publish(new CaptureSettings(sharedPreferences));
+                    }
+                };
+                preferences.registerOnSharedPreferenceChangeListener(sPreferenceListener);
+                sCurrent = new CaptureSettings(preferences);
+            }
+            return sCurrent;
+        }
+    }
+
+    private static void publish(CaptureSettings settings) {
+        CaptureSettings previous;
+        synchronized (sLock) {
+            previous = sCurrent;
+            sCurrent = settings;
+        }
+        for (OnChangeListener listener : sListeners) {
+            listener.onCaptureSettingsChanged(previous, settings);
+        }
+    }
+
+    public static void addOnChangeListener(OnChangeListener listener) {
+        sListeners.addIfAbsent(listener);
+    }
+
+    public static void removeOnChangeListener(OnChangeListener listener) {
+        sListeners.remove(listener);
+    }
+
+    /**
+     * Whether capture goes to an ImageReader and is stored, rather than to the preview.
+     */
+    public boolean isScreenshot() {
+        return mScreenshot;
+    }
+
+    public boolean isRawSpool() {
+        return mRawSpool;
+    }
+
+    public boolean isCompressSpool() {
+        return mCompressSpool;
+    }
+
+    /**
+     * Pixel format raw frames are spooled in: {@link FrameSpool#PIXEL_FORMAT} as captured, or
+     * {@link FrameSpool#FORMAT_I420} or {@link FrameSpool#FORMAT_NV12} converted by
+     * {@link YuvConverter}. Read per frame.
+     */
+    public int getRawFormat() {
+        return mRawFormat;
+    }
+
+    public long getStorageBudgetBytes() {
+        return mStorageBudgetBytes;
+    }
+
+    /**
+     * Highest rate at which frames are stored, or 0 for no limit.
+     */
+    public int getMaxFps() {
+        return mMaxFps;
+    }
+
+    /**
+     * Minimum nanoseconds between stored frames, or 0 for no limit.
+     */
+    public long getMinFrameIntervalNs() {
+        return mMaxFps > 0 ? 1000000000L / mMaxFps : 0;
+    }
+
+    /**
+     * Factor applied to the captured width and height, between 0.1 and 1.
+     */
+    public float getScale() {
+        return mScale;
+    }
+
+    public int scale(int size) {
+        return Math.max(1, Math.round(size * mScale));
+    }
+
+    /**
+     * One of {@link #FORMAT_JPEG}, {@link #FORMAT_PNG} or {@link #FORMAT_WEBP}.
+     */
+    public String getOutputFormat() {
+        return mOutputFormat;
+    }
+
+    public Bitmap.CompressFormat getCompressFormat() {
+        if (FORMAT_PNG.equals(mOutputFormat)) {
+            return Bitmap.CompressFormat.PNG;
+        } else if (FORMAT_WEBP.equals(mOutputFormat)) {
+            return Bitmap.CompressFormat.WEBP;
+        }
+        return Bitmap.CompressFormat.JPEG;
+    }
+
+    /**
+     * Spool format code for encoded frames, see {@link FrameSpool}.
+     */
+    public int getSpoolFormat() {
+        if (FORMAT_PNG.equals(mOutputFormat)) {
+            return FrameSpool.FORMAT_PNG;
+        } else if (FORMAT_WEBP.equals(mOutputFormat)) {
+            return FrameSpool.FORMAT_WEBP;
+        }
+        return FrameSpool.FORMAT_JPEG;
+    }
+
+    public String getFileExtension() {
+        return FORMAT_JPEG.equals(mOutputFormat) ? "jpg" : mOutputFormat;
+    }
+
+    /**
+     * Encoder quality from 0 to 100; ignored for PNG.
+     */
+    public int getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * Number of ImageReader buffers, at least 2.
+     */
+    public int getBufferCount() {
+        return mBufferCount;
+    }
+
+    /**
+     * Number of threads frames may be encoded on.
+     */
+    public int getParallelism() {
+        return mParallelism;
+    }
+
+    /**
+     * Most frames handed to the encoder threads and not yet written; each holds a copy of its
+     * pixels and its encoded output.
+     */
+    public int getFramesInFlight() {
+        return mFramesInFlight;
+    }
+
+    /**
+     * Regions of each frame that are stored, or {@link CaptureRegion#NONE} for the whole frame.
+     * Read per frame, so a change applies to the next frame. Callers must not modify the array.
+     */
+    public CaptureRegion[] getRegions() {
+        return mRegions;
+    }
+
+    /**
+     * Whether frames are stored as 8-bit luma: lossless grayscale PNG, or {@link
+     * FrameSpool#FORMAT_Y8} raw frames when spooling raw. Overrides the output format.
+     */
+    public boolean isGrayscale() {
+        return mGrayscale;
+    }
+
+    /**
+     * Fraction of the screen, from 0 to 1, that has to change since the last stored frame for a
+     * frame to be stored; 0 stores every frame. See {@link MotionDetector}.
+     */
+    public float getMotionThreshold() {
+        return mMotionThreshold;
+    }
+
+    /**
+     * Frames captured into memory at full rate when a capture starts and stored once they are
+     * all in, or 0 to store frames as they arrive. See {@link BurstBuffer}.
+     */
+    public int getBurstFrames() {
+        return mBurstFrames;
+    }
+
+    /**
+     * Seconds of frames kept in memory for an instant replay, or 0 to store frames as they
+     * arrive. See {@link ReplayRing}.
+     */
+    public int getReplaySeconds() {
+        return mReplaySeconds;
+    }
+
+    /**
+     * Whether encoded frames are followed by 1/2, 1/4 and 1/8 size copies, see
+     * {@link MipPyramid}.
+     */
+    public boolean isStoreThumbnails() {
+        return mStoreThumbnails;
+    }
+
+    /**
+     * Loopback port frames are streamed live on while capturing, or 0 not to stream. See
+     * {@link FrameStreamServer}.
+     */
+    public int getStreamPort() {
+        return mStreamPort;
+    }
+
+    /**
+     * Whether switching from {@code other} to these settings changes how a running capture has
+     * to be set up, as opposed to values that are read per frame.
+     */
+    public boolean needsRestartFrom(CaptureSettings other) {
+        return mScreenshot != other.mScreenshot
+                || mRawSpool != other.mRawSpool
+                || mCompressSpool != other.mCompressSpool
+                || mScale != other.mScale
+                || mBufferCount != other.mBufferCount
+                || mParallelism != other.mParallelism
+                || mFramesInFlight != other.mFramesInFlight
+                || mBurstFrames != other.mBurstFrames
+                || mReplaySeconds != other.mReplaySeconds
+                || mStreamPort != other.mStreamPort;
+    }
+}
@@ -0,0 +1,356 @@
+package com.example.android.screencapture;
+
+import android.os.Environment;
+
+import com.example.android.common.logger.Log;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps capture output under a byte budget.
+ *
+ * <p>Output is grouped into session directories under a single root. The root is scanned once,
+ * by {@link #scanExistingSessions()}, which the process wide instance runs on a thread of its
+ * own so startup does not wait for it; from then on usage is tracked from the writes reported
+ * through {@link Session#recordWrite(File, long)}, so nothing is rescanned while capturing.
+ * When usage goes over budget the oldest finished sessions are deleted first, whole directories
+ * including files they never reported, then the oldest files of running sessions, such as the
+ * closed segments of a segmented {@link FrameSpool}. The file a session wrote last is never
+ * evicted, since it may still be open.
+ * If that is not enough, or the volume itself is nearly full, {@link #isThrottled()} tells
+ * capture code to drop frames until space is available again.</p>
+ */
+public class CaptureStorage {
+
+    private static final String TAG = "CaptureStorage";
+
+    public static final String ROOT_DIRECTORY = "ScreenCapture";
+    public static final long UNLIMITED = Long.MAX_VALUE;
+    public static final long DEFAULT_MIN_FREE_BYTES = 100L * 1024 * 1024;
+
+    // Free space is queried at most this often, writes in between use the cached answer.
+    private static final long FREE_SPACE_CHECK_INTERVAL_MS = 1000;
+
+    private static CaptureStorage sInstance;
+
+    private final File mRoot;
+    private final ArrayDeque<Session> mSessions = new ArrayDeque<Session>();
+    private long mBudgetBytes;
+    private long mMinFreeBytes;
+    private long mUsedBytes;
+    private long mEvictedBytes;
+
+    private long mLastFreeSpaceCheck;
+    private boolean mLowOnSpace;
+    private boolean mScanned;
+
+    /**
+     * Returns the process wide storage rooted in the public pictures directory.
+     */
+    public static synchronized CaptureStorage getInstance() {
+        if (sInstance == null) {
+            File pictures = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES);
+            final CaptureStorage storage = new CaptureStorage(new File(pictures, ROOT_DIRECTORY),
+                    UNLIMITED, DEFAULT_MIN_FREE_BYTES);
+            // Called from onCreate, so the directory listing is kept off the main thread.
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    storage.scanExistingSessions();
+                }
+            }, TAG).start();
+            sInstance = storage;
+        }
+        return sInstance;
+    }
+
+    /**
+     * Creates a storage that tracks only the sessions it begins until
+     * {@link #scanExistingSessions()} is called.
+     */
+    public CaptureStorage(File root, long budgetBytes, long minFreeBytes) {
+        mRoot = root;
+        mBudgetBytes = budgetBytes;
+        mMinFreeBytes = minFreeBytes;
+    }
+
+    public File getRoot() {
+        return mRoot;
+    }
+
+    public synchronized long getBudgetBytes() {
+        return mBudgetBytes;
+    }
+
+    /**
+     * Changes the budget, evicting immediately if usage is now over it.
+     */
+    public synchronized void setBudgetBytes(long budgetBytes) {
+        mBudgetBytes = budgetBytes;
+        evictIfNeeded();
+    }
+
+    public synchronized void setMinFreeBytes(long minFreeBytes) {
+        mMinFreeBytes = minFreeBytes;
+        mLastFreeSpaceCheck = 0;
+    }
+
+    public synchronized long getUsedBytes() {
+        return mUsedBytes;
+    }
+
+    /**
+     * Total bytes deleted to stay within budget since this storage was created.
+     */
+    public synchronized long getEvictedBytes() {
+        return mEvictedBytes;
+    }
+
+    /**
+     * Starts a new session directory, named after the prefix and the current time.
+     */
+    public synchronized Session beginSession(String prefix) {
+        File directory = new File(mRoot, prefix + "-" + System.currentTimeMillis());
+        int suffix = 1;
+        while (directory.exists()) {
+            directory = new File(mRoot, prefix + "-" + System.currentTimeMillis() + "-" + suffix++);
+        }
+        if (!directory.mkdirs()) {
+            Log.w(TAG, "Unable to create " + directory);
+        }
+        Session session = new Session(directory, true);
+        mSessions.addLast(session);
+        return session;
+    }
+
+    /**
+     * Whether capture should skip writing frames, either because the volume is nearly full or
+     * because the running sessions alone exceed the budget.
+     */
+    public synchronized boolean isThrottled() {
+        long now = System.currentTimeMillis();
+        if (now - mLastFreeSpaceCheck >= FREE_SPACE_CHECK_INTERVAL_MS) {
+            mLastFreeSpaceCheck = now;
+            boolean lowOnSpace = mRoot.getUsableSpace() < mMinFreeBytes;
+            if (lowOnSpace != mLowOnSpace) {
+                Log.w(TAG, lowOnSpace ? "Free space critically low, throttling capture"
+                        : "Free space recovered, resuming capture");
+            }
+            mLowOnSpace = lowOnSpace;
+        }
+        return mLowOnSpace || mUsedBytes > mBudgetBytes;
+    }
+
+    /**
+     * Adds the sessions already on disk, as finished ones older than any begun since, and
+     * evicts if they put usage over budget. Lists the directories without holding the storage,
+     * so capture is not held up meanwhile. Only the first call scans.
+     */
+    public void scanExistingSessions() {
+        synchronized (this) {
+            if (mScanned) {
+                return;
+            }
+            mScanned = true;
+        }
+        if (!mRoot.isDirectory() && !mRoot.mkdirs()) {
+            Log.w(TAG, "Unable to create " + mRoot);
+        }
+        File[] directories = mRoot.listFiles();
+        if (directories == null) {
+            return;
+        }
+        Arrays.sort(directories, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        List<File[]> contents = new ArrayList<File[]>(directories.length);
+        for (File directory : directories) {
+            contents.add(directory.isDirectory() ? directory.listFiles() : null);
+        }
+
+        synchronized (this) {
+            List<File> begun = new ArrayList<File>();
+            for (Session session : mSessions) {
+                begun.add(session.mDirectory);
+            }
+            // Newest first, each put in front of the sessions begun since the scan started.
+            for (int i = directories.length - 1; i >= 0; i--) {
+                File[] files = contents.get(i);
+                if (files == null || begun.contains(directories[i])) {
+                    continue;
+                }
+                Session session = new Session(directories[i], false);
+                for (File file : files) {
+                    session.recordExisting(file);
+                }
+                mSessions.addFirst(session);
+            }
+            evictIfNeeded();
+        }
+    }
+
+    private void evictIfNeeded() {
+        if (mUsedBytes <= mBudgetBytes) {
+            return;
+        }
+
+        // Whole finished sessions go first, oldest to newest.
+        Iterator<Session> sessions = mSessions.iterator();
+        while (mUsedBytes > mBudgetBytes && sessions.hasNext()) {
+            Session session = sessions.next();
+            if (!session.mActive) {
+                session.deleteAll();
+                sessions.remove();
+            }
+        }
+
+        // Then the oldest files of running sessions, keeping the file each wrote last.
+        for (Session session : mSessions) {
+            while (mUsedBytes > mBudgetBytes && session.mFiles.size() > 1) {
+                session.deleteOldest();
+            }
+            if (mUsedBytes <= mBudgetBytes) {
+                break;
+            }
+        }
+    }
+
+    private void adjustUsage(long delta) {
+        mUsedBytes += delta;
+    }
+
+    private void recordEviction(long bytes) {
+        mUsedBytes -= bytes;
+        mEvictedBytes += bytes;
+    }
+
+    /**
+     * A directory of frames written by one capture run.
+     */
+    public class Session {
+
+        private final File mDirectory;
+        private final ArrayDeque<FileEntry> mFiles = new ArrayDeque<FileEntry>();
+        private final Map<String, FileEntry> mEntries = new HashMap<String, FileEntry>();
+        private boolean mActive;
+        private long mBytes;
+
+        private Session(File directory, boolean active) {
+            mDirectory = directory;
+            mActive = active;
+        }
+
+        public File getDirectory() {
+            return mDirectory;
+        }
+
+        /**
+         * Returns a file in this session's directory; its size is tracked once written.
+         */
+        public File newFile(String name) {
+            return new File(mDirectory, name);
+        }
+
+        /**
+         * Reports bytes appended to a file in this session, evicting old data if the budget
+         * is exceeded as a result.
+         */
+        public void recordWrite(File file, long bytes) {
+            synchronized (CaptureStorage.this) {
+                String name = file.getName();
+                FileEntry entry = mEntries.get(name);
+                if (entry == null) {
+                    entry = new FileEntry(file);
+                    mEntries.put(name, entry);
+                    mFiles.addLast(entry);
+                }
+                entry.mBytes += bytes;
+                mBytes += bytes;
+                adjustUsage(bytes);
+                evictIfNeeded();
+            }
+        }
+
+        /**
+         * Marks the session finished, making it a candidate for whole-session eviction.
+         */
+        public void end() {
+            synchronized (CaptureStorage.this) {
+                mActive = false;
+                evictIfNeeded();
+            }
+        }
+
+        public long getBytes() {
+            synchronized (CaptureStorage.this) {
+                return mBytes;
+            }
+        }
+
+        private void recordExisting(File file) {
+            FileEntry entry = new FileEntry(file);
+            entry.mBytes = file.length();
+            mEntries.put(file.getName(), entry);
+            mFiles.addLast(entry);
+            mBytes += entry.mBytes;
+            adjustUsage(entry.mBytes);
+        }
+
+        private void deleteOldest() {
+            FileEntry entry = mFiles.removeFirst();
+            mEntries.remove(entry.mFile.getName());
+            delete(entry);
+        }
+
+        private void deleteAll() {
+            List<FileEntry> entries = new ArrayList<FileEntry>(mFiles);
+            mFiles.clear();
+            mEntries.clear();
+            for (FileEntry entry : entries) {
+                delete(entry);
+            }
+            // Files never reported, such as ones left by a crash, would keep the directory.
+            File[] leftovers = mDirectory.listFiles();
+            if (leftovers != null) {
+                for (File file : leftovers) {
+                    if (!file.delete()) {
+                        Log.w(TAG, "Unable to delete " + file);
+                    }
+                }
+            }
+            if (!mDirectory.delete()) {
+                Log.w(TAG, "Unable to delete " + mDirectory);
+            }
+        }
+
+        private void delete(FileEntry entry) {
+            if (!entry.mFile.delete() && entry.mFile.exists()) {
+                Log.w(TAG, "Unable to delete " + entry.mFile);
+            }
+            mBytes -= entry.mBytes;
+            recordEviction(entry.mBytes);
+        }
+    }
+
+    private static class FileEntry {
+        final File mFile;
+        long mBytes;
+
+        FileEntry(File file) {
+            mFile = file;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.android.screencapture;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * CRC32 over the contents of a {@link ByteBuffer}, computing the same value as
+ * {@link java.util.zip.CRC32}.
+ *
+ * <p>{@code CRC32.update(ByteBuffer)} only exists from API 26, and before that checksumming a
+ * direct buffer meant copying it into a heap array first. This reads the buffer in place, four
+ * bytes at a time using slicing-by-4 tables.</p>
+ */
+public class DirectCrc32 {
+
+    private static final int[][] TABLES = new int[4][256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int c = i;
+            for (int k = 0; k < 8; k++) {
+                c = (c & 1) != 0 ? 0xEDB88320 ^ (c >>> 1) : c >>> 1;
+            }
+            TABLES[0][i] = c;
+        }
+        for (int i = 0; i < 256; i++) {
+            for (int t = 1; t < 4; t++) {
+                int previous = TABLES[t - 1][i];
+                TABLES[t][i] = (previous >>> 8) ^ TABLES[0][previous & 0xFF];
+            }
+        }
+    }
+
+    private int mCrc = 0xFFFFFFFF;
+
+    public void reset() {
+        mCrc = 0xFFFFFFFF;
+    }
+
+    /**
+     * Adds the bytes between the buffer's position and limit, leaving both unchanged.
+     */
+    public void update(ByteBuffer buffer) {
+        final int[] t0 = TABLES[0];
+        final int[] t1 = TABLES[1];
+        final int[] t2 = TABLES[2];
+        final int[] t3 = TABLES[3];
+        final ByteOrder order = buffer.order();
+        final boolean littleEndian = order == ByteOrder.LITTLE_ENDIAN;
+
+        int crc = mCrc;
+        int i = buffer.position();
+        final int limit = buffer.limit();
+        final int wordLimit = limit - 3;
+        for (; i < wordLimit; i += 4) {
+            int word = buffer.getInt(i);
+            if (!littleEndian) {
+                word = Integer.reverseBytes(word);
+            }
+            crc ^= word;
+            crc = t3[crc & 0xFF] ^ t2[(crc >>> 8) & 0xFF]
+                    ^ t1[(crc >>> 16) & 0xFF] ^ t0[crc >>> 24];
+        }
+        for (; i < limit; i++) {
+            crc = t0[(crc ^ buffer.get(i)) & 0xFF] ^ (crc >>> 8);
+        }
+        mCrc = crc;
+    }
+
+    public long getValue() {
+        return ~mCrc & 0xFFFFFFFFL;
+    }
+}
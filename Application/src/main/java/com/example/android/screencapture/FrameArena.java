@@ -0,0 +1,177 @@
+package com.example.android.screencapture;
+
+import com.example.android.common.logger.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Fixed size direct buffers for staging frames, allocated once and reused, so copying a frame
+ * out of an image, hashing and encoding it allocates nothing per frame. On ART a direct buffer
+ * is still a non-movable array on the Java heap and counts against the heap limit, so slabs are
+ * bounded like any other heap memory.
+ *
+ * <p>Every slab has the same size, that of one frame, and is allocated on first use, up to
+ * {@code maxSlabs}; {@link #acquire()} then waits for one to be released, which bounds memory
+ * like the reader's own buffers do. A slab is reference counted so several consumers can share
+ * it, for instance the jobs encoding different regions of one frame: each consumer
+ * {@link Slab#retain()}s it and {@link Slab#release()}s it when done, and the last release
+ * returns it to the arena. Free slabs beyond the first are dropped under memory pressure.</p>
+ *
+ * <p>With leak tracking on, as in debug builds, the arena remembers where each outstanding slab
+ * was acquired and {@link #reportLeaks()} logs those still out, and releasing a slab once too
+ * often throws rather than corrupting the pool.</p>
+ */
+public class FrameArena implements MemoryGovernor.Client {
+
+    private static final String TAG = "FrameArena";
+
+    /**
+     * One staging buffer, held through its reference count.
+     */
+    public static class Slab {
+
+        private final FrameArena mArena;
+        private final ByteBuffer mBuffer;
+        // Guarded by the arena.
+        private int mReferences;
+
+        private Slab(FrameArena arena, int bytes) {
+            mArena = arena;
+            mBuffer = ByteBuffer.allocateDirect(bytes);
+        }
+
+        /**
+         * A view of the whole slab, cleared; its position and limit are the caller's.
+         */
+        public ByteBuffer getBuffer() {
+            ByteBuffer buffer = mBuffer.duplicate();
+            buffer.clear();
+            return buffer;
+        }
+
+        /**
+         * Adds a reference for another consumer.
+         */
+        public Slab retain() {
+            synchronized (mArena) {
+                if (mReferences <= 0) {
+                    throw new IllegalStateException("Slab retained after its last release");
+                }
+                mReferences++;
+            }
+            return this;
+        }
+
+        /**
+         * Drops a reference, returning the slab to the arena with the last one.
+         */
+        public void release() {
+            mArena.release(this);
+        }
+    }
+
+    private final int mSlabBytes;
+    private final int mMaxSlabs;
+    private final ArrayDeque<Slab> mFree = new ArrayDeque<Slab>();
+    // Slabs out, with where they were acquired; only kept when tracking leaks.
+    private final Map<Slab, Throwable> mOutstanding;
+    private int mAllocated;
+    private int mInUse;
+
+    /**
+     * @param trackLeaks Whether to record where slabs are acquired, typically
+     *                   {@code BuildConfig.DEBUG}.
+     */
+    public FrameArena(int slabBytes, int maxSlabs, boolean trackLeaks) {
+        mSlabBytes = slabBytes;
+        mMaxSlabs = Math.max(1, maxSlabs);
+        mOutstanding = trackLeaks ? new IdentityHashMap<Slab, Throwable>() : null;
+    }
+
+    /**
+     * Takes a slab with one reference, waiting while all {@code maxSlabs} are out.
+     */
+    public synchronized Slab acquire() throws InterruptedException {
+        while (mFree.isEmpty() && mAllocated >= mMaxSlabs) {
+            wait();
+        }
+        Slab slab = mFree.poll();
+        if (slab == null) {
+            slab = new Slab(this, mSlabBytes);
+            mAllocated++;
+        }
+        slab.mReferences = 1;
+        mInUse++;
+        if (mOutstanding != null) {
+            mOutstanding.put(slab, new Throwable("Slab acquired here"));
+        }
+        return slab;
+    }
+
+    public int getSlabBytes() {
+        return mSlabBytes;
+    }
+
+    /**
+     * Slabs currently allocated, in use or free.
+     */
+    public synchronized int getAllocated() {
+        return mAllocated;
+    }
+
+    public synchronized int getInUse() {
+        return mInUse;
+    }
+
+    /**
+     * Logs every slab still out, with where it was acquired when leaks are tracked.
+     *
+     * @return The number of slabs still out.
+     */
+    public synchronized int reportLeaks() {
+        if (mInUse > 0) {
+            Log.w(TAG, "%d frame slabs of %d bytes never released", mInUse, mSlabBytes);
+        }
+        if (mOutstanding != null) {
+            for (Throwable acquired : mOutstanding.values()) {
+                Log.w(TAG, "Leaked frame slab", acquired);
+            }
+        }
+        return mInUse;
+    }
+
+    @Override
+    public synchronized void onMemoryPressure(int pressure) {
+        if (pressure < MemoryGovernor.PRESSURE_LOW) {
+            return;
+        }
+        // Direct memory is only given back once the buffers are collected.
+        while (mFree.size() > 1) {
+            mFree.poll();
+            mAllocated--;
+        }
+        notifyAll();
+    }
+
+    private synchronized void release(Slab slab) {
+        if (slab.mReferences <= 0) {
+            if (mOutstanding != null) {
+                throw new IllegalStateException("Slab released more often than retained");
+            }
+            Log.e(TAG, "Slab released more often than retained");
+            return;
+        }
+        if (--slab.mReferences > 0) {
+            return;
+        }
+        mInUse--;
+        if (mOutstanding != null) {
+            mOutstanding.remove(slab);
+        }
+        mFree.push(slab);
+        notifyAll();
+    }
+}
@@ -0,0 +1,253 @@
+package com.example.android.screencapture;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Searchable set of {@link PerceptualHash} values, answering "which frames are within a Hamming
+ * distance of this hash" without comparing the query to every frame.
+ *
+ * <p>Uses multi-index hashing: every 64-bit hash is split into four 16-bit chunks and filed
+ * under each chunk value in four tables. If two hashes are at most {@code r} bits apart, one of
+ * their chunks is at most {@code r / 4} bits apart, so a query only looks in the buckets of
+ * chunk values within that radius of its own chunks and checks the full distance of what it
+ * finds there. For the small radii near-duplicate search uses, that is a few hundred buckets
+ * however many frames are indexed. Buckets are linked lists kept in int arrays, so an index of
+ * hundreds of thousands of frames is a handful of arrays rather than as many objects.</p>
+ *
+ * <p>A capture session appends one {@link FrameRecordWriter} record per stored frame to
+ * {@link #FILE_NAME} in its directory, see {@link #encodeRecord}; {@link #load(File)} builds an
+ * index from such a file. Not thread safe.</p>
+ */
+public class FrameHashIndex {
+
+    public static final String FILE_NAME = "frames.hashes";
+    public static final int RECORD_SIZE = 16;
+
+    private static final int CHUNKS = 4;
+    private static final int CHUNK_BITS = 16;
+    private static final int BUCKETS = 1 << CHUNK_BITS;
+
+    /**
+     * A frame found by a search.
+     */
+    public static final class Match {
+        private final long mFrame;
+        private final long mHash;
+        private final int mDistance;
+
+        Match(long frame, long hash, int distance) {
+            mFrame = frame;
+            mHash = hash;
+            mDistance = distance;
+        }
+
+        /**
+         * Number of the frame in the session spool, counting from 0.
+         */
+        public long getFrame() {
+            return mFrame;
+        }
+
+        public long getHash() {
+            return mHash;
+        }
+
+        public int getDistance() {
+            return mDistance;
+        }
+    }
+
+    private final int[][] mHeads = new int[CHUNKS][BUCKETS];
+    private int[][] mNext = new int[CHUNKS][];
+    private long[] mHashes;
+    private long[] mFrames;
+    private int mCount;
+
+    // Query state, so the bucket walk does not allocate.
+    private int[] mSeen;
+    private int mQueryStamp;
+    private long mQuery;
+    private int mMaxDistance;
+    private int mBest;
+    private int mBestEntry;
+    private List<Match> mResults;
+
+    public FrameHashIndex() {
+        this(1024);
+    }
+
+    public FrameHashIndex(int initialCapacity) {
+        int capacity = Math.max(16, initialCapacity);
+        for (int c = 0; c < CHUNKS; c++) {
+            Arrays.fill(mHeads[c], -1);
+            mNext[c] = new int[capacity];
+        }
+        mHashes = new long[capacity];
+        mFrames = new long[capacity];
+        mSeen = new int[capacity];
+    }
+
+    /**
+     * Reads the hash records a capture session wrote, stopping at a torn tail.
+     */
+    public static FrameHashIndex load(File file) throws IOException {
+        FrameHashIndex index = new FrameHashIndex((int) Math.min(Integer.MAX_VALUE / 2,
+                file.length() / (FrameRecordWriter.RECORD_HEADER_SIZE + RECORD_SIZE)));
+        FileInputStream input = new FileInputStream(file);
+        try {
+            FrameRecordReader reader = new FrameRecordReader(input.getChannel());
+            byte[] record;
+            while ((record = reader.next()) != null) {
+                if (reader.getLength() == RECORD_SIZE) {
+                    ByteBuffer buffer = ByteBuffer.wrap(record, 0, RECORD_SIZE)
+                            .order(ByteOrder.LITTLE_ENDIAN);
+                    long frame = buffer.getLong();
+                    index.add(frame, buffer.getLong());
+                }
+            }
+        } finally {
+            input.close();
+        }
+        return index;
+    }
+
+    /**
+     * Fills {@code record} with the {@link #RECORD_SIZE} byte payload of a hash record.
+     */
+    public static void encodeRecord(long frame, long hash, byte[] record) {
+        ByteBuffer.wrap(record, 0, RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+                .putLong(frame).putLong(hash);
+    }
+
+    public void add(long frame, long hash) {
+        if (mCount == mHashes.length) {
+            int capacity = mCount * 2;
+            mHashes = Arrays.copyOf(mHashes, capacity);
+            mFrames = Arrays.copyOf(mFrames, capacity);
+            mSeen = Arrays.copyOf(mSeen, capacity);
+            for (int c = 0; c < CHUNKS; c++) {
+                mNext[c] = Arrays.copyOf(mNext[c], capacity);
+            }
+        }
+        int entry = mCount++;
+        mHashes[entry] = hash;
+        mFrames[entry] = frame;
+        mSeen[entry] = 0;
+        for (int c = 0; c < CHUNKS; c++) {
+            int bucket = chunk(hash, c);
+            mNext[c][entry] = mHeads[c][bucket];
+            mHeads[c][bucket] = entry;
+        }
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Returns every frame within {@code maxDistance} bits of {@code hash}, nearest first.
+     */
+    public List<Match> search(long hash, int maxDistance) {
+        List<Match> results = new ArrayList<Match>();
+        beginQuery(hash, maxDistance, results);
+        int radius = Math.min(maxDistance, 64) / CHUNKS;
+        for (int flips = 0; flips <= radius; flips++) {
+            visitChunks(flips);
+        }
+        mResults = null;
+        Collections.sort(results, new Comparator<Match>() {
+            @Override
+            public int compare(Match lhs, Match rhs) {
+                return lhs.mDistance - rhs.mDistance;
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Returns the frame nearest to {@code hash}, or null if none is within {@code maxDistance}
+     * bits. When several are equally near, which one is returned is unspecified.
+     */
+    public Match nearest(long hash, int maxDistance) {
+        beginQuery(hash, maxDistance, null);
+        int radius = Math.min(maxDistance, 64) / CHUNKS;
+        for (int flips = 0; flips <= radius; flips++) {
+            visitChunks(flips);
+            // Frames not seen yet differ by more than this many bits in every chunk.
+            if (mBest < (flips + 1) * CHUNKS) {
+                break;
+            }
+        }
+        if (mBest > maxDistance) {
+            return null;
+        }
+        return new Match(mFrames[mBestEntry], mHashes[mBestEntry], mBest);
+    }
+
+    private void beginQuery(long hash, int maxDistance, List<Match> results) {
+        if (++mQueryStamp == 0) {
+            // Wrapped; old stamps could now look like this query's.
+            Arrays.fill(mSeen, 0, mCount, 0);
+            mQueryStamp = 1;
+        }
+        mQuery = hash;
+        mMaxDistance = maxDistance;
+        mBest = Integer.MAX_VALUE;
+        mBestEntry = -1;
+        mResults = results;
+    }
+
+    /**
+     * Visits the buckets whose chunk value differs from the query's in exactly {@code flips}
+     * bits, in every table.
+     */
+    private void visitChunks(int flips) {
+        for (int c = 0; c < CHUNKS; c++) {
+            visitBuckets(c, chunk(mQuery, c), 0, flips);
+        }
+    }
+
+    private void visitBuckets(int c, int value, int fromBit, int flips) {
+        if (flips == 0) {
+            visitBucket(c, value);
+            return;
+        }
+        for (int bit = fromBit; bit <= CHUNK_BITS - flips; bit++) {
+            visitBuckets(c, value ^ (1 << bit), bit + 1, flips - 1);
+        }
+    }
+
+    private void visitBucket(int c, int bucket) {
+        int[] next = mNext[c];
+        for (int entry = mHeads[c][bucket]; entry >= 0; entry = next[entry]) {
+            if (mSeen[entry] == mQueryStamp) {
+                continue;
+            }
+            mSeen[entry] = mQueryStamp;
+            int distance = Long.bitCount(mHashes[entry] ^ mQuery);
+            if (distance > mMaxDistance) {
+                continue;
+            }
+            if (distance < mBest) {
+                mBest = distance;
+                mBestEntry = entry;
+            }
+            if (mResults != null) {
+                mResults.add(new Match(mFrames[entry], mHashes[entry], distance));
+            }
+        }
+    }
+
+    private static int chunk(long hash, int c) {
+        return (int) (hash >>> (c * CHUNK_BITS)) & (BUCKETS - 1);
+    }
+}
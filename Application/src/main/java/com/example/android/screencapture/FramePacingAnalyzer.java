@@ -0,0 +1,184 @@
+package com.example.android.screencapture;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Tracks frame pacing and per-frame latency from {@link android.media.Image#getTimestamp()},
+ * to tell whether missing frames come from the compositor, the capture callback or storage.
+ *
+ * <p>Three things are measured, over the last {@link #WINDOW} frames:</p>
+ * <ul>
+ *     <li>the interval between image timestamps, with its jitter (standard deviation) and the
+ *     number of stutters, intervals over twice the median; these reflect the compositor;</li>
+ *     <li>the callback latency, from the image timestamp to the callback picking it up, which
+ *     grows when the capture thread falls behind and images queue in the reader;</li>
+ *     <li>the store latency, from the callback picking it up to the frame being written.</li>
+ * </ul>
+ *
+ * <p>Image timestamps of a VirtualDisplay are on the {@link System#nanoTime()} clock, so pass
+ * times from that clock. A virtual display only produces frames when its content changes, so
+ * long intervals on an idle screen are counted as stutters too; the numbers mean most while
+ * something animates. Everything is kept in preallocated rings, nothing is allocated per frame.
+ * Not thread safe; call it from the capture thread.</p>
+ */
+public class FramePacingAnalyzer {
+
+    public static final int WINDOW = 120;
+    public static final long REPORT_INTERVAL_NS = 5000000000L;
+
+    private final long[] mTimestamps = new long[WINDOW];
+    private final long[] mIntervals = new long[WINDOW];
+    private final long[] mCallbackLatencies = new long[WINDOW];
+    private final long[] mStoreLatencies = new long[WINDOW];
+    private final long[] mScratch = new long[WINDOW];
+    private long mFrames;
+    private long mStoredFrames;
+    private long mStutters;
+    private long mLastTimestamp;
+    private long mMedianInterval;
+    private long mLastReportNs;
+
+    /**
+     * Records a frame delivered by the reader, stored or not.
+     *
+     * @param timestampNs The image timestamp.
+     * @param arrivalNs When the callback picked the image up.
+     */
+    public void onFrameArrived(long timestampNs, long arrivalNs) {
+        int slot = (int) (mFrames % WINDOW);
+        mTimestamps[slot] = timestampNs;
+        mCallbackLatencies[slot] = arrivalNs - timestampNs;
+        if (mFrames > 0) {
+            long interval = timestampNs - mLastTimestamp;
+            mIntervals[(int) ((mFrames - 1) % WINDOW)] = interval;
+            // Refreshed every so often, sorting the window per frame would cost more than the
+            // rest of the analysis.
+            if (mFrames <= WINDOW || mFrames % 30 == 0) {
+                mMedianInterval = percentile(mIntervals, (int) Math.min(mFrames, WINDOW), 50);
+            }
+            if (mMedianInterval > 0 && interval > 2 * mMedianInterval) {
+                mStutters++;
+            }
+        }
+        mLastTimestamp = timestampNs;
+        mFrames++;
+    }
+
+    /**
+     * Records that the frame picked up at {@code arrivalNs} has been written.
+     */
+    public void onFrameStored(long arrivalNs, long storedNs) {
+        mStoreLatencies[(int) (mStoredFrames % WINDOW)] = storedNs - arrivalNs;
+        mStoredFrames++;
+    }
+
+    public long getFrameCount() {
+        return mFrames;
+    }
+
+    public long getStoredFrameCount() {
+        return mStoredFrames;
+    }
+
+    public long getStutterCount() {
+        return mStutters;
+    }
+
+    /**
+     * Frames per second over the window, from image timestamps.
+     */
+    public double getRollingFps() {
+        int count = (int) Math.min(mFrames, WINDOW);
+        if (count < 2) {
+            return 0;
+        }
+        long newest = mTimestamps[(int) ((mFrames - 1) % WINDOW)];
+        long oldest = mTimestamps[(int) ((mFrames - count) % WINDOW)];
+        return newest > oldest ? (count - 1) * 1e9 / (newest - oldest) : 0;
+    }
+
+    public double getMeanIntervalMs() {
+        int count = intervalCount();
+        if (count == 0) {
+            return 0;
+        }
+        long sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += mIntervals[i];
+        }
+        return sum / (double) count / 1e6;
+    }
+
+    /**
+     * Standard deviation of the frame interval in milliseconds.
+     */
+    public double getJitterMs() {
+        int count = intervalCount();
+        if (count < 2) {
+            return 0;
+        }
+        double mean = getMeanIntervalMs() * 1e6;
+        double squares = 0;
+        for (int i = 0; i < count; i++) {
+            double deviation = mIntervals[i] - mean;
+            squares += deviation * deviation;
+        }
+        return Math.sqrt(squares / count) / 1e6;
+    }
+
+    /**
+     * Callback latency percentile in milliseconds, {@code percent} from 0 to 100.
+     */
+    public double getCallbackLatencyMs(int percent) {
+        return percentile(mCallbackLatencies, (int) Math.min(mFrames, WINDOW), percent) / 1e6;
+    }
+
+    /**
+     * Store latency percentile in milliseconds, {@code percent} from 0 to 100.
+     */
+    public double getStoreLatencyMs(int percent) {
+        return percentile(mStoreLatencies, (int) Math.min(mStoredFrames, WINDOW), percent) / 1e6;
+    }
+
+    /**
+     * Whether {@link #REPORT_INTERVAL_NS} has passed since this last returned true, so callers
+     * log a summary every few seconds rather than per frame.
+     */
+    public boolean shouldReport(long nowNs) {
+        if (mLastReportNs == 0) {
+            mLastReportNs = nowNs;
+            return false;
+        }
+        if (nowNs - mLastReportNs < REPORT_INTERVAL_NS) {
+            return false;
+        }
+        mLastReportNs = nowNs;
+        return true;
+    }
+
+    /**
+     * One line summary for the log.
+     */
+    public String summarize() {
+        return String.format(Locale.US, "%.1f fps, interval %.1f ms +/- %.1f, %d stutters, "
+                        + "callback latency p50 %.1f p95 %.1f ms, store latency p50 %.1f p95 %.1f ms, "
+                        + "%d of %d frames stored",
+                getRollingFps(), getMeanIntervalMs(), getJitterMs(), mStutters,
+                getCallbackLatencyMs(50), getCallbackLatencyMs(95),
+                getStoreLatencyMs(50), getStoreLatencyMs(95), mStoredFrames, mFrames);
+    }
+
+    private int intervalCount() {
+        return (int) Math.min(Math.max(0, mFrames - 1), WINDOW);
+    }
+
+    private long percentile(long[] values, int count, int percent) {
+        if (count == 0) {
+            return 0;
+        }
+        System.arraycopy(values, 0, mScratch, 0, count);
+        Arrays.sort(mScratch, 0, count);
+        return mScratch[Math.min(count - 1, count * percent / 100)];
+    }
+}
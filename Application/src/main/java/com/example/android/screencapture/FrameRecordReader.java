@@ -0,0 +1,92 @@
+package com.example.android.screencapture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Reads the records written by {@link FrameRecordWriter}, stopping at the first record that is
+ * incomplete or fails its checksum.
+ */
+public class FrameRecordReader {
+
+    private final FileChannel mChannel;
+    private final ByteBuffer mHeader = ByteBuffer.allocate(FrameRecordWriter.RECORD_HEADER_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    private final CRC32 mCrc = new CRC32();
+    private byte[] mPayload = new byte[0];
+    private long mPosition;
+    private int mLength;
+
+    public FrameRecordReader(FileChannel channel) {
+        mChannel = channel;
+    }
+
+    /**
+     * Reads the next record.
+     *
+     * @return A buffer holding the payload in its first {@link #getLength()} bytes, reused by the
+     *         next call, or null at the end of the intact records.
+     */
+    public byte[] next() throws IOException {
+        long size = mChannel.size();
+        if (size - mPosition < FrameRecordWriter.RECORD_HEADER_SIZE) {
+            return null;
+        }
+        mHeader.clear();
+        if (!readFully(mHeader, mPosition)) {
+            return null;
+        }
+        mHeader.flip();
+        int magic = mHeader.getInt();
+        int length = mHeader.getInt();
+        int crc = mHeader.getInt();
+        long payloadStart = mPosition + FrameRecordWriter.RECORD_HEADER_SIZE;
+        if (magic != FrameRecordWriter.RECORD_MAGIC || length < 0 || size - payloadStart < length) {
+            return null;
+        }
+
+        if (mPayload.length < length) {
+            mPayload = new byte[length];
+        }
+        if (!readFully(ByteBuffer.wrap(mPayload, 0, length), payloadStart)) {
+            return null;
+        }
+        mCrc.reset();
+        mCrc.update(mPayload, 0, length);
+        if ((int) mCrc.getValue() != crc) {
+            return null;
+        }
+
+        mLength = length;
+        mPosition = payloadStart + length;
+        return mPayload;
+    }
+
+    /**
+     * Payload length of the record last returned by {@link #next()}.
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Offset just past the last intact record read so far.
+     */
+    public long getValidLength() {
+        return mPosition;
+    }
+
+    private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = mChannel.read(buffer, position);
+            if (read < 0) {
+                return false;
+            }
+            position += read;
+        }
+        return true;
+    }
+}
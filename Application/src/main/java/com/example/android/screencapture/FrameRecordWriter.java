@@ -0,0 +1,253 @@
+package com.example.android.screencapture;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Appends checksummed records to a single file kept open for a whole capture session.
+ *
+ * <p>Every record is a little endian header of magic, payload length and CRC32 of the payload,
+ * followed by the payload. Small records are staged in memory and written together; the file
+ * is only synced once enough bytes or time have accumulated since the last sync (group commit).
+ * A crash therefore loses at most the records appended since the last commit. The time window
+ * is only checked as records are appended; when they may stop arriving, call
+ * {@link #commitIfDue()} periodically so the last ones do not stay unsynced. Appends and commits
+ * are synchronized, so that can happen on another thread. When an existing file is opened it
+ * is scanned first and truncated after the last intact record, so a torn write at the tail
+ * never reaches readers.</p>
+ *
+ * <p>{@link #append(ByteBuffer[], int)} writes a record straight from a list of buffers with a
+ * gather write, so payloads held in direct buffers are never copied onto the heap. Records of
+ * more than 1024 buffers, such as a tall frame written row by row, take one write per 1024.</p>
+ */
+public class FrameRecordWriter implements Closeable {
+
+    public static final int RECORD_MAGIC = 0x31524653;
+    public static final int RECORD_HEADER_SIZE = 12;
+
+    public static final long DEFAULT_SYNC_BYTES = 4L * 1024 * 1024;
+    public static final long DEFAULT_SYNC_INTERVAL_MS = 1000;
+    private static final int STAGING_CAPACITY = 256 * 1024;
+    // IOV_MAX: older libcore passes a gather write straight to writev, which takes no more.
+    private static final int MAX_GATHER_BUFFERS = 1024;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final long mSyncBytes;
+    private final long mSyncIntervalMs;
+
+    private final ByteBuffer mStaging = ByteBuffer.allocate(STAGING_CAPACITY)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer mHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    private ByteBuffer[] mGather = new ByteBuffer[2];
+    private int[] mPositions = new int[0];
+    private final CRC32 mCrc = new CRC32();
+    private final DirectCrc32 mDirectCrc = new DirectCrc32();
+
+    private long mUncommittedBytes;
+    private long mLastCommitTime;
+    private long mRecordCount;
+    private long mCommitCount;
+    private long mRecoveredBytes;
+
+    /**
+     * Opens or creates the file, discarding any torn records at its end.
+     *
+     * @param syncBytes Commit once this many bytes have been appended since the last commit.
+     * @param syncIntervalMs Commit once this much time has passed since the last commit.
+     */
+    public FrameRecordWriter(File file, long syncBytes, long syncIntervalMs) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        mSyncBytes = syncBytes;
+        mSyncIntervalMs = syncIntervalMs;
+
+        long size = mChannel.size();
+        long valid = recover(mChannel);
+        if (valid < size) {
+            mChannel.truncate(valid);
+            mChannel.force(true);
+            mRecoveredBytes = size - valid;
+        }
+        mChannel.position(valid);
+        mLastCommitTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Scans a record file from the start and returns the length of its intact prefix.
+     */
+    public static long recover(FileChannel channel) throws IOException {
+        FrameRecordReader reader = new FrameRecordReader(channel);
+        while (reader.next() != null) {
+            // Keep going until the first missing or damaged record.
+        }
+        return reader.getValidLength();
+    }
+
+    /**
+     * Appends one record. It becomes durable with the next commit, which may be this call.
+     */
+    public synchronized void append(byte[] payload, int offset, int length) throws IOException {
+        mCrc.reset();
+        mCrc.update(payload, offset, length);
+        int crc = (int) mCrc.getValue();
+
+        int recordSize = RECORD_HEADER_SIZE + length;
+        if (recordSize > mStaging.remaining()) {
+            flushStaging();
+        }
+        if (recordSize <= mStaging.remaining()) {
+            mStaging.putInt(RECORD_MAGIC).putInt(length).putInt(crc);
+            mStaging.put(payload, offset, length);
+        } else {
+            // Too large to stage, write header and payload straight through in one call.
+            mHeader.clear();
+            mHeader.putInt(RECORD_MAGIC).putInt(length).putInt(crc);
+            mHeader.flip();
+            mGather[0] = mHeader;
+            mGather[1] = ByteBuffer.wrap(payload, offset, length);
+            writeFully(mGather, 2);
+            mGather[1] = null;
+        }
+
+        recordAppended(recordSize);
+    }
+
+    /**
+     * Appends one record whose payload is the concatenation of the remaining bytes of the first
+     * {@code count} buffers. The buffers' positions are left unchanged. Staged records are written
+     * first to keep the file in append order, then header and payload go out in one gather write.
+     */
+    public synchronized void append(ByteBuffer[] parts, int count) throws IOException {
+        mDirectCrc.reset();
+        long length = 0;
+        for (int i = 0; i < count; i++) {
+            mDirectCrc.update(parts[i]);
+            length += parts[i].remaining();
+        }
+        if (length > Integer.MAX_VALUE - RECORD_HEADER_SIZE) {
+            throw new IOException("Record too large: " + length + " bytes");
+        }
+
+        flushStaging();
+        mHeader.clear();
+        mHeader.putInt(RECORD_MAGIC).putInt((int) length).putInt((int) mDirectCrc.getValue());
+        mHeader.flip();
+
+        if (mPositions.length < count) {
+            mGather = new ByteBuffer[Math.max(2, count + 1)];
+            mPositions = new int[count];
+        }
+        mGather[0] = mHeader;
+        for (int i = 0; i < count; i++) {
+            mGather[i + 1] = parts[i];
+            mPositions[i] = parts[i].position();
+        }
+        try {
+            writeFully(mGather, count + 1);
+        } finally {
+            for (int i = 0; i < count; i++) {
+                parts[i].position(mPositions[i]);
+                mGather[i + 1] = null;
+            }
+        }
+
+        recordAppended(RECORD_HEADER_SIZE + length);
+    }
+
+    private void recordAppended(long recordSize) throws IOException {
+        mRecordCount++;
+        mUncommittedBytes += recordSize;
+        if (mUncommittedBytes >= mSyncBytes
+                || System.currentTimeMillis() - mLastCommitTime >= mSyncIntervalMs) {
+            commit();
+        }
+    }
+
+    /**
+     * Writes out staged records and syncs the file, making every appended record durable.
+     */
+    public synchronized void commit() throws IOException {
+        flushStaging();
+        if (mUncommittedBytes > 0) {
+            mChannel.force(false);
+            mCommitCount++;
+        }
+        mUncommittedBytes = 0;
+        mLastCommitTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Commits if records are waiting and the time window has passed since the last commit.
+     *
+     * @return Whether a commit was made.
+     */
+    public synchronized boolean commitIfDue() throws IOException {
+        if (mUncommittedBytes == 0
+                || System.currentTimeMillis() - mLastCommitTime < mSyncIntervalMs) {
+            return false;
+        }
+        commit();
+        return true;
+    }
+
+    private void flushStaging() throws IOException {
+        if (mStaging.position() == 0) {
+            return;
+        }
+        mStaging.flip();
+        while (mStaging.hasRemaining()) {
+            mChannel.write(mStaging);
+        }
+        mStaging.clear();
+    }
+
+    private void writeFully(ByteBuffer[] buffers, int count) throws IOException {
+        long remaining = 0;
+        for (int i = 0; i < count; i++) {
+            remaining += buffers[i].remaining();
+        }
+        int first = 0;
+        while (remaining > 0) {
+            remaining -= mChannel.write(buffers, first,
+                    Math.min(count - first, MAX_GATHER_BUFFERS));
+            while (first < count && !buffers[first].hasRemaining()) {
+                first++;
+            }
+        }
+    }
+
+    public synchronized long getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * Number of syncs issued; each covers every record appended since the previous one.
+     */
+    public synchronized long getCommitCount() {
+        return mCommitCount;
+    }
+
+    /**
+     * Bytes of torn records truncated from the end of the file when it was opened.
+     */
+    public long getRecoveredBytes() {
+        return mRecoveredBytes;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            commit();
+        } finally {
+            mFile.close();
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package com.example.android.screencapture;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Appends frames to a spool file for the length of a capture session.
+ *
+ * <p>Each frame is one {@link FrameRecordWriter} record, so a crash can only lose whole frames.
+ * A record starts with a little endian header of width, height, pixel format, band height and
+ * flags. Raw RGBA_8888 frames follow it with the frame split into bands of whole rows, every
+ * band written as its raw length, its stored length and the stored bytes. When compression is
+ * enabled a band is stored as an LZ4 block, unless that would not make it smaller, in which case
+ * the stored length equals the raw length and the bytes are kept as is. Encoded frames, such as
+ * JPEG, PNG or WebP, follow the header with the encoded bytes. Grayscale frames are stored like
+ * raw ones, with {@link #FORMAT_Y8} as the pixel format and one byte per pixel, and so are
+ * {@link #FORMAT_I420} and {@link #FORMAT_NV12} frames from {@link YuvConverter}, whose chroma
+ * follows the luma as another {@code height / 2} rows of {@code width} bytes. Smaller
+ * {@link MipPyramid} levels of an encoded frame directly follow it, each an encoded frame of its
+ * own with the level in the {@link #FLAG_MIP_LEVEL_MASK} bits of its flags.</p>
+ *
+ * <p>With a segment size the spool rolls over to a new file, named by
+ * {@link #segmentFile(File, int)}, at the first frame that starts past that size, so a long
+ * capture is a series of files whose older ones can be deleted while it runs, see
+ * {@link CaptureStorage}. A frame never spans two files, and neither do its pyramid levels.
+ * Frames are numbered across segments in the order they were written.</p>
+ *
+ * <p>Uncompressed raw frames are packed: {@link #FLAG_PACKED} is set and the rows follow the
+ * header directly, without bands. They are written straight from the image plane with one
+ * gather write of per-row views that skip the row padding, so the pixels never pass through
+ * the Java heap.</p>
+ */
+public class FrameSpool implements Closeable {
+
+    public static final int PIXEL_FORMAT = 4;
+    // Size of a PIXEL_FORMAT pixel, which as a format code only happens to be the same number.
+    public static final int BYTES_PER_PIXEL = 4;
+    public static final int FORMAT_JPEG = 0x100;
+    // Not ImageFormat codes, there are none for these.
+    public static final int FORMAT_PNG = 0x1001;
+    public static final int FORMAT_WEBP = 0x1002;
+    // ImageFormat.Y8, 8-bit luma.
+    public static final int FORMAT_Y8 = 0x20203859;
+    // FourCC codes like Y8, for YUV 4:2:0 with even width and height.
+    public static final int FORMAT_I420 = 0x30323449;
+    public static final int FORMAT_NV12 = 0x3231564e;
+    public static final int FLAG_LZ4 = 1;
+    public static final int FLAG_PACKED = 2;
+    // Encoded frames only: pyramid level, 0 for the full frame, see MipPyramid.
+    public static final int FLAG_MIP_LEVEL_SHIFT = 4;
+    public static final int FLAG_MIP_LEVEL_MASK = 0x30;
+    public static final int FRAME_HEADER_SIZE = 20;
+    public static final int BAND_HEADER_SIZE = 8;
+    public static final int DEFAULT_BAND_ROWS = 64;
+    public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+    public static final long UNSEGMENTED = Long.MAX_VALUE;
+
+    private final File mFirstFile;
+    private final Lz4BlockCompressor mCompressor;
+    private final int mBandRows;
+    private final long mSyncBytes;
+    private final long mSyncIntervalMs;
+    private final long mSegmentBytes;
+    private File mFile;
+    private FrameRecordWriter mWriter;
+    private int mSegment;
+    private long mSegmentWritten;
+    // Commits of the segments already closed.
+    private long mClosedCommits;
+    private ByteBuffer mFrame = ByteBuffer.allocate(0);
+    private byte[] mBand = new byte[0];
+    private final ByteBuffer mPackedHeader = ByteBuffer.allocateDirect(FRAME_HEADER_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    private ByteBuffer[] mParts = new ByteBuffer[0];
+
+    private boolean mOpen = true;
+    private long mFrameCount;
+    private long mRawBytes;
+    private long mWrittenBytes;
+
+    /**
+     * @param file Spool file, created or appended to after recovering any torn tail.
+     * @param compress Whether bands are LZ4 compressed before being written.
+     * @param bandRows Rows per band; each band is compressed as one block.
+     * @param syncBytes Group commit window in bytes, see {@link FrameRecordWriter}.
+     * @param syncIntervalMs Group commit window in milliseconds.
+     */
+    public FrameSpool(File file, boolean compress, int bandRows, long syncBytes,
+                      long syncIntervalMs) throws IOException {
+        this(file, compress, bandRows, syncBytes, syncIntervalMs, UNSEGMENTED);
+    }
+
+    /**
+     * @param segmentBytes Size past which the next frame starts a new segment file, or
+     *                     {@link #UNSEGMENTED}.
+     */
+    public FrameSpool(File file, boolean compress, int bandRows, long syncBytes,
+                      long syncIntervalMs, long segmentBytes) throws IOException {
+        mFirstFile = file;
+        mFile = file;
+        mSyncBytes = syncBytes;
+        mSyncIntervalMs = syncIntervalMs;
+        mSegmentBytes = segmentBytes;
+        mWriter = new FrameRecordWriter(file, syncBytes, syncIntervalMs);
+        mCompressor = compress ? new Lz4BlockCompressor() : null;
+        mBandRows = bandRows;
+    }
+
+    /**
+     * File of segment {@code index} of a spool whose first segment is {@code first}:
+     * {@code frames.spool}, then {@code frames-1.spool}, {@code frames-2.spool} and so on.
+     */
+    public static File segmentFile(File first, int index) {
+        if (index == 0) {
+            return first;
+        }
+        String name = first.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        return new File(first.getParentFile(), base + "-" + index + extension);
+    }
+
+    /**
+     * Writes one raw frame, dropping any row padding.
+     *
+     * @param pixels Plane buffer positioned at the first pixel.
+     * @param rowStride Bytes between the start of consecutive rows in {@code pixels}.
+     */
+    public synchronized void writeFrame(ByteBuffer pixels, int width, int height, int rowStride)
+            throws IOException {
+        writeFrame(pixels, width, height, rowStride, PIXEL_FORMAT);
+    }
+
+    /**
+     * Writes one raw frame in the given pixel format, {@link #PIXEL_FORMAT}, {@link #FORMAT_Y8},
+     * {@link #FORMAT_I420} or {@link #FORMAT_NV12}, dropping any row padding. YUV frames are
+     * passed packed, with {@code rowStride} equal to {@code width}.
+     */
+    public synchronized void writeFrame(ByteBuffer pixels, int width, int height, int rowStride,
+                                        int pixelFormat) throws IOException {
+        rollIfNeeded();
+        if (mCompressor == null) {
+            writePackedFrame(pixels, width, height, rowStride, pixelFormat);
+            return;
+        }
+
+        final int rowBytes = width * bytesPerPixel(pixelFormat);
+        final int rows = storedRows(pixelFormat, height);
+        final int base = pixels.position();
+        final int bandCapacity = rowBytes * mBandRows;
+        final int bands = (rows + mBandRows - 1) / mBandRows;
+
+        int frameCapacity = FRAME_HEADER_SIZE + bands * (BAND_HEADER_SIZE
+                + Math.max(bandCapacity, Lz4BlockCompressor.maxCompressedLength(bandCapacity)));
+        ByteBuffer frame = frameBuffer(frameCapacity);
+        frame.putInt(width).putInt(height).putInt(pixelFormat).putInt(mBandRows)
+                .putInt(mCompressor != null ? FLAG_LZ4 : 0);
+
+        if (mBand.length < bandCapacity) {
+            mBand = new byte[bandCapacity];
+        }
+
+        ByteBuffer source = pixels.duplicate();
+        for (int row = 0; row < rows; row += mBandRows) {
+            int bandRows = Math.min(mBandRows, rows - row);
+            int rawLength = bandRows * rowBytes;
+            for (int r = 0; r < bandRows; r++) {
+                source.position(base + (row + r) * rowStride);
+                source.get(mBand, r * rowBytes, rowBytes);
+            }
+            putBand(frame, rawLength);
+        }
+
+        appendFrame(frame);
+        mRawBytes += (long) rowBytes * rows;
+    }
+
+    private void writePackedFrame(ByteBuffer pixels, int width, int height, int rowStride,
+                                  int pixelFormat) throws IOException {
+        final int rowBytes = width * bytesPerPixel(pixelFormat);
+        final int rows = storedRows(pixelFormat, height);
+        final int base = pixels.position();
+
+        mPackedHeader.clear();
+        mPackedHeader.putInt(width).putInt(height).putInt(pixelFormat).putInt(0)
+                .putInt(FLAG_PACKED);
+        mPackedHeader.flip();
+
+        int count;
+        if (rowStride == rowBytes) {
+            // No padding, the whole frame is one contiguous run.
+            ensureParts(2);
+            ByteBuffer run = pixels.duplicate();
+            run.limit(base + rowBytes * rows);
+            mParts[1] = run;
+            count = 2;
+        } else {
+            ensureParts(rows + 1);
+            for (int r = 0; r < rows; r++) {
+                ByteBuffer row = pixels.duplicate();
+                int start = base + r * rowStride;
+                row.limit(start + rowBytes);
+                row.position(start);
+                mParts[r + 1] = row;
+            }
+            count = rows + 1;
+        }
+        mParts[0] = mPackedHeader;
+
+        try {
+            mWriter.append(mParts, count);
+        } finally {
+            for (int i = 0; i < count; i++) {
+                mParts[i] = null;
+            }
+        }
+        long written = FrameRecordWriter.RECORD_HEADER_SIZE + FRAME_HEADER_SIZE
+                + (long) rowBytes * rows;
+        mWrittenBytes += written;
+        mSegmentWritten += written;
+        mRawBytes += (long) rowBytes * rows;
+        mFrameCount++;
+    }
+
+    private static int bytesPerPixel(int pixelFormat) {
+        return pixelFormat == FORMAT_Y8 || isYuv(pixelFormat) ? 1 : BYTES_PER_PIXEL;
+    }
+
+    /**
+     * Rows of {@link #bytesPerPixel(int)} times width bytes a frame is stored as.
+     */
+    private static int storedRows(int pixelFormat, int height) {
+        return isYuv(pixelFormat) ? height * 3 / 2 : height;
+    }
+
+    private static boolean isYuv(int pixelFormat) {
+        return pixelFormat == FORMAT_I420 || pixelFormat == FORMAT_NV12;
+    }
+
+    private void ensureParts(int count) {
+        if (mParts.length < count) {
+            mParts = new ByteBuffer[count];
+        }
+    }
+
+    /**
+     * Writes one frame that has already been encoded, for instance as a JPEG.
+     */
+    public synchronized void writeEncodedFrame(byte[] data, int length, int width, int height,
+                                               int format)
+            throws IOException {
+        writeEncodedFrame(data, length, width, height, format, 0);
+    }
+
+    /**
+     * Writes one encoded level of a {@link MipPyramid}, 0 being the full frame.
+     */
+    public synchronized void writeEncodedFrame(byte[] data, int length, int width, int height,
+                                               int format, int level) throws IOException {
+        if (level == 0) {
+            rollIfNeeded();
+        }
+        ByteBuffer frame = frameBuffer(FRAME_HEADER_SIZE + length);
+        frame.putInt(width).putInt(height).putInt(format).putInt(0)
+                .putInt((level << FLAG_MIP_LEVEL_SHIFT) & FLAG_MIP_LEVEL_MASK);
+        frame.put(data, 0, length);
+        appendFrame(frame);
+        mRawBytes += length;
+    }
+
+    private ByteBuffer frameBuffer(int capacity) {
+        if (mFrame.capacity() < capacity) {
+            mFrame = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        mFrame.clear();
+        return mFrame;
+    }
+
+    private void putBand(ByteBuffer frame, int rawLength) {
+        byte[] stored = mBand;
+        int storedLength = rawLength;
+        if (mCompressor != null) {
+            int compressed = mCompressor.compress(mBand, 0, rawLength);
+            if (compressed < rawLength) {
+                stored = mCompressor.getOutput();
+                storedLength = compressed;
+            }
+        }
+        frame.putInt(rawLength).putInt(storedLength);
+        frame.put(stored, 0, storedLength);
+    }
+
+    private void appendFrame(ByteBuffer frame) throws IOException {
+        int length = frame.position();
+        mWriter.append(frame.array(), 0, length);
+        mWrittenBytes += FrameRecordWriter.RECORD_HEADER_SIZE + length;
+        mSegmentWritten += FrameRecordWriter.RECORD_HEADER_SIZE + length;
+        mFrameCount++;
+    }
+
+    /**
+     * Closes the current segment and opens the next once the current one is full.
+     */
+    private void rollIfNeeded() throws IOException {
+        if (mSegmentWritten < mSegmentBytes) {
+            return;
+        }
+        File next = segmentFile(mFirstFile, mSegment + 1);
+        mWriter.close();
+        mClosedCommits += mWriter.getCommitCount();
+        mWriter = new FrameRecordWriter(next, mSyncBytes, mSyncIntervalMs);
+        mFile = next;
+        mSegment++;
+        mSegmentWritten = 0;
+    }
+
+    /**
+     * Syncs frames left uncommitted once the group commit interval has passed, see
+     * {@link FrameRecordWriter#commitIfDue()}. Safe to call from any thread.
+     */
+    public synchronized void commitIfDue() throws IOException {
+        if (mOpen) {
+            mWriter.commitIfDue();
+        }
+    }
+
+    /**
+     * The segment file frames are currently written to.
+     */
+    public synchronized File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Number of segment files written so far, including the current one.
+     */
+    public synchronized int getSegmentCount() {
+        return mSegment + 1;
+    }
+
+    public synchronized long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Pixel bytes handed to the spool, excluding row padding and headers. For encoded frames
+     * this is the encoded size.
+     */
+    public synchronized long getRawBytes() {
+        return mRawBytes;
+    }
+
+    /**
+     * Bytes appended to the spool files, including headers.
+     */
+    public synchronized long getWrittenBytes() {
+        return mWrittenBytes;
+    }
+
+    /**
+     * Number of group commits (syncs) the spool has issued so far.
+     */
+    public synchronized long getCommitCount() {
+        return mClosedCommits + mWriter.getCommitCount();
+    }
+
+    public synchronized boolean isOpen() {
+        return mOpen;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mOpen = false;
+        mWriter.close();
+    }
+}
@@ -0,0 +1,216 @@
+package com.example.android.screencapture;
+
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Receives the frames served by {@link FrameStreamServer}, applying deltas to rebuild each
+ * frame in full. Plain Java, so it runs on a workstation as well as in tests:
+ *
+ * <pre>
+ * adb forward tcp:5800 tcp:5800
+ * java -cp classes com.example.android.screencapture.FrameStreamClient localhost 5800 [dir]
+ * </pre>
+ *
+ * <p>which prints a line per second of frames and bytes received, and with a directory writes
+ * every frame to it as a PPM image.</p>
+ */
+public class FrameStreamClient {
+
+    private final SocketChannel mChannel;
+    private final ByteBuffer mHeader = ByteBuffer.allocate(FrameStreamServer.MESSAGE_HEADER_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    private ByteBuffer mBody = ByteBuffer.allocate(0);
+    private byte[] mPayload = new byte[0];
+    private byte[] mPixels = new byte[0];
+    private int mWidth;
+    private int mHeight;
+    private long mTimestamp;
+    private boolean mKeyframe;
+    private long mFrames;
+    private long mBytes;
+
+    public FrameStreamClient(String host, int port) throws IOException {
+        mChannel = SocketChannel.open(new InetSocketAddress(host, port));
+    }
+
+    /**
+     * Reads the next message and applies it.
+     *
+     * @throws EOFException If the server closed the connection.
+     */
+    public void next() throws IOException {
+        mHeader.clear();
+        readFully(mHeader);
+        mHeader.flip();
+        int length = mHeader.getInt();
+        int width = mHeader.getInt();
+        int height = mHeader.getInt();
+        int format = mHeader.getInt();
+        int tileSize = mHeader.getInt();
+        int flags = mHeader.getInt();
+        long timestamp = mHeader.getLong();
+        int rawLength = mHeader.getInt();
+        int stored = length - (FrameStreamServer.MESSAGE_HEADER_SIZE - 4);
+        if (format != FrameSpool.PIXEL_FORMAT || stored < 0 || rawLength < 0) {
+            throw new IOException("Malformed frame message");
+        }
+
+        if (mBody.capacity() < stored) {
+            mBody = ByteBuffer.allocate(stored);
+        }
+        mBody.clear();
+        mBody.limit(stored);
+        readFully(mBody);
+        byte[] payload;
+        if ((flags & FrameSpool.FLAG_LZ4) != 0) {
+            if (mPayload.length < rawLength) {
+                mPayload = new byte[rawLength];
+            }
+            Lz4BlockCompressor.decompress(mBody.array(), 0, stored, mPayload, 0, rawLength);
+            payload = mPayload;
+        } else {
+            payload = mBody.array();
+        }
+
+        int rowBytes = width * FrameSpool.BYTES_PER_PIXEL;
+        mKeyframe = (flags & FrameStreamServer.FLAG_DELTA) == 0;
+        if (mKeyframe) {
+            if (mPixels.length != rowBytes * height) {
+                mPixels = new byte[rowBytes * height];
+            }
+            System.arraycopy(payload, 0, mPixels, 0, rowBytes * height);
+        } else {
+            if (width != mWidth || height != mHeight) {
+                throw new IOException("Delta without a keyframe of its size");
+            }
+            ByteBuffer tiles = ByteBuffer.wrap(payload, 0, rawLength)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            int count = tiles.getInt();
+            int tilesAcross = (width + tileSize - 1) / tileSize;
+            for (int i = 0; i < count; i++) {
+                int tile = tiles.getInt();
+                int left = (tile % tilesAcross) * tileSize;
+                int top = (tile / tilesAcross) * tileSize;
+                int tileBytes = Math.min(tileSize, width - left) * FrameSpool.BYTES_PER_PIXEL;
+                int bottom = Math.min(top + tileSize, height);
+                for (int y = top; y < bottom; y++) {
+                    tiles.get(mPixels, y * rowBytes + left * FrameSpool.BYTES_PER_PIXEL, tileBytes);
+                }
+            }
+        }
+        mWidth = width;
+        mHeight = height;
+        mTimestamp = timestamp;
+        mFrames++;
+        mBytes += 4 + length;
+    }
+
+    /**
+     * Packed RGBA rows of the current frame.
+     */
+    public byte[] getPixels() {
+        return mPixels;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * Whether the current frame came whole rather than as a delta.
+     */
+    public boolean isKeyframe() {
+        return mKeyframe;
+    }
+
+    public long getFrameCount() {
+        return mFrames;
+    }
+
+    /**
+     * Bytes received, as sent over the wire.
+     */
+    public long getByteCount() {
+        return mBytes;
+    }
+
+    public void close() throws IOException {
+        mChannel.close();
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (mChannel.read(buffer) < 0) {
+                throw new EOFException("Frame stream closed");
+            }
+        }
+    }
+
+    private void writePpm(String path) throws IOException {
+        OutputStream out = new FileOutputStream(path);
+        try {
+            out.write(("P6\n" + mWidth + " " + mHeight + "\n255\n").getBytes("US-ASCII"));
+            byte[] row = new byte[mWidth * 3];
+            for (int y = 0; y < mHeight; y++) {
+                int offset = y * mWidth * FrameSpool.BYTES_PER_PIXEL;
+                for (int x = 0; x < mWidth; x++) {
+                    row[x * 3] = mPixels[offset + x * 4];
+                    row[x * 3 + 1] = mPixels[offset + x * 4 + 1];
+                    row[x * 3 + 2] = mPixels[offset + x * 4 + 2];
+                }
+                out.write(row);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: FrameStreamClient host port [ppm directory]");
+            System.exit(2);
+        }
+        FrameStreamClient client = new FrameStreamClient(args[0], Integer.parseInt(args[1]));
+        String directory = args.length > 2 ? args[2] : null;
+        long start = System.nanoTime();
+        long frames = 0;
+        long bytes = 0;
+        try {
+            while (true) {
+                client.next();
+                if (directory != null) {
+                    client.writePpm(String.format("%s/frame-%06d.ppm", directory,
+                            client.getFrameCount()));
+                }
+                long now = System.nanoTime();
+                if (now - start >= 1000000000L) {
+                    System.out.printf("%dx%d %d fps %d KiB/s%n", client.getWidth(),
+                            client.getHeight(), client.getFrameCount() - frames,
+                            (client.getByteCount() - bytes) / 1024);
+                    frames = client.getFrameCount();
+                    bytes = client.getByteCount();
+                    start = now;
+                }
+            }
+        } catch (EOFException e) {
+            System.out.printf("Stream ended after %d frames%n", client.getFrameCount());
+        } finally {
+            client.close();
+        }
+    }
+}
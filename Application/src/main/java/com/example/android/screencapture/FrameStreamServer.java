@@ -0,0 +1,387 @@
+package com.example.android.screencapture;
+
+import com.example.android.common.logger.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Serves captured frames live over TCP, so a capture can be watched from a workstation, for
+ * instance through {@code adb forward}, with {@link FrameStreamClient}.
+ *
+ * <p>Each message is a little endian length, then the spool's frame header of width, height,
+ * pixel format, tile size and flags, the frame timestamp, the payload length and the payload,
+ * LZ4 compressed when {@link FrameSpool#FLAG_LZ4} is set. A keyframe's payload is the frame's
+ * packed RGBA rows. A delta, flagged {@link #FLAG_DELTA}, holds only the tiles of
+ * {@link #TILE_SIZE} pixels square that changed since the last frame sent to that client: a
+ * count, then each tile's index, in row major tile order, and its packed rows. A client gets a
+ * keyframe first, after a size change, and whenever most tiles changed.</p>
+ *
+ * <p>{@link #publish} copies the frame and returns; it never waits for the network. One thread
+ * serves every client with non-blocking channels. A client is only sent a frame once its
+ * previous message has been fully written, and then gets the newest frame published, so a slow
+ * client skips stale frames instead of queueing them, without holding back the others or the
+ * capture. Frames are triple buffered between the capture and the server thread. Each client
+ * keeps a copy of the last frame sent to it, to compute its deltas.</p>
+ */
+public class FrameStreamServer {
+
+    private static final String TAG = "FrameStreamServer";
+
+    public static final int TILE_SIZE = 32;
+    public static final int MAX_CLIENTS = 4;
+    // Beside the spool's flags.
+    public static final int FLAG_DELTA = 0x100;
+    // Length, frame header, timestamp and payload length.
+    public static final int MESSAGE_HEADER_SIZE = 4 + FrameSpool.FRAME_HEADER_SIZE + 8 + 4;
+
+    private static class Frame {
+        byte[] mPixels = new byte[0];
+        int mWidth;
+        int mHeight;
+        long mTimestamp;
+        long mSequence;
+    }
+
+    private static class Client {
+        final SocketChannel mChannel;
+        ByteBuffer mOutgoing = ByteBuffer.allocate(0);
+        // Last frame sent, the reference for the next delta.
+        byte[] mReference = new byte[0];
+        int mWidth;
+        int mHeight;
+        long mSequence;
+        long mSkipped;
+
+        Client(SocketChannel channel) {
+            mChannel = channel;
+        }
+    }
+
+    private final Selector mSelector;
+    private final ServerSocketChannel mServer;
+    private final Thread mThread;
+    private final List<Client> mClients = new ArrayList<Client>();
+    private final Lz4BlockCompressor mCompressor = new Lz4BlockCompressor();
+    private final ByteBuffer mDiscard = ByteBuffer.allocate(256);
+    private byte[] mPayload = new byte[0];
+
+    // Written by the publisher only.
+    private Frame mBack = new Frame();
+    // Guarded by this: the newest published frame, swapped with mBack and mCurrent.
+    private Frame mPending = new Frame();
+    private long mPublished;
+    // Read by the server thread only.
+    private Frame mCurrent = new Frame();
+    private volatile boolean mRunning = true;
+
+    /**
+     * Starts serving on {@code port} of the loopback interface, or of every interface if
+     * {@code loopbackOnly} is false. Port 0 picks a free port, see {@link #getPort()}.
+     */
+    public FrameStreamServer(int port, boolean loopbackOnly) throws IOException {
+        mSelector = Selector.open();
+        mServer = ServerSocketChannel.open();
+        try {
+            InetSocketAddress address = loopbackOnly
+                    ? new InetSocketAddress(InetAddress.getByName(null), port)
+                    : new InetSocketAddress(port);
+            mServer.socket().setReuseAddress(true);
+            mServer.socket().bind(address);
+            mServer.configureBlocking(false);
+            mServer.register(mSelector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            mServer.close();
+            mSelector.close();
+            throw e;
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    public int getPort() {
+        return mServer.socket().getLocalPort();
+    }
+
+    /**
+     * Makes a frame the one sent to clients next, replacing any not yet picked up. Call from
+     * one thread at a time.
+     *
+     * @param pixels RGBA plane buffer positioned at the first pixel; its position is not
+     *               changed.
+     */
+    public void publish(ByteBuffer pixels, int width, int height, int rowStride,
+                        long timestamp) {
+        Frame frame = mBack;
+        int rowBytes = width * FrameSpool.BYTES_PER_PIXEL;
+        if (frame.mPixels.length < rowBytes * height) {
+            frame.mPixels = new byte[rowBytes * height];
+        }
+        ByteBuffer source = pixels.duplicate();
+        int base = pixels.position();
+        for (int y = 0; y < height; y++) {
+            source.position(base + y * rowStride);
+            source.get(frame.mPixels, y * rowBytes, rowBytes);
+        }
+        frame.mWidth = width;
+        frame.mHeight = height;
+        frame.mTimestamp = timestamp;
+        synchronized (this) {
+            frame.mSequence = ++mPublished;
+            mBack = mPending;
+            mPending = frame;
+        }
+        mSelector.wakeup();
+    }
+
+    /**
+     * Disconnects every client and stops the server thread.
+     */
+    public void close() {
+        mRunning = false;
+        mSelector.wakeup();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void serve() {
+        try {
+            while (mRunning) {
+                mSelector.select();
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        read(key);
+                    }
+                }
+                takePending();
+                for (int i = mClients.size() - 1; i >= 0; i--) {
+                    Client client = mClients.get(i);
+                    try {
+                        send(client);
+                    } catch (IOException e) {
+                        Log.i(TAG, "Stream client gone: %s", e.getMessage());
+                        disconnect(client);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Frame stream failed", e);
+        } finally {
+            for (int i = mClients.size() - 1; i >= 0; i--) {
+                disconnect(mClients.get(i));
+            }
+            try {
+                mServer.close();
+                mSelector.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to close frame stream", e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = mServer.accept();
+        if (channel == null) {
+            return;
+        }
+        if (mClients.size() >= MAX_CLIENTS) {
+            Log.w(TAG, "Refusing stream client, %d already connected", MAX_CLIENTS);
+            channel.close();
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Client client = new Client(channel);
+        channel.register(mSelector, SelectionKey.OP_READ, client);
+        mClients.add(client);
+        Log.i(TAG, "Stream client connected from %s", channel.socket().getRemoteSocketAddress());
+    }
+
+    /**
+     * Clients send nothing; reading only notices them hanging up.
+     */
+    private void read(SelectionKey key) {
+        Client client = (Client) key.attachment();
+        try {
+            int read;
+            do {
+                mDiscard.clear();
+                read = client.mChannel.read(mDiscard);
+            } while (read > 0);
+            if (read < 0) {
+                Log.i(TAG, "Stream client disconnected after skipping %d frames",
+                        client.mSkipped);
+                disconnect(client);
+            }
+        } catch (IOException e) {
+            disconnect(client);
+        }
+    }
+
+    private void takePending() {
+        synchronized (this) {
+            if (mPending.mSequence > mCurrent.mSequence) {
+                Frame current = mCurrent;
+                mCurrent = mPending;
+                mPending = current;
+            }
+        }
+    }
+
+    private void send(Client client) throws IOException {
+        // Nothing wakes the selector for a frame that arrived while the last message was still
+        // going out, so the client moves on to it as soon as that message is written.
+        while (true) {
+            if (!client.mOutgoing.hasRemaining()) {
+                if (client.mSequence >= mCurrent.mSequence) {
+                    break;
+                }
+                if (client.mSequence > 0) {
+                    client.mSkipped += mCurrent.mSequence - client.mSequence - 1;
+                }
+                encode(client, mCurrent);
+                client.mSequence = mCurrent.mSequence;
+            }
+            client.mChannel.write(client.mOutgoing);
+            if (client.mOutgoing.hasRemaining()) {
+                break;
+            }
+        }
+        SelectionKey key = client.mChannel.keyFor(mSelector);
+        if (key != null && key.isValid()) {
+            key.interestOps(client.mOutgoing.hasRemaining()
+                    ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+    }
+
+    private void disconnect(Client client) {
+        mClients.remove(client);
+        try {
+            client.mChannel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to close stream client", e);
+        }
+    }
+
+    /**
+     * Builds the message taking {@code client} from its last frame to {@code frame}.
+     */
+    private void encode(Client client, Frame frame) {
+        int width = frame.mWidth;
+        int height = frame.mHeight;
+        int rowBytes = width * FrameSpool.BYTES_PER_PIXEL;
+        int frameBytes = rowBytes * height;
+        int tilesAcross = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int tilesDown = (height + TILE_SIZE - 1) / TILE_SIZE;
+        int tiles = tilesAcross * tilesDown;
+        ensurePayload(4 + tiles * 4 + frameBytes);
+
+        boolean delta = client.mWidth == width && client.mHeight == height;
+        int length = 0;
+        if (delta) {
+            ByteBuffer payload = ByteBuffer.wrap(mPayload).order(ByteOrder.LITTLE_ENDIAN);
+            payload.position(4);
+            int changed = 0;
+            for (int tile = 0; tile < tiles && changed * 2 <= tiles; tile++) {
+                int left = (tile % tilesAcross) * TILE_SIZE;
+                int top = (tile / tilesAcross) * TILE_SIZE;
+                int tileBytes = Math.min(TILE_SIZE, width - left) * FrameSpool.BYTES_PER_PIXEL;
+                int tileRows = Math.min(TILE_SIZE, height - top);
+                if (tileEquals(frame.mPixels, client.mReference, rowBytes, top, tileRows,
+                        left * FrameSpool.BYTES_PER_PIXEL, tileBytes)) {
+                    continue;
+                }
+                changed++;
+                payload.putInt(tile);
+                for (int y = top; y < top + tileRows; y++) {
+                    payload.put(frame.mPixels, y * rowBytes + left * FrameSpool.BYTES_PER_PIXEL,
+                            tileBytes);
+                }
+            }
+            // Past half the tiles a keyframe is about as big and simpler to apply.
+            delta = changed * 2 <= tiles;
+            length = payload.position();
+            payload.putInt(0, changed);
+        }
+        if (!delta) {
+            System.arraycopy(frame.mPixels, 0, mPayload, 0, frameBytes);
+            length = frameBytes;
+        }
+
+        if (client.mReference.length < frameBytes) {
+            client.mReference = new byte[frameBytes];
+        }
+        System.arraycopy(frame.mPixels, 0, client.mReference, 0, frameBytes);
+        client.mWidth = width;
+        client.mHeight = height;
+
+        int capacity = MESSAGE_HEADER_SIZE + Lz4BlockCompressor.maxCompressedLength(length);
+        if (client.mOutgoing.capacity() < capacity) {
+            client.mOutgoing = ByteBuffer.allocate(capacity);
+        }
+        ByteBuffer message = client.mOutgoing;
+        message.clear();
+        message.order(ByteOrder.LITTLE_ENDIAN);
+        int stored = mCompressor.compress(mPayload, 0, length, message.array(),
+                MESSAGE_HEADER_SIZE);
+        int flags = delta ? FLAG_DELTA : 0;
+        if (stored < length) {
+            flags |= FrameSpool.FLAG_LZ4;
+        } else {
+            System.arraycopy(mPayload, 0, message.array(), MESSAGE_HEADER_SIZE, length);
+            stored = length;
+        }
+        message.putInt(MESSAGE_HEADER_SIZE - 4 + stored);
+        message.putInt(width).putInt(height).putInt(FrameSpool.PIXEL_FORMAT).putInt(TILE_SIZE)
+                .putInt(flags);
+        message.putLong(frame.mTimestamp);
+        message.putInt(length);
+        message.position(0);
+        message.limit(MESSAGE_HEADER_SIZE + stored);
+    }
+
+    private void ensurePayload(int size) {
+        if (mPayload.length < size) {
+            mPayload = new byte[size];
+        }
+    }
+
+    private static boolean tileEquals(byte[] a, byte[] b, int rowBytes, int top, int rows,
+                                      int offset, int length) {
+        for (int y = top; y < top + rows; y++) {
+            int start = y * rowBytes + offset;
+            for (int i = start; i < start + length; i++) {
+                if (a[i] != b[i]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,157 @@
+package com.example.android.screencapture;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes 8-bit grayscale PNGs from packed luma, such as the output of {@link LumaConverter}.
+ *
+ * <p>{@link android.graphics.Bitmap} can only compress color bitmaps, which would carry three
+ * copies of every luma byte into the encoder. This writes color type 0 directly: each row is
+ * filtered with whichever of None, Sub and Up gives the smallest sum of absolute values, then
+ * all rows are deflated into IDAT chunks. The deflater and row buffers are reused between
+ * frames. Not thread safe; call {@link #release()} when done.</p>
+ */
+public class GrayPngEncoder {
+
+    private static final byte[] SIGNATURE = {
+            (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'
+    };
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_SUB = 1;
+    private static final int FILTER_UP = 2;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final Deflater mDeflater;
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mChunk = new byte[CHUNK_SIZE];
+    private final byte[] mHeader = new byte[13];
+    private int mChunkLength;
+    private byte[] mSub = new byte[0];
+    private byte[] mUp = new byte[0];
+    private byte[] mNone = new byte[0];
+
+    public GrayPngEncoder() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    /**
+     * @param level Deflate level, see {@link Deflater}.
+     */
+    public GrayPngEncoder(int level) {
+        mDeflater = new Deflater(level);
+    }
+
+    /**
+     * Encodes {@code width * height} bytes of {@code luma}, rows packed without padding.
+     */
+    public void encode(byte[] luma, int width, int height, OutputStream out) throws IOException {
+        if (mSub.length < width + 1) {
+            mSub = new byte[width + 1];
+            mUp = new byte[width + 1];
+            mNone = new byte[width + 1];
+        }
+        out.write(SIGNATURE);
+        putInt(mHeader, 0, width);
+        putInt(mHeader, 4, height);
+        mHeader[8] = 8;   // bit depth
+        mHeader[9] = 0;   // grayscale
+        mHeader[10] = 0;  // deflate
+        mHeader[11] = 0;  // adaptive filtering
+        mHeader[12] = 0;  // not interlaced
+        writeChunk(out, "IHDR", mHeader, 13);
+
+        mDeflater.reset();
+        mChunkLength = 0;
+        for (int y = 0; y < height; y++) {
+            byte[] row = filterRow(luma, y * width, width, y > 0);
+            mDeflater.setInput(row, 0, width + 1);
+            // The row arrays are reused, so all of this row has to be consumed now.
+            while (!mDeflater.needsInput()) {
+                deflateInto(out);
+            }
+        }
+        mDeflater.finish();
+        while (!mDeflater.finished()) {
+            deflateInto(out);
+        }
+        if (mChunkLength > 0) {
+            writeChunk(out, "IDAT", mChunk, mChunkLength);
+        }
+        writeChunk(out, "IEND", mChunk, 0);
+    }
+
+    public void release() {
+        mDeflater.end();
+    }
+
+    private byte[] filterRow(byte[] luma, int start, int width, boolean hasPrevious) {
+        byte[] none = mNone;
+        byte[] sub = mSub;
+        byte[] up = mUp;
+        none[0] = FILTER_NONE;
+        sub[0] = FILTER_SUB;
+        up[0] = FILTER_UP;
+        int noneCost = 0;
+        int subCost = 0;
+        int upCost = 0;
+        int left = 0;
+        for (int x = 0; x < width; x++) {
+            int value = luma[start + x] & 0xff;
+            int above = hasPrevious ? luma[start - width + x] & 0xff : 0;
+            byte s = (byte) (value - left);
+            byte u = (byte) (value - above);
+            none[x + 1] = (byte) value;
+            sub[x + 1] = s;
+            up[x + 1] = u;
+            // Filtered bytes are scored as signed, so small negative differences count as small.
+            noneCost += Math.abs((byte) value);
+            subCost += Math.abs(s);
+            upCost += Math.abs(u);
+            left = value;
+        }
+        if (upCost <= subCost && upCost <= noneCost && hasPrevious) {
+            return up;
+        }
+        return subCost <= noneCost ? sub : none;
+    }
+
+    private void deflateInto(OutputStream out) throws IOException {
+        mChunkLength += mDeflater.deflate(mChunk, mChunkLength, CHUNK_SIZE - mChunkLength);
+        if (mChunkLength == CHUNK_SIZE) {
+            writeChunk(out, "IDAT", mChunk, mChunkLength);
+            mChunkLength = 0;
+        }
+    }
+
+    private void writeChunk(OutputStream out, String type, byte[] data, int length)
+            throws IOException {
+        byte[] typeBytes = {
+                (byte) type.charAt(0), (byte) type.charAt(1),
+                (byte) type.charAt(2), (byte) type.charAt(3)
+        };
+        writeInt(out, length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        mCrc.reset();
+        mCrc.update(typeBytes);
+        mCrc.update(data, 0, length);
+        writeInt(out, (int) mCrc.getValue());
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static void putInt(byte[] array, int offset, int value) {
+        array[offset] = (byte) (value >>> 24);
+        array[offset + 1] = (byte) (value >>> 16);
+        array[offset + 2] = (byte) (value >>> 8);
+        array[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.android.screencapture;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns RGBA_8888 plane rows into 8-bit luma, one byte per pixel, for capture modes that do not
+ * need color.
+ *
+ * <p>Luma uses the BT.601 weights scaled to integers that sum to 256,
+ * {@code (77 R + 150 G + 29 B + 128) >> 8}, so a pixel costs three multiplies and a shift. Rows
+ * are read into a scratch array and the output array is kept between frames; neither is
+ * reallocated unless a frame is larger than any before it. Not thread safe.</p>
+ */
+public class LumaConverter {
+
+    private static final int WEIGHT_R = 77;
+    private static final int WEIGHT_G = 150;
+    private static final int WEIGHT_B = 29;
+
+    private byte[] mRow = new byte[0];
+    private byte[] mLuma = new byte[0];
+
+    /**
+     * Converts a frame, or a region of one.
+     *
+     * @param pixels Plane buffer positioned at the first pixel; its position is not changed.
+     * @param rowStride Bytes between the start of consecutive rows in {@code pixels}.
+     * @param pixelStride Bytes between consecutive pixels of a row, 4 for RGBA_8888.
+     * @return The luma array, rows packed without padding; only the first
+     *         {@code width * height} bytes are valid, and it is overwritten by the next call.
+     */
+    public byte[] convert(ByteBuffer pixels, int width, int height, int rowStride,
+                          int pixelStride) {
+        int rowBytes = (width - 1) * pixelStride + 4;
+        if (mRow.length < rowBytes) {
+            mRow = new byte[rowBytes];
+        }
+        if (mLuma.length < width * height) {
+            mLuma = new byte[width * height];
+        }
+        byte[] row = mRow;
+        byte[] luma = mLuma;
+        ByteBuffer source = pixels.duplicate();
+        int base = pixels.position();
+        int out = 0;
+        for (int y = 0; y < height; y++) {
+            source.position(base + y * rowStride);
+            source.get(row, 0, rowBytes);
+            for (int ix = 0; ix < rowBytes; ix += pixelStride) {
+                luma[out++] = (byte) ((WEIGHT_R * (row[ix] & 0xff)
+                        + WEIGHT_G * (row[ix + 1] & 0xff)
+                        + WEIGHT_B * (row[ix + 2] & 0xff) + 128) >> 8);
+            }
+        }
+        return luma;
+    }
+}
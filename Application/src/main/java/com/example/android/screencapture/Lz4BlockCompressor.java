@@ -0,0 +1,269 @@
+package com.example.android.screencapture;
+
+import java.io.IOException;
+
+/**
+ * Pure Java compressor producing LZ4 block format data.
+ *
+ * <p>Instances keep their hash table and output buffer between calls so compressing a stream
+ * of frames does not allocate. Stale hash table entries from a previous block are harmless:
+ * every candidate match is bounds checked and verified byte for byte before it is used.
+ * Not thread safe; use one instance per capture thread.</p>
+ */
+public class Lz4BlockCompressor {
+
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_LOG = 12;
+    private static final int MAX_DISTANCE = 65535;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MIN_LENGTH = MF_LIMIT + 1;
+    private static final int SKIP_STRENGTH = 6;
+    private static final int ML_BITS = 4;
+    private static final int ML_MASK = (1 << ML_BITS) - 1;
+    private static final int RUN_MASK = (1 << (8 - ML_BITS)) - 1;
+
+    private final int[] mHashTable = new int[1 << HASH_LOG];
+    private byte[] mOutput = new byte[0];
+
+    private long mUncompressedBytes;
+    private long mCompressedBytes;
+
+    /**
+     * Returns the worst case size of a compressed block for the given input length.
+     */
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Compresses into the internal output buffer, returned by {@link #getOutput()}.
+     *
+     * @return The number of compressed bytes in the output buffer.
+     */
+    public int compress(byte[] src, int srcOff, int srcLen) {
+        int max = maxCompressedLength(srcLen);
+        if (mOutput.length < max) {
+            mOutput = new byte[max];
+        }
+        return compress(src, srcOff, srcLen, mOutput, 0);
+    }
+
+    /**
+     * Returns the buffer the last {@link #compress(byte[], int, int)} call wrote to.
+     */
+    public byte[] getOutput() {
+        return mOutput;
+    }
+
+    /**
+     * Compresses {@code srcLen} bytes into {@code dst}, which must have room for
+     * {@link #maxCompressedLength(int)} bytes.
+     *
+     * @return The number of compressed bytes written.
+     */
+    public int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+        final int[] table = mHashTable;
+        final int srcEnd = srcOff + srcLen;
+        final int matchLimit = srcEnd - LAST_LITERALS;
+        final int mfLimit = srcEnd - MF_LIMIT;
+
+        int sOff = srcOff;
+        int dOff = dstOff;
+        int anchor = srcOff;
+
+        if (srcLen >= MIN_LENGTH) {
+            int searchCount = 1 << SKIP_STRENGTH;
+            while (sOff < mfLimit) {
+                int sequence = readInt(src, sOff);
+                int h = hash(sequence);
+                int ref = table[h];
+                table[h] = sOff;
+
+                if (ref < srcOff || ref >= sOff || sOff - ref > MAX_DISTANCE
+                        || readInt(src, ref) != sequence) {
+                    // Skip ahead faster the longer we go without finding a match.
+                    sOff += searchCount++ >>> SKIP_STRENGTH;
+                    continue;
+                }
+                searchCount = 1 << SKIP_STRENGTH;
+
+                while (sOff > anchor && ref > srcOff && src[sOff - 1] == src[ref - 1]) {
+                    sOff--;
+                    ref--;
+                }
+
+                int matchLen = MIN_MATCH;
+                while (sOff + matchLen < matchLimit && src[sOff + matchLen] == src[ref + matchLen]) {
+                    matchLen++;
+                }
+
+                dOff = writeSequence(src, anchor, sOff - anchor, sOff - ref, matchLen, dst, dOff);
+                sOff += matchLen;
+                anchor = sOff;
+
+                if (sOff < mfLimit) {
+                    table[hash(readInt(src, sOff - 2))] = sOff - 2;
+                }
+            }
+        }
+
+        dOff = writeLastLiterals(src, anchor, srcEnd - anchor, dst, dOff);
+
+        int written = dOff - dstOff;
+        mUncompressedBytes += srcLen;
+        mCompressedBytes += written;
+        return written;
+    }
+
+    /**
+     * Decompresses an LZ4 block.
+     *
+     * @return The number of bytes written to {@code dst}.
+     * @throws IOException If the block is malformed or does not fit in {@code dstLen} bytes.
+     */
+    public static int decompress(byte[] src, int srcOff, int srcLen,
+                                 byte[] dst, int dstOff, int dstLen) throws IOException {
+        final int srcEnd = srcOff + srcLen;
+        final int dstEnd = dstOff + dstLen;
+        int sOff = srcOff;
+        int dOff = dstOff;
+
+        while (sOff < srcEnd) {
+            int token = src[sOff++] & 0xFF;
+
+            int literalLen = token >>> ML_BITS;
+            if (literalLen == RUN_MASK) {
+                int b;
+                do {
+                    if (sOff >= srcEnd) {
+                        throw new IOException("Malformed LZ4 block: truncated literal length");
+                    }
+                    b = src[sOff++] & 0xFF;
+                    literalLen += b;
+                } while (b == 255);
+            }
+            if (sOff + literalLen > srcEnd || dOff + literalLen > dstEnd) {
+                throw new IOException("Malformed LZ4 block: literals overrun");
+            }
+            System.arraycopy(src, sOff, dst, dOff, literalLen);
+            sOff += literalLen;
+            dOff += literalLen;
+
+            if (sOff == srcEnd) {
+                break;
+            }
+            if (sOff + 2 > srcEnd) {
+                throw new IOException("Malformed LZ4 block: truncated offset");
+            }
+            int offset = (src[sOff] & 0xFF) | (src[sOff + 1] & 0xFF) << 8;
+            sOff += 2;
+
+            int matchLen = token & ML_MASK;
+            if (matchLen == ML_MASK) {
+                int b;
+                do {
+                    if (sOff >= srcEnd) {
+                        throw new IOException("Malformed LZ4 block: truncated match length");
+                    }
+                    b = src[sOff++] & 0xFF;
+                    matchLen += b;
+                } while (b == 255);
+            }
+            matchLen += MIN_MATCH;
+
+            int ref = dOff - offset;
+            if (offset == 0 || ref < dstOff || dOff + matchLen > dstEnd) {
+                throw new IOException("Malformed LZ4 block: bad match");
+            }
+            if (offset >= matchLen) {
+                System.arraycopy(dst, ref, dst, dOff, matchLen);
+            } else {
+                // Overlapping copy repeats the last offset bytes, so it has to go byte by byte.
+                for (int i = 0; i < matchLen; i++) {
+                    dst[dOff + i] = dst[ref + i];
+                }
+            }
+            dOff += matchLen;
+        }
+        return dOff - dstOff;
+    }
+
+    /**
+     * Total bytes handed to {@link #compress} since the last {@link #resetCounters()}.
+     */
+    public long getUncompressedBytes() {
+        return mUncompressedBytes;
+    }
+
+    /**
+     * Total bytes produced by {@link #compress} since the last {@link #resetCounters()}.
+     */
+    public long getCompressedBytes() {
+        return mCompressedBytes;
+    }
+
+    public void resetCounters() {
+        mUncompressedBytes = 0;
+        mCompressedBytes = 0;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    private static int readInt(byte[] buf, int off) {
+        return (buf[off] & 0xFF)
+                | (buf[off + 1] & 0xFF) << 8
+                | (buf[off + 2] & 0xFF) << 16
+                | (buf[off + 3] & 0xFF) << 24;
+    }
+
+    private static int writeSequence(byte[] src, int literalOff, int literalLen, int offset,
+                                     int matchLen, byte[] dst, int dOff) {
+        int tokenOff = dOff++;
+        int token;
+        if (literalLen >= RUN_MASK) {
+            token = RUN_MASK << ML_BITS;
+            dOff = writeLength(literalLen - RUN_MASK, dst, dOff);
+        } else {
+            token = literalLen << ML_BITS;
+        }
+        System.arraycopy(src, literalOff, dst, dOff, literalLen);
+        dOff += literalLen;
+
+        dst[dOff++] = (byte) offset;
+        dst[dOff++] = (byte) (offset >>> 8);
+
+        int ml = matchLen - MIN_MATCH;
+        if (ml >= ML_MASK) {
+            token |= ML_MASK;
+            dOff = writeLength(ml - ML_MASK, dst, dOff);
+        } else {
+            token |= ml;
+        }
+        dst[tokenOff] = (byte) token;
+        return dOff;
+    }
+
+    private static int writeLastLiterals(byte[] src, int literalOff, int literalLen,
+                                         byte[] dst, int dOff) {
+        if (literalLen >= RUN_MASK) {
+            dst[dOff++] = (byte) (RUN_MASK << ML_BITS);
+            dOff = writeLength(literalLen - RUN_MASK, dst, dOff);
+        } else {
+            dst[dOff++] = (byte) (literalLen << ML_BITS);
+        }
+        System.arraycopy(src, literalOff, dst, dOff, literalLen);
+        return dOff + literalLen;
+    }
+
+    private static int writeLength(int length, byte[] dst, int dOff) {
+        while (length >= 255) {
+            dst[dOff++] = (byte) 255;
+            length -= 255;
+        }
+        dst[dOff++] = (byte) length;
+        return dOff;
+    }
+}
@@ -24,10 +24,16 @@ import android.view.MenuItem;
 import android.widget.ViewAnimator;
 
 import com.example.android.common.activities.SampleActivityBase;
+import com.example.android.common.logger.AsyncLogNode;
 import com.example.android.common.logger.Log;
 import com.example.android.common.logger.LogFragment;
 import com.example.android.common.logger.LogWrapper;
+import com.example.android.common.logger.MappedEventLogNode;
 import com.example.android.common.logger.MessageOnlyLogFilter;
+import com.example.android.common.logger.RateLimitLogFilter;
+
+import java.io.File;
+import java.io.IOException;
 
 /**
  * A simple launcher activity containing a summary sample description, sample log and a custom
@@ -42,13 +48,26 @@ public class MainActivity extends SampleActivityBase {
 
     // Whether the Log Fragment is currently shown
     private boolean mLogShown;
+    private AsyncLogNode mAsyncLogNode;
+    private RateLimitLogFilter mRateLimitFilter;
     private static final int SETTINGS_RESULT = 1;
 
+    // Persistent binary trace, one per process so restarts and rotation keep appending to it.
+    private static MappedEventLogNode sEventLogNode;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
+        if (sEventLogNode == null) {
+            try {
+                sEventLogNode = new MappedEventLogNode(new File(getFilesDir(), "trace"), "events");
+            } catch (IOException e) {
+                android.util.Log.w(TAG, "Event trace unavailable", e);
+            }
+        }
+
         if (savedInstanceState == null) {
             FragmentTransaction transaction = getSupportFragmentManager().beginTransaction();
             ScreenCaptureFragment fragment = new ScreenCaptureFragment();
@@ -57,6 +76,16 @@ public class MainActivity extends SampleActivityBase {
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // A configuration change recreates the activity, only flush the trace once it is done.
+        if (isFinishing() && sEventLogNode != null) {
+            sEventLogNode.close();
+            sEventLogNode = null;
+        }
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.main, menu);
@@ -103,13 +132,60 @@ public class MainActivity extends SampleActivityBase {
         super.onActivityResult(requestCode, resultCode, data);
     }
 
+    /**
+     * Writes what the log's rate limit has held back so far, after the data already logged.
+     */
+    public void flushLogSummaries() {
+        final RateLimitLogFilter rateLimitFilter = mRateLimitFilter;
+        if (mAsyncLogNode == null || rateLimitFilter == null) {
+            return;
+        }
+        mAsyncLogNode.post(new Runnable() {
+            @Override
+            public void run() {
+                rateLimitFilter.flushSummaries();
+            }
+        });
+    }
+
     /** Create a chain of targets that will receive log data */
     @Override
     public void initializeLogging() {
+        // Called on every start, retire the previous chain's dispatch thread.
+        if (mAsyncLogNode != null) {
+            try {
+                mAsyncLogNode.shutdown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // Hands log data to a background thread, so callers never wait on the chain below.
+        mAsyncLogNode = new AsyncLogNode();
+        // Using Log, front-end to the logging chain, emulates android.util.log method signatures.
+        Log.setLogNode(mAsyncLogNode);
+
+        // Keeps per-frame messages from flooding the log, summarizing what was held back.
+        final RateLimitLogFilter rateLimitFilter = new RateLimitLogFilter();
+        mRateLimitFilter = rateLimitFilter;
+        // Summaries are otherwise only written when more data arrives.
+        mAsyncLogNode.setIdleTask(new Runnable() {
+            @Override
+            public void run() {
+                rateLimitFilter.emitDueSummaries();
+            }
+        }, 1000);
+
+        // Persistent binary trace of everything, ahead of the rate limit.
+        if (sEventLogNode != null) {
+            mAsyncLogNode.setNext(sEventLogNode);
+            sEventLogNode.setNext(rateLimitFilter);
+        } else {
+            mAsyncLogNode.setNext(rateLimitFilter);
+        }
+
         // Wraps Android's native log framework.
         LogWrapper logWrapper = new LogWrapper();
-        // Using Log, front-end to the logging chain, emulates android.util.log method signatures.
-        Log.setLogNode(logWrapper);
+        rateLimitFilter.setNext(logWrapper);
 
         // Filter strips out everything except the message text.
         MessageOnlyLogFilter msgFilter = new MessageOnlyLogFilter();
@@ -0,0 +1,174 @@
+package com.example.android.screencapture;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+
+import com.example.android.common.logger.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Turns {@link ComponentCallbacks2#onTrimMemory(int)} levels into one memory pressure value
+ * that the capture side's pools and caches react to, so the app gives memory back while it is
+ * capturing rather than being killed for holding on to it.
+ *
+ * <p>Trim levels map to {@link #PRESSURE_MODERATE}, {@link #PRESSURE_LOW} and
+ * {@link #PRESSURE_CRITICAL}; pressure only rises on a trim. The system never says when
+ * pressure is over, so it falls back to {@link #PRESSURE_NONE} once {@link #RELIEF_NS} pass
+ * without a further trim, noticed by {@link #relax(long)}, which the capture thread calls per
+ * frame. Registered {@link Client}s are notified of every change, on the main thread for a trim
+ * and on the thread calling {@link #relax(long)} for relief. {@link #shrink(int)} scales a
+ * budget to the current pressure.</p>
+ */
+public class MemoryGovernor implements ComponentCallbacks2 {
+
+    private static final String TAG = "MemoryGovernor";
+
+    public static final int PRESSURE_NONE = 0;
+    public static final int PRESSURE_MODERATE = 1;
+    public static final int PRESSURE_LOW = 2;
+    public static final int PRESSURE_CRITICAL = 3;
+
+    public static final long RELIEF_NS = 30000000000L;
+
+    /**
+     * A pool or cache that gives memory back under pressure.
+     */
+    public interface Client {
+        void onMemoryPressure(int pressure);
+    }
+
+    private static MemoryGovernor sInstance;
+
+    private final CopyOnWriteArrayList<Client> mClients = new CopyOnWriteArrayList<Client>();
+    private volatile int mPressure;
+    private long mLastTrimNs;
+
+    /**
+     * The governor for the application, registered for its trim callbacks on first use.
+     */
+    public static synchronized MemoryGovernor getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new MemoryGovernor();
+            context.getApplicationContext().registerComponentCallbacks(sInstance);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Registers a client, telling it the current pressure if there is any.
+     */
+    public void register(Client client) {
+        mClients.addIfAbsent(client);
+        int pressure = mPressure;
+        if (pressure != PRESSURE_NONE) {
+            client.onMemoryPressure(pressure);
+        }
+    }
+
+    public void unregister(Client client) {
+        mClients.remove(client);
+    }
+
+    public int getPressure() {
+        return mPressure;
+    }
+
+    /**
+     * {@code budget} scaled to the current pressure: halved for each level, at least 1.
+     */
+    public int shrink(int budget) {
+        return shrink(budget, mPressure);
+    }
+
+    public static int shrink(int budget, int pressure) {
+        return Math.max(1, budget >> pressure);
+    }
+
+    /**
+     * Level a trim callback raises the pressure to, {@link #PRESSURE_NONE} for levels that are
+     * not about memory, such as the UI being hidden.
+     */
+    public static int pressureFor(int level) {
+        if (level >= TRIM_MEMORY_COMPLETE) {
+            return PRESSURE_CRITICAL;
+        } else if (level >= TRIM_MEMORY_MODERATE) {
+            return PRESSURE_LOW;
+        } else if (level >= TRIM_MEMORY_BACKGROUND) {
+            return PRESSURE_MODERATE;
+        } else if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            return PRESSURE_NONE;
+        } else if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            return PRESSURE_CRITICAL;
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            return PRESSURE_LOW;
+        } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            return PRESSURE_MODERATE;
+        }
+        return PRESSURE_NONE;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        onTrimMemory(level, System.nanoTime());
+    }
+
+    /**
+     * {@link #onTrimMemory(int)} at a given {@link System#nanoTime()}.
+     */
+    public void onTrimMemory(int level, long nowNs) {
+        raise(pressureFor(level), nowNs);
+    }
+
+    @Override
+    public void onLowMemory() {
+        raise(PRESSURE_CRITICAL, System.nanoTime());
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    /**
+     * Drops the pressure once {@link #RELIEF_NS} have passed since the last trim. Cheap enough
+     * to call per frame.
+     *
+     * @return The pressure afterwards.
+     */
+    public int relax(long nowNs) {
+        if (mPressure == PRESSURE_NONE) {
+            return PRESSURE_NONE;
+        }
+        synchronized (this) {
+            if (mPressure == PRESSURE_NONE || nowNs - mLastTrimNs < RELIEF_NS) {
+                return mPressure;
+            }
+            mPressure = PRESSURE_NONE;
+        }
+        Log.i(TAG, "Memory pressure relieved");
+        notifyClients(PRESSURE_NONE);
+        return PRESSURE_NONE;
+    }
+
+    private void raise(int pressure, long nowNs) {
+        if (pressure == PRESSURE_NONE) {
+            return;
+        }
+        synchronized (this) {
+            mLastTrimNs = nowNs;
+            if (pressure <= mPressure) {
+                return;
+            }
+            mPressure = pressure;
+        }
+        Log.w(TAG, "Memory pressure raised to %d", pressure);
+        notifyClients(pressure);
+    }
+
+    private void notifyClients(int pressure) {
+        for (Client client : mClients) {
+            client.onMemoryPressure(pressure);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.example.android.screencapture;
+
+/**
+ * Builds half, quarter and eighth size copies of an ARGB frame while it is being converted, so
+ * previews and galleries can load a small level instead of decoding the full frame.
+ *
+ * <p>Feed the full size rows in order through {@link #onRow(int)}. Every second row completes a
+ * row of the next level, which is computed at once by averaging 2x2 blocks, while both source
+ * rows are still in cache, and in turn completes rows further down. The whole pyramid is
+ * therefore built in the same pass as the conversion, touching each pixel once. Channels are
+ * averaged two at a time in 16-bit lanes of an int. Level arrays are kept between frames. Not
+ * thread safe.</p>
+ */
+public class MipPyramid {
+
+    /**
+     * Levels including the full frame: 1, 1/2, 1/4 and 1/8.
+     */
+    public static final int LEVELS = 4;
+
+    private final int[][] mLevels = new int[LEVELS][];
+    private final int[] mWidths = new int[LEVELS];
+    private final int[] mHeights = new int[LEVELS];
+
+    /**
+     * Starts a frame whose converted rows will be written to {@code full}, {@code width} ints
+     * per row. Odd trailing rows and columns are left out of the smaller levels.
+     */
+    public void begin(int[] full, int width, int height) {
+        mLevels[0] = full;
+        mWidths[0] = width;
+        mHeights[0] = height;
+        for (int level = 1; level < LEVELS; level++) {
+            mWidths[level] = mWidths[level - 1] / 2;
+            mHeights[level] = mHeights[level - 1] / 2;
+            int size = mWidths[level] * mHeights[level];
+            if (mLevels[level] == null || mLevels[level].length < size) {
+                mLevels[level] = new int[size];
+            }
+        }
+    }
+
+    /**
+     * Tells the pyramid that row {@code y} of the full frame has been written.
+     */
+    public void onRow(int y) {
+        rowDone(0, y);
+    }
+
+    /**
+     * Pixels of a level, {@link #getWidth(int)} ints per row; level 0 is the full frame.
+     */
+    public int[] getLevel(int level) {
+        return mLevels[level];
+    }
+
+    public int getWidth(int level) {
+        return mWidths[level];
+    }
+
+    public int getHeight(int level) {
+        return mHeights[level];
+    }
+
+    /**
+     * Name for the file of a level next to the full frame's file, "frame.jpg" giving
+     * "frame.mip2.jpg" for level 2.
+     */
+    public static String levelFileName(String fullName, int level) {
+        if (level == 0) {
+            return fullName;
+        }
+        int dot = fullName.lastIndexOf('.');
+        String suffix = ".mip" + level;
+        return dot < 0 ? fullName + suffix
+                : fullName.substring(0, dot) + suffix + fullName.substring(dot);
+    }
+
+    /**
+     * Rounded average of four ARGB pixels, per channel.
+     */
+    public static int average(int p0, int p1, int p2, int p3) {
+        // Red and blue, then alpha and green, each sum fits in its 16-bit lane.
+        int rb = (p0 & 0x00ff00ff) + (p1 & 0x00ff00ff) + (p2 & 0x00ff00ff) + (p3 & 0x00ff00ff)
+                + 0x00020002;
+        int ag = ((p0 >>> 8) & 0x00ff00ff) + ((p1 >>> 8) & 0x00ff00ff)
+                + ((p2 >>> 8) & 0x00ff00ff) + ((p3 >>> 8) & 0x00ff00ff) + 0x00020002;
+        return ((rb >>> 2) & 0x00ff00ff) | (((ag >>> 2) & 0x00ff00ff) << 8);
+    }
+
+    private void rowDone(int level, int y) {
+        int next = level + 1;
+        if (next == LEVELS || (y & 1) == 0 || (y >> 1) >= mHeights[next]) {
+            return;
+        }
+        int[] source = mLevels[level];
+        int[] target = mLevels[next];
+        int sourceWidth = mWidths[level];
+        int width = mWidths[next];
+        int top = (y - 1) * sourceWidth;
+        int bottom = y * sourceWidth;
+        int out = (y >> 1) * width;
+        for (int x = 0; x < width; x++) {
+            int left = 2 * x;
+            target[out + x] = average(source[top + left], source[top + left + 1],
+                    source[bottom + left], source[bottom + left + 1]);
+        }
+        rowDone(next, y >> 1);
+    }
+}
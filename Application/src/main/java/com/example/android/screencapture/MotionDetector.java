@@ -0,0 +1,110 @@
+package com.example.android.screencapture;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decides whether a frame changed enough since the last stored one to be worth storing, reading
+ * only a sparse sample of the RGBA plane before any conversion.
+ *
+ * <p>The frame is divided into a 16x16 grid of tiles and 4x4 evenly spaced pixels are read in
+ * each, 4096 pixels whatever the frame size. A tile counts as changed when any of its samples
+ * moved by more than {@link #DEFAULT_PIXEL_THRESHOLD} luma levels from the same sample in the
+ * reference frame. The reference is only replaced by {@link #accept()}, so slow drift across
+ * many frames still adds up to a change. Not thread safe.</p>
+ */
+public class MotionDetector {
+
+    public static final int DEFAULT_PIXEL_THRESHOLD = 16;
+
+    private static final int TILES = 16;
+    private static final int SAMPLES = 4;
+    private static final int GRID = TILES * SAMPLES;
+
+    private final int mPixelThreshold;
+    private byte[] mReference = new byte[GRID * GRID];
+    private byte[] mCurrent = new byte[GRID * GRID];
+    private boolean mHasReference;
+    private int mWidth;
+    private int mHeight;
+
+    public MotionDetector() {
+        this(DEFAULT_PIXEL_THRESHOLD);
+    }
+
+    public MotionDetector(int pixelThreshold) {
+        mPixelThreshold = pixelThreshold;
+    }
+
+    /**
+     * Samples a frame and returns the fraction of tiles that changed since the reference, from
+     * 0 to 1. Returns 1 when there is no reference yet or the frame size changed.
+     *
+     * @param pixels Plane buffer positioned at the first pixel; its position is not changed.
+     */
+    public float measure(ByteBuffer pixels, int width, int height, int rowStride,
+                         int pixelStride) {
+        if (width != mWidth || height != mHeight) {
+            mHasReference = false;
+            mWidth = width;
+            mHeight = height;
+        }
+        int base = pixels.position();
+        byte[] current = mCurrent;
+        for (int gy = 0; gy < GRID; gy++) {
+            // Centre of each sample cell, as in PerceptualHash.
+            int rowStart = base + ((gy * 2 + 1) * height / (GRID * 2)) * rowStride;
+            for (int gx = 0; gx < GRID; gx++) {
+                int offset = rowStart + ((gx * 2 + 1) * width / (GRID * 2)) * pixelStride;
+                // A rough luma is enough to spot change: (R + 2G + B) / 4.
+                current[gy * GRID + gx] = (byte) (((pixels.get(offset) & 0xff)
+                        + 2 * (pixels.get(offset + 1) & 0xff)
+                        + (pixels.get(offset + 2) & 0xff)) >> 2);
+            }
+        }
+        if (!mHasReference) {
+            return 1f;
+        }
+
+        byte[] reference = mReference;
+        int changed = 0;
+        for (int ty = 0; ty < TILES; ty++) {
+            for (int tx = 0; tx < TILES; tx++) {
+                if (tileChanged(current, reference, ty * SAMPLES * GRID + tx * SAMPLES)) {
+                    changed++;
+                }
+            }
+        }
+        return changed / (float) (TILES * TILES);
+    }
+
+    /**
+     * Makes the frame last passed to {@link #measure} the reference; call it once that frame has
+     * been stored.
+     */
+    public void accept() {
+        byte[] reference = mReference;
+        mReference = mCurrent;
+        mCurrent = reference;
+        mHasReference = true;
+    }
+
+    /**
+     * Forgets the reference, so the next frame counts as fully changed.
+     */
+    public void reset() {
+        mHasReference = false;
+    }
+
+    private boolean tileChanged(byte[] current, byte[] reference, int start) {
+        for (int sy = 0; sy < SAMPLES; sy++) {
+            int index = start + sy * GRID;
+            for (int sx = 0; sx < SAMPLES; sx++, index++) {
+                int difference = (current[index] & 0xff) - (reference[index] & 0xff);
+                if (difference > mPixelThreshold || difference < -mPixelThreshold) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,223 @@
+package com.example.android.screencapture;
+
+import com.example.android.common.logger.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Encodes consecutive frames on a pool of worker threads and writes the results strictly in the
+ * order they were submitted, so throughput scales with cores while the spool stays in order.
+ *
+ * <p>Jobs come from a fixed pool handed to the constructor, which bounds memory: a job holds
+ * its frame's pixels and encoded output from {@link #obtain()} until it has been written, and
+ * {@link #obtain()} blocks while {@link #getMaxInFlight()} jobs are out. Each submitted job gets
+ * the next sequence number and a slot in a reorder buffer; a job that finishes encoding before
+ * the ones ahead of it waits there. Whichever worker completes the oldest outstanding job
+ * becomes the writer and writes every consecutive finished job, outside the lock, so only one
+ * thread writes at a time and encoders never wait for the disk. A job whose encode fails is
+ * skipped in sequence, without being written.</p>
+ *
+ * @param <T> Job type, reused once written.
+ */
+public class OrderedEncoder<T> {
+
+    private static final String TAG = "OrderedEncoder";
+
+    private static final byte STATE_ENCODING = 1;
+    private static final byte STATE_ENCODED = 2;
+    private static final byte STATE_FAILED = 3;
+
+    /**
+     * What is done with each job.
+     */
+    public interface Stage<T> {
+
+        /**
+         * Encodes a job, on any worker, concurrently with other jobs.
+         *
+         * @return False if the job should not be written.
+         */
+        boolean encode(T job) throws Exception;
+
+        /**
+         * Writes an encoded job. Called in submission order, one job at a time.
+         */
+        void write(T job);
+    }
+
+    private final Stage<T> mStage;
+    private final ExecutorService mWorkers;
+    private final ArrayDeque<T> mFree;
+    private final Object[] mSlots;
+    private final byte[] mStates;
+    private int mMaxInFlight;
+
+    // Guarded by this.
+    private long mNextSequence;
+    private long mNextWrite;
+    private int mInFlight;
+    private boolean mWriting;
+
+    /**
+     * @param jobs Pool of jobs; its size is the most frames that can ever be in flight.
+     */
+    public OrderedEncoder(Stage<T> stage, T[] jobs, int threads, final String name) {
+        mStage = stage;
+        mFree = new ArrayDeque<T>(jobs.length);
+        for (T job : jobs) {
+            mFree.add(job);
+        }
+        mSlots = new Object[jobs.length];
+        mStates = new byte[jobs.length];
+        mMaxInFlight = jobs.length;
+        mWorkers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int mCount;
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, name + "-" + ++mCount);
+            }
+        });
+    }
+
+    /**
+     * Takes a free job, waiting while the in-flight limit is reached. Capture thread only.
+     */
+    public T obtain() throws InterruptedException {
+        synchronized (this) {
+            while (mInFlight >= mMaxInFlight || mFree.isEmpty()) {
+                wait();
+            }
+            mInFlight++;
+            return mFree.poll();
+        }
+    }
+
+    /**
+     * Queues a job taken with {@link #obtain()} for encoding behind the jobs submitted before.
+     */
+    public void submit(final T job) {
+        final int slot;
+        synchronized (this) {
+            slot = (int) (mNextSequence++ % mSlots.length);
+            mSlots[slot] = job;
+            mStates[slot] = STATE_ENCODING;
+        }
+        mWorkers.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean encoded = false;
+                try {
+                    encoded = mStage.encode(job);
+                } catch (Exception e) {
+                    Log.e(TAG, "Unable to encode frame", e);
+                }
+                complete(slot, encoded);
+            }
+        });
+    }
+
+    /**
+     * Returns a job taken with {@link #obtain()} without submitting it.
+     */
+    public void recycle(T job) {
+        synchronized (this) {
+            mFree.add(job);
+            mInFlight--;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits until every submitted job has been written or skipped.
+     */
+    public void awaitIdle() throws InterruptedException {
+        synchronized (this) {
+            while (mNextWrite < mNextSequence) {
+                wait();
+            }
+        }
+    }
+
+    /**
+     * Lowers or restores the number of jobs that may be out at once, within the pool size.
+     * Jobs already out are not affected.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        synchronized (this) {
+            mMaxInFlight = Math.max(1, Math.min(mSlots.length, maxInFlight));
+            notifyAll();
+        }
+    }
+
+    /**
+     * Size of the job pool, the highest {@link #setMaxInFlight(int)} takes effect.
+     */
+    public int getCapacity() {
+        return mSlots.length;
+    }
+
+    public int getMaxInFlight() {
+        synchronized (this) {
+            return mMaxInFlight;
+        }
+    }
+
+    public int getInFlight() {
+        synchronized (this) {
+            return mInFlight;
+        }
+    }
+
+    /**
+     * Stops the workers once the queued jobs are encoded; call {@link #awaitIdle()} first for
+     * them to be written too.
+     */
+    public void shutdown() {
+        mWorkers.shutdown();
+    }
+
+    private void complete(int slot, boolean encoded) {
+        synchronized (this) {
+            mStates[slot] = encoded ? STATE_ENCODED : STATE_FAILED;
+            if (mWriting) {
+                // The current writer picks this job up when it gets to it.
+                return;
+            }
+            mWriting = true;
+        }
+        while (true) {
+            T job;
+            boolean write;
+            synchronized (this) {
+                int next = (int) (mNextWrite % mSlots.length);
+                if (mNextWrite == mNextSequence || mStates[next] == STATE_ENCODING) {
+                    mWriting = false;
+                    return;
+                }
+                @SuppressWarnings("unchecked")
+                T ready = (T) mSlots[next];
+                job = ready;
+                write = mStates[next] == STATE_ENCODED;
+                mSlots[next] = null;
+                mStates[next] = 0;
+            }
+            if (write) {
+                try {
+                    mStage.write(job);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Unable to write frame", e);
+                }
+            }
+            synchronized (this) {
+                mNextWrite++;
+                mFree.add(job);
+                mInFlight--;
+                notifyAll();
+            }
+        }
+    }
+}
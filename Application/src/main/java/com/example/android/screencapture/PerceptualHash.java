@@ -0,0 +1,71 @@
+package com.example.android.screencapture;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 64-bit difference hash (dHash) of a frame, for finding frames that look alike.
+ *
+ * <p>The frame is reduced to a 9x8 grid of luma cells, each the average of 4x4 points sampled
+ * from the RGBA plane, and every bit of the hash says whether a cell is darker than its right
+ * neighbour. Only 1152 pixels are read whatever the frame size, and nothing is allocated. Frames
+ * that differ by scaling, compression noise or an overall brightness change hash the same or a
+ * few bits apart; compare hashes with {@link #distance(long, long)}.</p>
+ */
+public final class PerceptualHash {
+
+    private static final int GRID_WIDTH = 9;
+    private static final int GRID_HEIGHT = 8;
+    private static final int SAMPLES = 4;
+
+    private PerceptualHash() {
+    }
+
+    /**
+     * Hashes a frame, or a region of one.
+     *
+     * @param pixels Plane buffer positioned at the first pixel; its position is not changed.
+     * @param rowStride Bytes between the start of consecutive rows in {@code pixels}.
+     * @param pixelStride Bytes between consecutive pixels of a row, 4 for RGBA_8888.
+     */
+    public static long dHash(ByteBuffer pixels, int width, int height, int rowStride,
+                             int pixelStride) {
+        int base = pixels.position();
+        int columns = GRID_WIDTH * SAMPLES;
+        int rows = GRID_HEIGHT * SAMPLES;
+        long hash = 0;
+        int bit = 0;
+        for (int cy = 0; cy < GRID_HEIGHT; cy++) {
+            int previous = 0;
+            for (int cx = 0; cx < GRID_WIDTH; cx++) {
+                int sum = 0;
+                for (int sy = 0; sy < SAMPLES; sy++) {
+                    // Sample points sit at the centres of a columns x rows grid over the frame.
+                    int y = ((cy * SAMPLES + sy) * 2 + 1) * height / (rows * 2);
+                    int rowStart = base + y * rowStride;
+                    for (int sx = 0; sx < SAMPLES; sx++) {
+                        int x = ((cx * SAMPLES + sx) * 2 + 1) * width / (columns * 2);
+                        int offset = rowStart + x * pixelStride;
+                        sum += 77 * (pixels.get(offset) & 0xff)
+                                + 150 * (pixels.get(offset + 1) & 0xff)
+                                + 29 * (pixels.get(offset + 2) & 0xff);
+                    }
+                }
+                if (cx > 0) {
+                    if (previous < sum) {
+                        hash |= 1L << bit;
+                    }
+                    bit++;
+                }
+                previous = sum;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Number of differing bits, from 0 for identical hashes to 64.
+     */
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+}
@@ -0,0 +1,324 @@
+package com.example.android.screencapture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Keeps the last few seconds of raw frames in memory, compressed, so they can be written out
+ * after something goes wrong without writing anything to disk until then.
+ *
+ * <p>Frames are stored in groups: the first frame of a group is a keyframe, the whole frame LZ4
+ * compressed, and the rest are deltas, the frame XORed with the one before it and then LZ4
+ * compressed. On a mostly static screen a delta is almost all zeros and compresses to a few
+ * hundred bytes. Compressed frames are appended to a fixed size direct buffer used as a circular
+ * arena; when a frame does not fit, or the oldest group falls out of the time window, whole
+ * groups are dropped from the oldest end, since a delta cannot be decoded without the frames
+ * before it. The window therefore always starts at a keyframe and covers at least the last
+ * {@code windowNs} of frames, budget permitting.</p>
+ *
+ * <p>Two frame sized arrays are kept for encoding, and a dump allocates two more. On ART the
+ * direct arena is on the Java heap too, so {@link #budgetFor(long, int)} sizes the arena to fit
+ * all of them within {@link #HEAP_SHARE} of the heap limit. Under memory pressure the ring
+ * drops the frames it holds and goes on in an arena halved for each pressure level, like
+ * {@link MemoryGovernor#shrink(int)}. Not thread safe: add frames and
+ * {@link #dump(FrameSpool)} on the same thread; only {@link #onMemoryPressure(int)} may be
+ * called from any thread, and takes effect on the next frame added.</p>
+ */
+public class ReplayRing implements MemoryGovernor.Client {
+
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 30;
+    public static final int DEFAULT_BUDGET_BYTES = 64 * 1024 * 1024;
+    // Fraction of the heap limit the ring may take: one in HEAP_SHARE.
+    public static final int HEAP_SHARE = 8;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFrameBytes;
+    private final long mWindowNs;
+    private final int mKeyframeInterval;
+    private final int mBudgetBytes;
+    private ByteBuffer mArena;
+    private final Lz4BlockCompressor mCompressor = new Lz4BlockCompressor();
+
+    // Packed copy of the frame being added, then its delta.
+    private byte[] mScratch;
+    // The last frame added, for the next delta.
+    private byte[] mPrevious;
+
+    // Entries, oldest at mFirst, in a ring that grows when full.
+    private int[] mOffsets = new int[256];
+    private int[] mLengths = new int[256];
+    private long[] mTimestamps = new long[256];
+    private boolean[] mKeyframes = new boolean[256];
+    private int mFirst;
+    private int mCount;
+    private int mHead;
+    private int mSinceKeyframe;
+
+    private long mStoredBytes;
+
+    private volatile int mPressure;
+    // Pressure the arena was last sized for.
+    private int mArenaPressure;
+
+    /**
+     * @param windowNs How far back the ring reaches.
+     * @param budgetBytes Size of the arena, such as {@link #budgetFor(long, int)}; raised to fit
+     *                    at least one uncompressible frame.
+     */
+    public ReplayRing(int width, int height, long windowNs, int budgetBytes,
+                      int keyframeInterval) {
+        mWidth = width;
+        mHeight = height;
+        mFrameBytes = width * height * FrameSpool.BYTES_PER_PIXEL;
+        mWindowNs = windowNs;
+        mKeyframeInterval = Math.max(1, keyframeInterval);
+        mBudgetBytes = budgetBytes;
+        mArena = ByteBuffer.allocateDirect(arenaBytes(budgetBytes));
+        mScratch = new byte[mFrameBytes];
+        mPrevious = new byte[mFrameBytes];
+    }
+
+    /**
+     * Arena size for frames of {@code frameBytes} with the given heap limit, such as
+     * {@link Runtime#maxMemory()}: what is left of the ring's share once the frame sized arrays
+     * are counted, at most {@link #DEFAULT_BUDGET_BYTES}.
+     */
+    public static int budgetFor(long maxHeapBytes, int frameBytes) {
+        long share = maxHeapBytes / HEAP_SHARE - 4L * frameBytes;
+        return (int) Math.max(0, Math.min(DEFAULT_BUDGET_BYTES, share));
+    }
+
+    @Override
+    public void onMemoryPressure(int pressure) {
+        mPressure = pressure;
+    }
+
+    /**
+     * Bytes of the direct arena.
+     */
+    public int getCapacity() {
+        return mArena.capacity();
+    }
+
+    /**
+     * Adds a frame, dropping the oldest groups as needed.
+     *
+     * @param pixels Plane buffer positioned at the first pixel; its position is not changed.
+     */
+    public void add(ByteBuffer pixels, int rowStride, long timestamp) {
+        int pressure = mPressure;
+        if (pressure > mArenaPressure) {
+            shrink(pressure);
+        }
+        int rowBytes = mWidth * FrameSpool.BYTES_PER_PIXEL;
+        ByteBuffer source = pixels.duplicate();
+        int base = pixels.position();
+        for (int y = 0; y < mHeight; y++) {
+            source.position(base + y * rowStride);
+            source.get(mScratch, y * rowBytes, rowBytes);
+        }
+
+        boolean keyframe = mCount == 0 || mSinceKeyframe >= mKeyframeInterval;
+        if (keyframe) {
+            byte[] current = mScratch;
+            mScratch = mPrevious;
+            mPrevious = current;
+        } else {
+            byte[] scratch = mScratch;
+            byte[] previous = mPrevious;
+            for (int i = 0; i < mFrameBytes; i++) {
+                byte value = scratch[i];
+                scratch[i] = (byte) (value ^ previous[i]);
+                previous[i] = value;
+            }
+        }
+        // Either way mPrevious now holds the frame itself.
+        int length = mCompressor.compress(keyframe ? mPrevious : mScratch, 0, mFrameBytes);
+        int offset = allocate(length);
+        if (!keyframe && mCount == 0) {
+            // Making room dropped this delta's own group, so it has to become a keyframe.
+            keyframe = true;
+            length = mCompressor.compress(mPrevious, 0, mFrameBytes);
+            offset = allocate(length);
+        }
+        ByteBuffer target = mArena.duplicate();
+        target.position(offset);
+        target.put(mCompressor.getOutput(), 0, length);
+        append(offset, length, timestamp, keyframe);
+        mSinceKeyframe = keyframe ? 1 : mSinceKeyframe + 1;
+
+        // Drop the oldest group once the next one alone covers the window.
+        int next;
+        while ((next = nextKeyframe()) >= 0 && timestamp - mTimestamps[next] >= mWindowNs) {
+            dropOldestGroup();
+        }
+    }
+
+    /**
+     * Decodes every frame in the ring, oldest first, and writes it to {@code spool} as a raw
+     * frame. The ring is left as it was.
+     *
+     * @return The number of frames written.
+     */
+    public int dump(FrameSpool spool) throws IOException {
+        byte[] compressed = new byte[Lz4BlockCompressor.maxCompressedLength(mFrameBytes)];
+        byte[] frame = new byte[mFrameBytes];
+        // Free between adds; mPrevious is not, the next delta needs it.
+        byte[] delta = mScratch;
+        ByteBuffer view = ByteBuffer.wrap(frame);
+        for (int i = 0; i < mCount; i++) {
+            int entry = (mFirst + i) % mOffsets.length;
+            ByteBuffer source = mArena.duplicate();
+            source.position(mOffsets[entry]);
+            source.get(compressed, 0, mLengths[entry]);
+            if (mKeyframes[entry]) {
+                Lz4BlockCompressor.decompress(compressed, 0, mLengths[entry],
+                        frame, 0, mFrameBytes);
+            } else {
+                Lz4BlockCompressor.decompress(compressed, 0, mLengths[entry],
+                        delta, 0, mFrameBytes);
+                for (int j = 0; j < mFrameBytes; j++) {
+                    frame[j] ^= delta[j];
+                }
+            }
+            view.clear();
+            spool.writeFrame(view, mWidth, mHeight, mWidth * FrameSpool.BYTES_PER_PIXEL);
+        }
+        return mCount;
+    }
+
+    public int getFrameCount() {
+        return mCount;
+    }
+
+    /**
+     * Compressed bytes currently held.
+     */
+    public long getStoredBytes() {
+        return mStoredBytes;
+    }
+
+    /**
+     * Time from the oldest to the newest frame held, in nanoseconds.
+     */
+    public long getSpanNs() {
+        if (mCount == 0) {
+            return 0;
+        }
+        return mTimestamps[(mFirst + mCount - 1) % mTimestamps.length] - mTimestamps[mFirst];
+    }
+
+    public void clear() {
+        mFirst = 0;
+        mCount = 0;
+        mHead = 0;
+        mStoredBytes = 0;
+    }
+
+    private int arenaBytes(int budgetBytes) {
+        return Math.max(budgetBytes, Lz4BlockCompressor.maxCompressedLength(mFrameBytes));
+    }
+
+    /**
+     * Replaces the arena with one sized for {@code pressure}, dropping the frames held; the
+     * next frame starts a new group.
+     */
+    private void shrink(int pressure) {
+        mArenaPressure = pressure;
+        int capacity = arenaBytes(mBudgetBytes >> pressure);
+        if (capacity >= mArena.capacity()) {
+            return;
+        }
+        // The old arena is only given back once collected, so it is let go of first.
+        mArena = null;
+        clear();
+        mArena = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Finds room for {@code length} bytes after the newest frame, dropping the oldest groups
+     * until there is. Live frames always occupy one circular run of the arena, from the oldest
+     * frame's offset to {@code mHead}.
+     */
+    private int allocate(int length) {
+        int capacity = mArena.capacity();
+        while (true) {
+            if (mCount == 0) {
+                mHead = 0;
+                break;
+            }
+            int tail = mOffsets[mFirst];
+            if (tail < mHead) {
+                // Free space is after the head and before the tail.
+                if (mHead + length <= capacity) {
+                    break;
+                }
+                if (length <= tail) {
+                    mHead = 0;
+                    break;
+                }
+            } else if (mHead + length <= tail) {
+                break;
+            }
+            dropOldestGroup();
+        }
+        int offset = mHead;
+        mHead += length;
+        return offset;
+    }
+
+    private void append(int offset, int length, long timestamp, boolean keyframe) {
+        if (mCount == mOffsets.length) {
+            int capacity = mCount * 2;
+            mOffsets = unroll(mOffsets, capacity);
+            mLengths = unroll(mLengths, capacity);
+            long[] timestamps = new long[capacity];
+            boolean[] keyframes = new boolean[capacity];
+            for (int i = 0; i < mCount; i++) {
+                timestamps[i] = mTimestamps[(mFirst + i) % mCount];
+                keyframes[i] = mKeyframes[(mFirst + i) % mCount];
+            }
+            mTimestamps = timestamps;
+            mKeyframes = keyframes;
+            mFirst = 0;
+        }
+        int entry = (mFirst + mCount) % mOffsets.length;
+        mOffsets[entry] = offset;
+        mLengths[entry] = length;
+        mTimestamps[entry] = timestamp;
+        mKeyframes[entry] = keyframe;
+        mCount++;
+        mStoredBytes += length;
+    }
+
+    private int[] unroll(int[] values, int capacity) {
+        int[] copy = Arrays.copyOf(values, capacity);
+        for (int i = 0; i < mCount; i++) {
+            copy[i] = values[(mFirst + i) % mCount];
+        }
+        return copy;
+    }
+
+    /**
+     * Entry index of the second oldest keyframe, or -1 if there is only one group.
+     */
+    private int nextKeyframe() {
+        for (int i = 1; i < mCount; i++) {
+            int entry = (mFirst + i) % mOffsets.length;
+            if (mKeyframes[entry]) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    private void dropOldestGroup() {
+        do {
+            mStoredBytes -= mLengths[mFirst];
+            mFirst = (mFirst + 1) % mOffsets.length;
+            mCount--;
+        } while (mCount > 0 && !mKeyframes[mFirst]);
+    }
+}
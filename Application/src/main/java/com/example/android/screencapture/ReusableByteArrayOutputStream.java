@@ -0,0 +1,21 @@
+package com.example.android.screencapture;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * ByteArrayOutputStream that exposes its buffer, so encoded frames can be handed on without the
+ * copy {@link #toByteArray()} makes. Call {@link #reset()} to reuse it for the next frame.
+ */
+public class ReusableByteArrayOutputStream extends ByteArrayOutputStream {
+
+    public ReusableByteArrayOutputStream(int size) {
+        super(size);
+    }
+
+    /**
+     * Returns the internal buffer; only the first {@link #size()} bytes are valid.
+     */
+    public byte[] getBuffer() {
+        return buf;
+    }
+}
@@ -19,21 +19,11 @@ package com.example.android.screencapture;
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.graphics.Bitmap;
-import android.graphics.ImageFormat;
-import android.graphics.PixelFormat;
 import android.hardware.display.DisplayManager;
-import android.hardware.display.VirtualDisplay;
 import android.media.Image;
-import android.media.ImageReader;
-import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
 import android.os.Bundle;
-import android.os.Environment;
-import android.os.Handler;
-import android.os.Looper;
-import android.preference.PreferenceManager;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
 import android.util.DisplayMetrics;
@@ -47,17 +37,19 @@ import android.widget.Toast;
 
 import com.example.android.common.logger.Log;
 
-import java.io.FileOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.UUID;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Provides UI for the screen capture.
  */
-public class ScreenCaptureFragment extends Fragment implements View.OnClickListener {
+public class ScreenCaptureFragment extends Fragment implements View.OnClickListener,
+        CaptureSettings.OnChangeListener {
 
     private static final String TAG = "ScreenCaptureFragment";
 
@@ -73,11 +65,16 @@ public class ScreenCaptureFragment extends Fragment implements View.OnClickListe
 
     DisplayMetrics mMetrics = new DisplayMetrics();
     private Context mContext;
-    private Handler mHandler = new Handler(Looper.getMainLooper());
-    private ImageReader mImageReader;
     private Surface mSurface;
-    private MediaProjection mMediaProjection;
-    private VirtualDisplay mVirtualDisplay;
+    private CaptureSession mCaptureSession;
+    private FrameSpool mFrameSpool;
+    private FrameRecordWriter mFrameHashes;
+    private ImageAvailableCallback mImageCallback;
+    private CaptureStorage mStorage;
+    private CaptureStorage.Session mStorageSession;
+    private CaptureStorage.Session mSnapshotSession;
+    private SnapshotWriter mSnapshotWriter;
+    private MemoryGovernor mGovernor;
     private MediaProjectionManager mMediaProjectionManager;
     private Button mButtonToggle;
     private SurfaceView mSurfaceView;
@@ -91,6 +88,11 @@ public class ScreenCaptureFragment extends Fragment implements View.OnClickListe
             mResultData = savedInstanceState.getParcelable(STATE_RESULT_DATA);
         }
         mContext = getActivity();
+        mStorage = CaptureStorage.getInstance();
+        mSnapshotWriter = new SnapshotWriter();
+        mGovernor = MemoryGovernor.getInstance(mContext);
+        mGovernor.register(mSnapshotWriter);
+        CaptureSettings.addOnChangeListener(this);
     }
 
     @Nullable
@@ -108,35 +110,27 @@ public class ScreenCaptureFragment extends Fragment implements View.OnClickListe
 
         mButtonToggle = (Button) view.findViewById(R.id.toggle);
         mButtonToggle.setOnClickListener(this);
+        view.findViewById(R.id.replay).setOnClickListener(this);
 
         mRootView = view.getRootView();
-        mRootView.setDrawingCacheEnabled(true);
 
         Button snapshot = (Button) view.findViewById(R.id.snapshot);
         snapshot.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                mRootView.buildDrawingCache();
-                Bitmap bitmap = Bitmap.createBitmap(mRootView.getDrawingCache());
-                FileOutputStream fos = null;
-
-                try {
-                    String filename = String.format("Screenshot-%s.png", UUID.randomUUID().toString());
-                    fos = new FileOutputStream(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES) + "/" + filename);
-                    bitmap.compress(Bitmap.CompressFormat.JPEG, 100, fos);
-                } catch (Exception ex){
-                    ex.printStackTrace();
-                } finally {
-                    if(fos != null){
-                        try {
-                            fos.close();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
+                if (mStorage.isThrottled()) {
+                    Log.w(TAG, "Storage budget exhausted, skipping snapshot");
+                    return;
+                }
+                if (mSnapshotSession == null) {
+                    mSnapshotSession = mStorage.beginSession("Snapshots");
+                }
+                // Drawn here, encoded and written on the writer's thread.
+                if (!mSnapshotWriter.snapshot(mRootView, mSnapshotSession,
+                        CaptureSettings.get(mContext))) {
+                    Log.w(TAG, "View not laid out or snapshots still being written, "
+                            + "skipping snapshot");
                 }
-
-                mRootView.destroyDrawingCache();
             }
         });
     }
@@ -150,16 +144,6 @@ public class ScreenCaptureFragment extends Fragment implements View.OnClickListe
         mScreenDensity = mMetrics.densityDpi;
         mMediaProjectionManager = (MediaProjectionManager)
                 activity.getSystemService(Context.MEDIA_PROJECTION_SERVICE);
-
-        // start capture handling thread
-        new Thread() {
-            @Override
-            public void run() {
-                Looper.prepare();
-                mHandler = new Handler();
-                Looper.loop();
-            }
-        }.start();
     }
 
     @Override
@@ -175,12 +159,17 @@ public class ScreenCaptureFragment extends Fragment implements View.OnClickListe
     public void onClick(View v) {
         switch (v.getId()) {
             case R.id.toggle:
-                if (mVirtualDisplay == null) {
+                if (mCaptureSession == null || !mCaptureSession.isCapturing()) {
                     startScreenCapture();
                 } else {
                     stopScreenCapture();
                 }
                 break;
+            case R.id.replay:
+                if (mImageCallback == null || !mImageCallback.saveReplay()) {
+                    Log.w(TAG, "Instant replay is not running, nothing to save");
+                }
+                break;
         }
     }
 
@@ -213,22 +202,66 @@ public class ScreenCaptureFragment extends Fragment implements View.OnClickListe
     @Override
     public void onDestroy() {
         super.onDestroy();
+        CaptureSettings.removeOnChangeListener(this);
         tearDownMediaProjection();
+        if (mSnapshotSession != null) {
+            final CaptureStorage.Session session = mSnapshotSession;
+            mSnapshotSession = null;
+            // Queued behind any snapshot still being written.
+            mSnapshotWriter.getHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    session.end();
+                }
+            });
+        }
+        mGovernor.unregister(mSnapshotWriter);
+        mSnapshotWriter.quit();
     }
 
-    private boolean getScreenshotSetting(){
-        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(mContext);
-        return sharedPreferences.getBoolean(SettingsActivity.KEY_PREF_CAPTURE_SCREENSHOT, false);
+    @Override
+    public void onCaptureSettingsChanged(CaptureSettings previous, CaptureSettings current) {
+        mStorage.setBudgetBytes(current.getStorageBudgetBytes());
+        // Per frame knobs are picked up by the running capture, anything else re-targets the
+        // display, which is cheap since the projection and display are kept.
+        if (mCaptureSession != null && mCaptureSession.isCapturing()
+                && current.needsRestartFrom(previous)) {
+            Log.i(TAG, "Capture settings changed, restarting capture");
+            stopScreenCapture();
+            startScreenCapture();
+        }
     }
 
     private void setUpMediaProjection() {
-        mMediaProjection = mMediaProjectionManager.getMediaProjection(mResultCode, mResultData);
+        // Replacing a session without releasing it would leak its capture thread.
+        if (mCaptureSession != null) {
+            mCaptureSession.release();
+        }
+        // One display is reused for both the preview and ImageReader targets.
+        mCaptureSession = new CaptureSession(
+                mMediaProjectionManager.getMediaProjection(mResultCode, mResultData),
+                mScreenDensity, DisplayManager.VIRTUAL_DISPLAY_FLAG_AUTO_MIRROR);
+        mCaptureSession.setStopListener(new CaptureSession.StopListener() {
+            @Override
+            public void onProjectionStopped(CaptureSession session) {
+                if (session != mCaptureSession) {
+                    return;
+                }
+                Log.i(TAG, "Projection stopped from outside, ending capture");
+                // The pipeline is drained on the capture thread before it quits.
+                stopScreenCapture();
+                tearDownMediaProjection();
+                // The permission went with the projection, the next start asks again.
+                mResultCode = 0;
+                mResultData = null;
+            }
+        });
     }
 
     private void tearDownMediaProjection() {
-        if (mMediaProjection != null) {
-            mMediaProjection.stop();
-            mMediaProjection = null;
+        if (mCaptureSession != null) {
+            mCaptureSession.release();
+            mCaptureSession = null;
         }
     }
 
@@ -237,7 +270,8 @@ public class ScreenCaptureFragment extends Fragment implements View.OnClickListe
         if (mSurface == null || activity == null) {
             return;
         }
-        if (mMediaProjection != null) {
+        if (mCaptureSession != null
+                && mCaptureSession.getState() != CaptureSession.State.RELEASED) {
             setUpVirtualDisplay();
         } else if (mResultCode != 0 && mResultData != null) {
             setUpMediaProjection();
@@ -253,7 +287,7 @@ public class ScreenCaptureFragment extends Fragment implements View.OnClickListe
 
     private void setUpVirtualDisplay() {
 
-        if(getScreenshotSetting()){
+        if(CaptureSettings.get(mContext).isScreenshot()){
             setUpVirtualImageReaderDisplay();
         } else {
             setUpVirtualSurfaceViewDisplay();
@@ -264,169 +298,904 @@ public class ScreenCaptureFragment extends Fragment implements View.OnClickListe
         int height = mSurfaceView.getHeight();
         int width = mSurfaceView.getWidth();
 
-        Log.i(TAG, "Setting up a VirtualDisplay: " +
-                width + "x" + height +
-                " (" + mScreenDensity + ")");
-        mVirtualDisplay = mMediaProjection.createVirtualDisplay("ScreenCapture",
-                width, height, mScreenDensity,
-                DisplayManager.VIRTUAL_DISPLAY_FLAG_AUTO_MIRROR,
-                mSurface, null, null);
+        Log.i(TAG, "Setting up a VirtualDisplay: %dx%d (%d)", width, height, mScreenDensity);
+        mCaptureSession.startToSurface(mSurface, width, height);
         mButtonToggle.setText(R.string.stop);
     }
 
     private void setUpVirtualImageReaderDisplay(){
-        int height = mSurfaceView.getHeight();
-        int width = mSurfaceView.getWidth();
+        CaptureSettings settings = CaptureSettings.get(mContext);
+        // The display renders at the scaled size, so frames arrive already downscaled.
+        int height = settings.scale(mSurfaceView.getHeight());
+        int width = settings.scale(mSurfaceView.getWidth());
 
+        mStorage.setBudgetBytes(settings.getStorageBudgetBytes());
+        mStorageSession = mStorage.beginSession("Capture");
+        boolean raw = settings.isRawSpool();
+        openFrameSpool(raw && settings.isCompressSpool());
 
-        mImageReader = ImageReader.newInstance(width, height, PixelFormat.RGBA_8888, 2);
-        mVirtualDisplay = mMediaProjection.createVirtualDisplay("Screenshot",
-                width, height, mScreenDensity,
-                DisplayManager.VIRTUAL_DISPLAY_FLAG_OWN_CONTENT_ONLY | DisplayManager.VIRTUAL_DISPLAY_FLAG_PUBLIC,
-                mImageReader.getSurface(),
-                new VirtualDisplayCallback(),
-                mHandler);
-        mImageReader.setOnImageAvailableListener(new ImageAvailableCallback(height, width), mHandler);
+        mImageCallback = new ImageAvailableCallback(height, width, mStorageSession, mFrameSpool,
+                mFrameHashes, raw, settings.getBurstFrames());
+        mGovernor.register(mImageCallback);
+        // Each reader buffer is a full frame; under pressure fewer are enough to keep up.
+        int buffers = Math.max(2, mGovernor.shrink(settings.getBufferCount()));
+        mCaptureSession.startToReader(width, height, buffers, mImageCallback);
+        mButtonToggle.setText(R.string.stop);
     }
 
     private void stopScreenCapture() {
-        if (mVirtualDisplay == null) {
+        if (mCaptureSession == null) {
             return;
         }
-        mVirtualDisplay.release();
-        mVirtualDisplay = null;
+        // Keeps the projection and display alive so the next start is cheap. A session the
+        // system released is no longer capturing, but its pipeline still has to be torn down.
+        mCaptureSession.pause();
         mButtonToggle.setText(R.string.start);
+        if (mImageCallback != null) {
+            // A burst cut short is still stored, before the spool closes.
+            mImageCallback.finishBurst();
+            mImageCallback.finishEncoding();
+            mGovernor.unregister(mImageCallback);
+            mImageCallback = null;
+        }
+        closeFrameSpool();
+        endStorageSession();
+        // Per-frame messages held back during the capture would otherwise go unreported.
+        Activity activity = getActivity();
+        if (activity instanceof MainActivity) {
+            ((MainActivity) activity).flushLogSummaries();
+        }
     }
 
+    private void endStorageSession() {
+        final CaptureStorage.Session session = mStorageSession;
+        if (session == null) {
+            return;
+        }
+        mStorageSession = null;
+        // Queued behind any frame still being written on the capture thread.
+        mCaptureSession.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                session.end();
+            }
+        });
+    }
 
-    private class VirtualDisplayCallback extends VirtualDisplay.Callback{
-        @Override
-        public void onPaused(){
-            super.onPaused();
-            Log.d(TAG, "VirtualDisplayCallback: onPaused");
+    private void openFrameSpool(boolean compress) {
+        File file = mStorageSession.newFile("frames.spool");
+        try {
+            // Segmented, so the oldest frames can be evicted while over budget.
+            mFrameSpool = new FrameSpool(file, compress, FrameSpool.DEFAULT_BAND_ROWS,
+                    FrameRecordWriter.DEFAULT_SYNC_BYTES, FrameRecordWriter.DEFAULT_SYNC_INTERVAL_MS,
+                    FrameSpool.DEFAULT_SEGMENT_BYTES);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open frame spool", e);
+            return;
+        }
+        // Perceptual hashes of the spooled frames, for near-duplicate search.
+        try {
+            mFrameHashes = new FrameRecordWriter(mStorageSession.newFile(FrameHashIndex.FILE_NAME),
+                    FrameRecordWriter.DEFAULT_SYNC_BYTES, FrameRecordWriter.DEFAULT_SYNC_INTERVAL_MS);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open frame hashes", e);
         }
+    }
 
-        @Override
-        public void onResumed(){
-            super.onResumed();
-            Log.d(TAG, "VirtualDisplayCallback: onResumed");
+    private void closeFrameSpool() {
+        final FrameSpool spool = mFrameSpool;
+        final FrameRecordWriter hashes = mFrameHashes;
+        final CaptureStorage.Session session = mStorageSession;
+        if (spool == null) {
+            return;
         }
+        mFrameSpool = null;
+        mFrameHashes = null;
+        // Frames are written on the capture thread, so close the spool there once it drains.
+        mCaptureSession.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    spool.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to close frame spool", e);
+                }
+                if (hashes != null) {
+                    try {
+                        hashes.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Unable to close frame hashes", e);
+                    }
+                    // Reported once closed, see onStored.
+                    File file = session.newFile(FrameHashIndex.FILE_NAME);
+                    session.recordWrite(file, file.length());
+                }
+                Log.i(TAG, "Spooled %d frames, %d bytes raw, %d bytes written to %d files in %d"
+                        + " commits", spool.getFrameCount(), spool.getRawBytes(),
+                        spool.getWrittenBytes(), spool.getSegmentCount(), spool.getCommitCount());
+            }
+        });
+    }
 
-        @Override
-        public void onStopped(){
-            super.onStopped();
-            Log.d(TAG, "VirtualDisplayCallback: onStopped");
+    /**
+     * One region of a frame on its way to the spool: its pixels, then its hash and encoded
+     * levels. With parallel encoding the pixels are in a {@link FrameArena} slab shared by the
+     * frame's regions, since the image goes back to the reader before the job is encoded; the
+     * job holds a reference until the pixels are converted. Bitmaps and scratch are kept for the
+     * next frame the job carries.
+     */
+    private static class EncodeJob {
+
+        long mHash;
+        long mArrival;
+        CaptureSettings mSettings;
+        boolean mThumbnails;
+        int mLevels;
+        final ReusableByteArrayOutputStream[] mEncoded =
+                new ReusableByteArrayOutputStream[MipPyramid.LEVELS];
+        final int[] mLevelWidths = new int[MipPyramid.LEVELS];
+        final int[] mLevelHeights = new int[MipPyramid.LEVELS];
+
+        private ByteBuffer mSource;
+        private FrameArena.Slab mSlab;
+        private int mRowStride;
+        private int mWidth;
+        private int mHeight;
+        private int[] mPixels;
+        private final Bitmap[] mBitmaps = new Bitmap[MipPyramid.LEVELS];
+        private final MipPyramid mPyramid = new MipPyramid();
+
+        /**
+         * Points the job at a region of a plane, to be encoded before the plane is released.
+         *
+         * @param slab Slab the pixels are staged in, retained until they are converted, or null
+         *             for a plane encoded right away.
+         */
+        void wrap(ByteBuffer pixels, CaptureRegion region, int rowStride,
+                  FrameArena.Slab slab) {
+            mSource = pixels;
+            mSlab = slab != null ? slab.retain() : null;
+            mRowStride = rowStride;
+            mWidth = region.getWidth();
+            mHeight = region.getHeight();
+        }
+
+        /**
+         * Hashes the pixels, converts them to ARGB and compresses the frame, and its smaller
+         * levels when thumbnails are stored.
+         */
+        boolean encode() {
+            int width = mWidth;
+            int height = mHeight;
+            try {
+                mHash = PerceptualHash.dHash(mSource, width, height, mRowStride,
+                        FrameSpool.BYTES_PER_PIXEL);
+
+                // Reads one region row at a time, as little endian ints straight from the
+                // buffer, so there is no byte[] copy of the row.
+                if (mPixels == null || mPixels.length < width * height) {
+                    mPixels = new int[width * height];
+                }
+                int[] argb = mPixels;
+                boolean thumbnails = mThumbnails;
+                if (thumbnails) {
+                    mPyramid.begin(argb, width, height);
+                }
+                IntBuffer rows = mSource.duplicate().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+                int intStride = mRowStride / FrameSpool.BYTES_PER_PIXEL;
+                for (int y = 0; y < height; y++) {
+                    rows.position(y * intStride);
+                    int out = y * width;
+                    rows.get(argb, out, width);
+                    for (int end = out + width; out < end; out++) {
+                        // Bytes R, G, B, A read as 0xAABBGGRR.
+                        int pixel = argb[out];
+                        argb[out] = pixel & 0xff00ff00 | (pixel & 0xff) << 16
+                                | (pixel >>> 16) & 0xff;
+                    }
+                    if (thumbnails) {
+                        // Smaller levels are averaged from the rows just converted.
+                        mPyramid.onRow(y);
+                    }
+                }
+                releaseSource();
+
+                mLevels = 0;
+                encodeLevel(argb, width, height);
+                for (int level = 1; thumbnails && level < MipPyramid.LEVELS; level++) {
+                    int levelWidth = mPyramid.getWidth(level);
+                    int levelHeight = mPyramid.getHeight(level);
+                    if (levelWidth == 0 || levelHeight == 0) {
+                        break;
+                    }
+                    encodeLevel(mPyramid.getLevel(level), levelWidth, levelHeight);
+                }
+                return true;
+            } catch (Exception ex) {
+                Log.e(TAG, "Unable to encode frame", ex);
+                return false;
+            } finally {
+                releaseSource();
+            }
+        }
+
+        /**
+         * Recycles the job's bitmaps; it can still be used, they are created again.
+         */
+        void release() {
+            for (int level = 0; level < mBitmaps.length; level++) {
+                if (mBitmaps[level] != null) {
+                    mBitmaps[level].recycle();
+                    mBitmaps[level] = null;
+                }
+            }
+        }
+
+        private void releaseSource() {
+            mSource = null;
+            if (mSlab != null) {
+                mSlab.release();
+                mSlab = null;
+            }
+        }
+
+        private void encodeLevel(int[] argb, int width, int height) {
+            Bitmap bitmap = mBitmaps[mLevels];
+            if (bitmap == null || bitmap.getWidth() != width || bitmap.getHeight() != height) {
+                if (bitmap != null) {
+                    bitmap.recycle();
+                }
+                bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                mBitmaps[mLevels] = bitmap;
+            }
+            bitmap.setPixels(argb, 0, width, 0, 0, width, height);
+
+            ReusableByteArrayOutputStream encoded = mEncoded[mLevels];
+            if (encoded == null) {
+                encoded = new ReusableByteArrayOutputStream(mLevels == 0 ? 512 * 1024 : 64 * 1024);
+                mEncoded[mLevels] = encoded;
+            }
+            encoded.reset();
+            bitmap.compress(mSettings.getCompressFormat(), mSettings.getQuality(), encoded);
+            mLevelWidths[mLevels] = width;
+            mLevelHeights[mLevels] = height;
+            mLevels++;
         }
     }
 
-    private class ImageAvailableCallback implements ImageReader.OnImageAvailableListener{
+    private class ImageAvailableCallback implements CaptureSession.FrameListener,
+            OrderedEncoder.Stage<EncodeJob>, MemoryGovernor.Client {
 
         private int mHeight;
         private int mWidth;
+        private CaptureStorage.Session mSession;
+        private FrameSpool mSpool;
+        private FrameRecordWriter mHashes;
+        private final byte[] mHashRecord = new byte[FrameHashIndex.RECORD_SIZE];
+        private boolean mRaw;
+        private long mLastFrameTimestamp;
+        private ReusableByteArrayOutputStream mEncoded = new ReusableByteArrayOutputStream(512 * 1024);
+        // Null when frames are encoded on the capture thread, through mSerialJob.
+        private final OrderedEncoder<EncodeJob> mEncoder;
+        private final EncodeJob mSerialJob = new EncodeJob();
+        private final EncodeJob[] mJobs;
+        // Staging for the encoder threads, null along with mEncoder.
+        private final FrameArena mArena;
+        // Slab of the frame being stored, while its regions are handed to the encoder.
+        private FrameArena.Slab mFrameSlab;
+        // Regions of the settings last seen, clamped to the frame size they were clamped for.
+        private CaptureRegion[] mRegions;
+        private CaptureRegion[] mClampedRegions;
+        private int mClampedWidth;
+        private int mClampedHeight;
+        // Arrival of the frame being stored, until one of its regions is stored.
+        private long mArrival;
+        private final LumaConverter mLuma = new LumaConverter();
+        // Created on the first YUV frame.
+        private YuvConverter mYuv;
+        private GrayPngEncoder mGrayEncoder;
+        private final MotionDetector mMotion = new MotionDetector();
+        private final FramePacingAnalyzer mPacing = new FramePacingAnalyzer();
+        private final boolean mBurstMode;
+        // Dropped once stored, a capture takes one burst.
+        private BurstBuffer mBurst;
+        // Dropped under critical memory pressure, for the rest of the capture.
+        private volatile ReplayRing mReplay;
+        private volatile int mPressure;
+        // Null when not streaming.
+        private final FrameStreamServer mStream;
+        // Syncs the last frames once frames stop arriving, which appends alone never notice.
+        private final Runnable mSyncTask = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mSpool.commitIfDue();
+                    if (mHashes != null) {
+                        mHashes.commitIfDue();
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to sync frame spool", e);
+                }
+                mCaptureSession.getHandler().postDelayed(this,
+                        FrameRecordWriter.DEFAULT_SYNC_INTERVAL_MS);
+            }
+        };
 
-        private ImageAvailableCallback(int height, int width){
+        private ImageAvailableCallback(int height, int width, CaptureStorage.Session session,
+                                       FrameSpool spool, FrameRecordWriter hashes,
+                                       boolean raw, int burstFrames){
             mHeight = height;
             mWidth = width;
+            mSession = session;
+            mSpool = spool;
+            mHashes = hashes;
+            mRaw = raw;
+            BurstBuffer burst = null;
+            if (burstFrames > 0) {
+                // Allocated before capture starts, so the burst itself only copies.
+                try {
+                    burst = new BurstBuffer(width, height, burstFrames);
+                    Log.i(TAG, "Burst of up to %d frames, %d bytes reserved", burst.getCapacity(),
+                            (long) burst.getCapacity() * burst.getRowStride() * height);
+                } catch (OutOfMemoryError e) {
+                    Log.e(TAG, "No memory for a burst, storing frames as they arrive", e);
+                }
+            }
+            mBurst = burst;
+            mBurstMode = burst != null;
+            CaptureSettings settings = CaptureSettings.get(mContext);
+            int threads = settings.getParallelism();
+            if (threads > 1) {
+                EncodeJob[] jobs = new EncodeJob[settings.getFramesInFlight()];
+                for (int i = 0; i < jobs.length; i++) {
+                    jobs[i] = new EncodeJob();
+                }
+                mJobs = jobs;
+                mEncoder = new OrderedEncoder<EncodeJob>(this, jobs, threads, "FrameEncoder");
+                // A frame's slab is released once its regions are converted, so frames in
+                // flight never need more slabs than jobs.
+                mArena = new FrameArena(width * height * FrameSpool.BYTES_PER_PIXEL, jobs.length,
+                        BuildConfig.DEBUG);
+                mGovernor.register(mArena);
+                Log.i(TAG, "Encoding on %d threads, up to %d frames in flight", threads,
+                        jobs.length);
+            } else {
+                mJobs = null;
+                mEncoder = null;
+                mArena = null;
+            }
+            int replaySeconds = settings.getReplaySeconds();
+            if (replaySeconds > 0 && !mBurstMode) {
+                mReplay = new ReplayRing(width, height, replaySeconds * 1000000000L,
+                        ReplayRing.budgetFor(Runtime.getRuntime().maxMemory(),
+                                width * height * FrameSpool.BYTES_PER_PIXEL),
+                        ReplayRing.DEFAULT_KEYFRAME_INTERVAL);
+                mGovernor.register(mReplay);
+                Log.i(TAG, "Instant replay of %d s in %d bytes", replaySeconds,
+                        mReplay.getCapacity());
+            }
+            mStream = openStream(settings.getStreamPort());
+            if (spool != null) {
+                mCaptureSession.getHandler().postDelayed(mSyncTask,
+                        FrameRecordWriter.DEFAULT_SYNC_INTERVAL_MS);
+            }
+        }
+
+        private FrameStreamServer openStream(int port) {
+            if (port == 0) {
+                return null;
+            }
+            try {
+                // Loopback only: viewers reach it through adb forward, not the network.
+                FrameStreamServer stream = new FrameStreamServer(port, true);
+                Log.i(TAG, "Streaming frames on port %d", stream.getPort());
+                return stream;
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to stream frames on port " + port, e);
+                return null;
+            }
         }
 
         @Override
-        public void onImageAvailable(ImageReader reader) {
-            //Process the image
-            Image image = null;
-            FileOutputStream fos = null;
-            Bitmap bitmap = null;
-
-            try{
-                String filename = String.format("Screenshot-%s.png", UUID.randomUUID().toString());
-
-                image = mImageReader.acquireLatestImage();
-                int height = image.getHeight();
-                int width = image.getWidth();
-                fos = new FileOutputStream(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES) + "/" + filename);
-                final Image.Plane[] planes = image.getPlanes();
-
-                final int PIXEL_FORMAT = 4;
-                final int HEADER_BUFFER_CAPACITY = 12;
-                ByteBuffer.allocate(HEADER_BUFFER_CAPACITY).order(ByteOrder.LITTLE_ENDIAN).putInt(width).putInt(height).putInt(PIXEL_FORMAT).rewind();
-
-                //Attempt #1
-//                final Buffer buffer = planes[0].getBuffer().rewind();
-//                bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-
-
-                //Attempt #2
-//                int offset = 0;
-//                int pixelStride = planes[0].getPixelStride();
-//                int rowStride = planes[0].getRowStride();
-//                int rowPadding = rowStride - pixelStride * width;
-//                bitmap = Bitmap.createBitmap(mMetrics, width, height, Bitmap.Config.ARGB_8888);
-//                final ByteBuffer buffer = planes[0].getBuffer();
-//                for (int i = 0; i < height; ++i) {
-//                    for (int j = 0; j < width; ++j) {
-//                        int pixel = 0;
-//                        pixel |= (buffer.get(offset) & 0xff) << 16;     // R
-//                        pixel |= (buffer.get(offset + 1) & 0xff) << 8;  // G
-//                        pixel |= (buffer.get(offset + 2) & 0xff);       // B
-//                        pixel |= (buffer.get(offset + 3) & 0xff) << 24; // A
-//                        bitmap.setPixel(j, i, pixel);
-//                        offset += pixelStride;
-//                    }
-//                    offset += rowPadding;
-//                }
-//                bitmap.copyPixelsFromBuffer(buffer);
-//                bitmap.compress(Bitmap.CompressFormat.JPEG, 100, fos);
-
-                //Attempt #3 - working
-                if (bitmap == null) {
-                    bitmap = Bitmap.createBitmap(image.getWidth(), image.getHeight(), Bitmap.Config.ARGB_8888);
-                }
-                final ByteBuffer imageBuffer = (ByteBuffer) planes[0].getBuffer().rewind();
-                byte[] buffer = new byte[imageBuffer.capacity()];
-                imageBuffer.get(buffer);
-                imageBuffer.position(0);
-
-                int stride = planes[0].getRowStride() / planes[0].getPixelStride();
-
-                int[] pixels = new int[stride * image.getHeight()];
-                int length = buffer.length;
-
-                for (int ix = 0; ix < length; ix+= 4) {
-
-                    int rowPos = ix != 0 ? ix >> 2 : 0;
-
-                    pixels[rowPos] =
-                            0xff000000 & buffer[ix + 3] << 24 |
-                                    0xff0000   & buffer[ix]     << 16 |
-                                    0xff00     & buffer[ix + 1] << 8  |
-                                    0xff       & buffer[ix + 2];
-                }
-
-                bitmap.setPixels(
-                        pixels,
-                        0,
-                        stride,
-                        0, 0,
-                        image.getWidth(),
-                        image.getHeight()
-                );
-
-                bitmap.compress(Bitmap.CompressFormat.JPEG, 100, fos);
-            } catch (Exception ex){
-                ex.printStackTrace();
-            } finally {
-                if(fos != null){
-                    try{
-                        fos.close();
-                    } catch (IOException ioe){
-                        ioe.printStackTrace();
+        public void onFrame(Image image) {
+            // Frames still queued after the capture stopped are dropped.
+            if (mSpool == null || !mSpool.isOpen() || mStorage.isThrottled()) {
+                return;
+            }
+            long arrival = System.nanoTime();
+            long timestamp = image.getTimestamp();
+            // Encoder threads report stored frames too.
+            synchronized (mPacing) {
+                mPacing.onFrameArrived(timestamp, arrival);
+                if (mPacing.shouldReport(arrival) && Log.isLoggable(Log.INFO)) {
+                    Log.i(TAG, "Capture pacing: %s", mPacing.summarize());
+                }
+            }
+            if (mGovernor.relax(arrival) == MemoryGovernor.PRESSURE_CRITICAL) {
+                releaseCaches();
+            }
+            if (mBurstMode) {
+                recordBurst(image);
+                return;
+            }
+            CaptureSettings settings = CaptureSettings.get(mContext);
+            if (mLastFrameTimestamp != 0
+                    && timestamp - mLastFrameTimestamp < settings.getMinFrameIntervalNs()) {
+                return;
+            }
+            mLastFrameTimestamp = timestamp;
+
+            if (mStream != null && image.getWidth() == mWidth && image.getHeight() == mHeight) {
+                // Copies the frame and returns, however slow the viewers are.
+                Image.Plane plane = image.getPlanes()[0];
+                mStream.publish(plane.getBuffer(), mWidth, mHeight, plane.getRowStride(),
+                        timestamp);
+            }
+
+            ReplayRing replay = mReplay;
+            if (replay != null) {
+                // Nothing reaches the disk until the replay is saved.
+                if (image.getWidth() == mWidth && image.getHeight() == mHeight) {
+                    Image.Plane plane = image.getPlanes()[0];
+                    replay.add(plane.getBuffer(), plane.getRowStride(), timestamp);
+                }
+                return;
+            }
+
+            // Mostly idle screens: skip frames that barely differ from the last stored one,
+            // judged from a sparse sample of the plane before anything is converted.
+            float motionThreshold = settings.getMotionThreshold();
+            if (motionThreshold > 0) {
+                Image.Plane plane = image.getPlanes()[0];
+                float changed = mMotion.measure(plane.getBuffer(), image.getWidth(),
+                        image.getHeight(), plane.getRowStride(), plane.getPixelStride());
+                if (changed < motionThreshold) {
+                    return;
+                }
+                mMotion.accept();
+            }
+
+            Image.Plane plane = image.getPlanes()[0];
+            mArrival = arrival;
+            storeFrame(plane.getBuffer(), image.getWidth(), image.getHeight(),
+                    plane.getRowStride(), plane.getPixelStride(), settings);
+            mArrival = 0;
+        }
+
+        @Override
+        public void onMemoryPressure(int pressure) {
+            mPressure = pressure;
+            if (mEncoder != null) {
+                mEncoder.setMaxInFlight(MemoryGovernor.shrink(mEncoder.getCapacity(), pressure));
+            }
+        }
+
+        /**
+         * Gives up the in-memory frame stores, on the capture thread. A burst is stored as far
+         * as it got; the replay is lost, saving it would need as much memory again.
+         */
+        private void releaseCaches() {
+            if (mReplay != null) {
+                Log.w(TAG, "Memory critically low, dropping the instant replay");
+                mGovernor.unregister(mReplay);
+                mReplay = null;
+            }
+            if (mBurst != null && mBurst.getFrameCount() > 0) {
+                Log.w(TAG, "Memory critically low, ending the burst at %d frames",
+                        mBurst.getFrameCount());
+                finishBurst();
+            }
+        }
+
+        /**
+         * Stops the encoder threads on the capture thread once the frames handed to them are
+         * written, before the spool closes. Safe to call from any thread.
+         */
+        void finishEncoding() {
+            mCaptureSession.getHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    mCaptureSession.getHandler().removeCallbacks(mSyncTask);
+                    if (mReplay != null) {
+                        mGovernor.unregister(mReplay);
+                    }
+                    mSerialJob.release();
+                    if (mStream != null) {
+                        mStream.close();
+                    }
+                    if (mYuv != null) {
+                        mYuv.release();
                     }
+                    if (mGrayEncoder != null) {
+                        // Its deflater holds native memory until released.
+                        mGrayEncoder.release();
+                        mGrayEncoder = null;
+                    }
+                    if (mEncoder == null) {
+                        return;
+                    }
+                    awaitEncoder();
+                    mEncoder.shutdown();
+                    for (EncodeJob job : mJobs) {
+                        job.release();
+                    }
+                    mGovernor.unregister(mArena);
+                    mArena.reportLeaks();
                 }
-                if(bitmap != null){
-                    bitmap.recycle();
+            });
+        }
+
+        private void awaitEncoder() {
+            if (mEncoder == null) {
+                return;
+            }
+            try {
+                mEncoder.awaitIdle();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public boolean encode(EncodeJob job) {
+            return job.encode();
+        }
+
+        @Override
+        public void write(EncodeJob job) {
+            if (!mSpool.isOpen()) {
+                return;
+            }
+            long frame = mSpool.getFrameCount();
+            try {
+                // Appended to the session spool rather than opening a new file per frame.
+                for (int level = 0; level < job.mLevels; level++) {
+                    ReusableByteArrayOutputStream encoded = job.mEncoded[level];
+                    long before = mSpool.getWrittenBytes();
+                    mSpool.writeEncodedFrame(encoded.getBuffer(), encoded.size(),
+                            job.mLevelWidths[level], job.mLevelHeights[level],
+                            job.mSettings.getSpoolFormat(), level);
+                    mSession.recordWrite(mSpool.getFile(), mSpool.getWrittenBytes() - before);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to spool frame", e);
+            }
+            onStored(frame, job.mHash, job.mArrival);
+        }
+
+        /**
+         * Writes the frames in the replay ring to a new storage session, on the capture thread.
+         *
+         * @return False if this capture keeps no replay.
+         */
+        boolean saveReplay() {
+            if (mReplay == null) {
+                return false;
+            }
+            final boolean compress = CaptureSettings.get(mContext).isCompressSpool();
+            mCaptureSession.getHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    writeReplay(compress);
+                }
+            });
+            return true;
+        }
+
+        private void writeReplay(boolean compress) {
+            // Dropped if memory ran out since the save was asked for.
+            ReplayRing replay = mReplay;
+            if (replay == null || replay.getFrameCount() == 0 || mStorage.isThrottled()) {
+                return;
+            }
+            CaptureStorage.Session session = mStorage.beginSession("Replay");
+            long start = System.nanoTime();
+            try {
+                FrameSpool spool = new FrameSpool(session.newFile("frames.spool"), compress,
+                        FrameSpool.DEFAULT_BAND_ROWS, FrameRecordWriter.DEFAULT_SYNC_BYTES,
+                        FrameRecordWriter.DEFAULT_SYNC_INTERVAL_MS);
+                int frames;
+                try {
+                    frames = replay.dump(spool);
+                } finally {
+                    spool.close();
+                    session.recordWrite(spool.getFile(), spool.getWrittenBytes());
+                }
+                Log.i(TAG, "Saved replay of %d frames over %d ms in %d ms", frames,
+                        replay.getSpanNs() / 1000000, (System.nanoTime() - start) / 1000000);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to save replay", e);
+            } finally {
+                session.end();
+            }
+        }
+
+        private void recordBurst(Image image) {
+            // Once the burst is full, frames are dropped until the capture restarts.
+            if (mBurst == null || mBurst.isFull() || image.getWidth() != mBurst.getWidth()
+                    || image.getHeight() != mBurst.getHeight()) {
+                return;
+            }
+            Image.Plane plane = image.getPlanes()[0];
+            mBurst.add(plane.getBuffer(), plane.getRowStride(), image.getTimestamp());
+            if (mBurst.isFull()) {
+                Log.i(TAG, "Burst of %d frames captured", mBurst.getFrameCount());
+                finishBurst();
+            }
+        }
+
+        /**
+         * Stores the burst captured so far on the capture thread, after the image being
+         * delivered has gone back to the reader. Safe to call from any thread.
+         */
+        void finishBurst() {
+            mCaptureSession.getHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    flushBurst();
+                }
+            });
+        }
+
+        private void flushBurst() {
+            BurstBuffer burst = mBurst;
+            if (burst == null || !mSpool.isOpen()) {
+                return;
+            }
+            CaptureSettings settings = CaptureSettings.get(mContext);
+            long start = System.nanoTime();
+            int stored = 0;
+            for (; stored < burst.getFrameCount() && !mStorage.isThrottled(); stored++) {
+                storeFrame(burst.getFrame(stored), burst.getWidth(), burst.getHeight(),
+                        burst.getRowStride(), burst.getPixelStride(), settings);
+            }
+            Log.i(TAG, "Stored %d of %d burst frames in %d ms", stored, burst.getFrameCount(),
+                    (System.nanoTime() - start) / 1000000);
+            mBurst = null;
+        }
+
+        private void storeFrame(ByteBuffer plane, int width, int height, int rowStride,
+                                int pixelStride, CaptureSettings settings) {
+            // Each region is stored as a frame of its own, in region order; only its rows and
+            // columns of the plane are read.
+            CaptureRegion[] regions = clampRegions(settings.getRegions(), width, height);
+            if (mArena == null || settings.isGrayscale() || mRaw) {
+                for (CaptureRegion region : regions) {
+                    storeRegion(plane, rowStride, pixelStride, region, settings);
+                }
+                return;
+            }
+
+            // Encoded on other threads after the image is gone, so the regions are staged
+            // first, packed one after the other in a single slab.
+            mFrameSlab = stage(plane, rowStride, pixelStride, regions);
+            if (mFrameSlab == null) {
+                return;
+            }
+            try {
+                ByteBuffer staged = mFrameSlab.getBuffer();
+                int offset = 0;
+                for (CaptureRegion region : regions) {
+                    int regionStride = region.getWidth() * FrameSpool.BYTES_PER_PIXEL;
+                    ByteBuffer pixels = staged.duplicate();
+                    pixels.position(offset);
+                    // Hashed along with the encoding.
+                    encodeRegion(pixels, region, regionStride, settings);
+                    offset += regionStride * region.getHeight();
+                }
+            } finally {
+                // The jobs hold their own references.
+                mFrameSlab.release();
+                mFrameSlab = null;
+            }
+        }
+
+        /**
+         * The regions to store, clamped to the frame, or the whole frame if none are set. Kept
+         * until the settings or the frame size change, so frames allocate none.
+         */
+        private CaptureRegion[] clampRegions(CaptureRegion[] regions, int width, int height) {
+            if (regions == mRegions && width == mClampedWidth && height == mClampedHeight) {
+                return mClampedRegions;
+            }
+            List<CaptureRegion> clamped = new ArrayList<CaptureRegion>(regions.length);
+            for (CaptureRegion region : regions) {
+                CaptureRegion inside = region.clampTo(width, height);
+                if (inside != null) {
+                    clamped.add(inside);
+                }
+            }
+            if (regions.length == 0) {
+                clamped.add(new CaptureRegion(0, 0, width, height));
+            }
+            mRegions = regions;
+            mClampedWidth = width;
+            mClampedHeight = height;
+            mClampedRegions = clamped.toArray(new CaptureRegion[clamped.size()]);
+            return mClampedRegions;
+        }
+
+        /**
+         * Copies the regions of a plane into an arena slab, each one's rows packed, one region
+         * after the other.
+         *
+         * @return The slab, or null if there is nothing to stage, the regions do not fit the
+         *         arena or the wait for a slab was interrupted.
+         */
+        private FrameArena.Slab stage(ByteBuffer plane, int rowStride, int pixelStride,
+                                      CaptureRegion[] regions) {
+            long bytes = 0;
+            for (CaptureRegion region : regions) {
+                bytes += (long) region.getWidth() * region.getHeight()
+                        * FrameSpool.BYTES_PER_PIXEL;
+            }
+            if (bytes == 0) {
+                return null;
+            }
+            if (bytes > mArena.getSlabBytes()) {
+                Log.w(TAG, "Regions of %d bytes do not fit the frame arena, skipping the frame",
+                        bytes);
+                return null;
+            }
+            FrameArena.Slab slab;
+            try {
+                // Blocks while every slab is out, holding the image, so the reader drops frames
+                // rather than memory growing.
+                slab = mArena.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            ByteBuffer target = slab.getBuffer();
+            ByteBuffer source = plane.duplicate();
+            int base = plane.position();
+            for (CaptureRegion region : regions) {
+                int rowBytes = region.getWidth() * FrameSpool.BYTES_PER_PIXEL;
+                int first = base + region.offset(rowStride, pixelStride);
+                if (rowStride == rowBytes) {
+                    source.limit(first + rowBytes * region.getHeight());
+                    source.position(first);
+                    target.put(source);
+                    continue;
+                }
+                for (int y = 0; y < region.getHeight(); y++) {
+                    int start = first + y * rowStride;
+                    source.limit(start + rowBytes);
+                    source.position(start);
+                    target.put(source);
+                }
+            }
+            return slab;
+        }
+
+        private void storeRegion(ByteBuffer plane, int rowStride, int pixelStride,
+                                 CaptureRegion region, CaptureSettings settings) {
+            // A view of the plane starting at the region's first pixel; rows keep the plane's
+            // stride, so nothing outside the region is copied.
+            ByteBuffer pixels = plane.duplicate();
+            pixels.position(region.offset(rowStride, pixelStride));
+
+            if (!settings.isGrayscale() && !mRaw) {
+                // Hashed along with the encoding.
+                encodeRegion(pixels, region, rowStride, settings);
+                return;
+            }
+            long hash = PerceptualHash.dHash(pixels, region.getWidth(), region.getHeight(),
+                    rowStride, pixelStride);
+            // Written here, so after every frame already handed to the encoder threads.
+            awaitEncoder();
+            long frame = mSpool.getFrameCount();
+            if (settings.isGrayscale()) {
+                storeLuma(pixels, region, rowStride, pixelStride);
+            } else {
+                spoolRegion(pixels, region, rowStride, pixelStride, settings);
+            }
+            long arrival = mArrival;
+            mArrival = 0;
+            onStored(frame, hash, arrival);
+        }
+
+        private void encodeRegion(ByteBuffer pixels, CaptureRegion region, int rowStride,
+                                  CaptureSettings settings) {
+            EncodeJob job;
+            if (mEncoder == null) {
+                job = mSerialJob;
+            } else {
+                try {
+                    // Blocks while too many frames are in flight, like staging does.
+                    job = mEncoder.obtain();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            job.wrap(pixels, region, rowStride, mFrameSlab);
+            job.mArrival = mArrival;
+            job.mSettings = settings;
+            // Thumbnails are the first thing to go under memory pressure.
+            job.mThumbnails = settings.isStoreThumbnails()
+                    && mPressure < MemoryGovernor.PRESSURE_LOW;
+            mArrival = 0;
+            if (mEncoder != null) {
+                mEncoder.submit(job);
+            } else if (job.encode()) {
+                write(job);
+            }
+        }
+
+        /**
+         * Records the hash of a frame stored at index {@code frame} and its store latency, if
+         * anything was written.
+         */
+        private void onStored(long frame, long hash, long arrival) {
+            if (mSpool.getFrameCount() == frame) {
+                return;
+            }
+            if (arrival != 0) {
+                synchronized (mPacing) {
+                    mPacing.onFrameStored(arrival, System.nanoTime());
                 }
-                if(image != null){
-                    image.close();
+            }
+            if (mHashes != null) {
+                FrameHashIndex.encodeRecord(frame, hash, mHashRecord);
+                try {
+                    // Reported to the storage budget when closed: a few bytes per frame, and
+                    // reporting it now would make the open spool the session's evictable older
+                    // file.
+                    mHashes.append(mHashRecord, 0, mHashRecord.length);
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to record frame hash", e);
+                }
+            }
+        }
+
+        private void storeLuma(ByteBuffer pixels, CaptureRegion region, int rowStride,
+                               int pixelStride) {
+            int width = region.getWidth();
+            int height = region.getHeight();
+            // No ARGB array or bitmap: one byte per pixel straight from the plane.
+            byte[] luma = mLuma.convert(pixels, width, height, rowStride, pixelStride);
+            try {
+                long before = mSpool.getWrittenBytes();
+                if (mRaw) {
+                    mSpool.writeFrame(ByteBuffer.wrap(luma, 0, width * height), width, height,
+                            width, FrameSpool.FORMAT_Y8);
+                } else {
+                    if (mGrayEncoder == null) {
+                        mGrayEncoder = new GrayPngEncoder();
+                    }
+                    mEncoded.reset();
+                    mGrayEncoder.encode(luma, width, height, mEncoded);
+                    mSpool.writeEncodedFrame(mEncoded.getBuffer(), mEncoded.size(), width, height,
+                            FrameSpool.FORMAT_PNG);
+                }
+                mSession.recordWrite(mSpool.getFile(), mSpool.getWrittenBytes() - before);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to spool frame", e);
+            }
+        }
+
+        private void spoolRegion(ByteBuffer pixels, CaptureRegion region, int rowStride,
+                                 int pixelStride, CaptureSettings settings) {
+            int format = settings.getRawFormat();
+            try {
+                long before = mSpool.getWrittenBytes();
+                if (format == FrameSpool.PIXEL_FORMAT) {
+                    mSpool.writeFrame(pixels, region.getWidth(), region.getHeight(), rowStride);
+                } else {
+                    // 12 bits per pixel instead of 32, ready for a video encoder.
+                    if (mYuv == null) {
+                        mYuv = new YuvConverter(settings.getParallelism());
+                    }
+                    int width = region.getWidth() & ~1;
+                    int height = region.getHeight() & ~1;
+                    ByteBuffer yuv = mYuv.convert(pixels, width, height, rowStride, pixelStride,
+                            format);
+                    mSpool.writeFrame(yuv, width, height, width, format);
                 }
+                mSession.recordWrite(mSpool.getFile(), mSpool.getWrittenBytes() - before);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to spool frame", e);
             }
         }
     }
@@ -1,10 +1,12 @@
 package com.example.android.screencapture;
 
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.util.Date;
 import java.util.UUID;
 
@@ -12,30 +14,26 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.*;
-import android.graphics.Bitmap.CompressFormat;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.LayerDrawable;
 import android.hardware.display.DisplayManager;
-import android.hardware.display.VirtualDisplay;
 import android.media.Image;
-import android.media.ImageReader;
 import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
 import android.os.Bundle;
 import android.os.Environment;
-import android.os.Handler;
-import android.os.Looper;
 import android.util.DisplayMetrics;
-import android.util.Log;
 import android.view.Display;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.Button;
 import android.widget.ImageView;
 
+import com.example.android.common.logger.Log;
 
-public class ScreenCaptureImageActivity extends Activity {
+
+public class ScreenCaptureImageActivity extends Activity implements MemoryGovernor.Client {
 
     private static final String TAG = ScreenCaptureImageActivity.class.getName();
     private static final int REQUEST_CODE= 100;
@@ -44,11 +42,8 @@ public class ScreenCaptureImageActivity extends Activity {
     private static final int HEADER_BUFFER_CAPACITY = 12;
 
     private MediaProjectionManager mProjectionManager;
-    private MediaProjection mProjection;
-    private ImageReader mImageReader;
-    private Handler mHandler = new Handler(Looper.getMainLooper());
-    private int imagesProduced;
-    private long startTimeInMillis;
+    private CaptureSession mCaptureSession;
+    private FramePacingAnalyzer mPacing;
     private Buffer mHeaderBuffer;
     private int mImageCount = 0;
     private Canvas mCanvas;
@@ -58,6 +53,11 @@ public class ScreenCaptureImageActivity extends Activity {
     private String[] mFilePaths = new String[NUMBER_OF_LAYERS];
     private ImageView mImageView;
     private String mPath;
+    private CaptureStorage mStorage;
+    private CaptureStorage.Session mSession;
+    private final MipPyramid mPyramid = new MipPyramid();
+    private int[] mLevelPixels;
+    private MemoryGovernor mGovernor;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -65,6 +65,9 @@ public class ScreenCaptureImageActivity extends Activity {
         setContentView(R.layout.activity_screen_capture_image);
 
         mImageView = (ImageView) findViewById(R.id.imageView1);
+        mStorage = CaptureStorage.getInstance();
+        mGovernor = MemoryGovernor.getInstance(this);
+        mGovernor.register(this);
 
         // call for the projection manager
         mProjectionManager = (MediaProjectionManager) getSystemService(Context.MEDIA_PROJECTION_SERVICE);
@@ -88,28 +91,24 @@ public class ScreenCaptureImageActivity extends Activity {
                 stopProjection();
             }
         });
+    }
 
-        // start capture handling thread
-        new Thread() {
-            @Override
-            public void run() {
-                Looper.prepare();
-                mHandler = new Handler();
-                Looper.loop();
-            }
-        }.start();
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mGovernor.unregister(this);
+        stopProjection();
     }
 
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         if (requestCode == REQUEST_CODE) {
             // for statistics -- init
-            imagesProduced = 0;
-            startTimeInMillis = System.currentTimeMillis();
+            mPacing = new FramePacingAnalyzer();
 
-            mProjection = mProjectionManager.getMediaProjection(resultCode, data);
+            MediaProjection projection = mProjectionManager.getMediaProjection(resultCode, data);
 
-            if (mProjection != null) {
+            if (projection != null) {
                 //final String STORE_DIRECTORY = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES);
 
                 DisplayMetrics metrics = getResources().getDisplayMetrics();
@@ -118,47 +117,89 @@ public class ScreenCaptureImageActivity extends Activity {
                 Display display = getWindowManager().getDefaultDisplay();
                 Point size = new Point();
                 display.getSize(size);
-                final int width = size.x;
-                final int height = size.y;
+                CaptureSettings settings = CaptureSettings.get(this);
+                final int width = settings.scale(size.x);
+                final int height = settings.scale(size.y);
+                // Read here, on the UI thread, for picking preview levels on the capture thread.
+                final int previewWidth = mImageView.getWidth();
+
+                // Replaces any session left over from a previous start, along with its projection
+                // and storage session, before this start's session begins.
+                stopProjection();
+                mStorage.setBudgetBytes(settings.getStorageBudgetBytes());
+                // Frames only use this start's session, never the field a later stop clears.
+                final CaptureStorage.Session session = mStorage.beginSession("Capture");
+                mSession = session;
 
                 mHeaderBuffer = createImageHeaderBuffer(width, height);
-                mImageReader = ImageReader.newInstance(width, height, PixelFormat.RGBA_8888, 10);
-                mProjection.createVirtualDisplay("screencap", width, height, density, flags, mImageReader.getSurface(), new VirtualDisplayCallback(), mHandler);
-                mImageReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+                mCaptureSession = new CaptureSession(projection, density, flags);
+                // Each reader buffer is a full frame; under pressure fewer are enough to keep up.
+                int buffers = Math.max(2, mGovernor.shrink(10));
+                mCaptureSession.startToReader(width, height, buffers, new CaptureSession.FrameListener() {
+
+                    private long mLastFrameTimestamp;
 
                     @Override
-                    public void onImageAvailable(ImageReader reader) {
-                        Image image = null;
+                    public void onFrame(Image image) {
+                        long arrival = System.nanoTime();
+                        long timestamp = image.getTimestamp();
+                        mPacing.onFrameArrived(timestamp, arrival);
+                        if (mPacing.shouldReport(arrival) && Log.isLoggable(Log.INFO)) {
+                            Log.i(TAG, "Capture pacing: %s", mPacing.summarize());
+                        }
+                        CaptureSettings settings = CaptureSettings.get(ScreenCaptureImageActivity.this);
+                        if (mLastFrameTimestamp != 0
+                                && timestamp - mLastFrameTimestamp < settings.getMinFrameIntervalNs()) {
+                            return;
+                        }
+                        mLastFrameTimestamp = timestamp;
                         FileOutputStream fos = null;
                         Bitmap bitmap = null;
+                        File file = null;
 
                         try {
-                            image = mImageReader.acquireLatestImage();
-                            if (image != null) {
+                            if (!mStorage.isThrottled()) {
                                 Image.Plane[] planes = image.getPlanes();
-                                Buffer imageBuffer = planes[0].getBuffer().rewind();
+                                boolean thumbnails = settings.isStoreThumbnails();
 
                                 // create bitmap
                                 bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-                                bitmap.copyPixelsFromBuffer(imageBuffer);
+                                if (thumbnails) {
+                                    // Converted once, building the smaller levels on the way.
+                                    convert(planes[0].getBuffer(), planes[0].getRowStride(),
+                                            width, height);
+                                    bitmap.setPixels(mLevelPixels, 0, width, 0, 0, width, height);
+                                } else {
+                                    Buffer imageBuffer = planes[0].getBuffer().rewind();
+                                    bitmap.copyPixelsFromBuffer(imageBuffer);
+                                }
                                 // write bitmap to a file
 
                                 //Create the canvas we want to write to
-                                if(mCanvas == null){
+                                if (mGovernor.getPressure() != MemoryGovernor.PRESSURE_NONE) {
+                                    // Nothing draws on it yet, so it is the first thing to go.
+                                    if (mTempBitmap != null) {
+                                        mTempBitmap.recycle();
+                                        mTempBitmap = null;
+                                        mCanvas = null;
+                                    }
+                                } else if(mCanvas == null){
                                     mTempBitmap = Bitmap.createBitmap(bitmap.getWidth(), bitmap.getHeight(), Bitmap.Config.ARGB_8888);
                                     mCanvas = new Canvas(mTempBitmap);
                                 }
 
-                                String filename = String.format("Screenshot-%d.png", new Date().getTime());
-                                mPath = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES) + "/" + filename;
-                                fos = new FileOutputStream(mPath);
-                                bitmap.compress(CompressFormat.JPEG, 100, fos);
+                                String filename = String.format("Screenshot-%d.%s", new Date().getTime(),
+                                        settings.getFileExtension());
+                                file = session.newFile(filename);
+                                mPath = file.getPath();
+                                fos = new FileOutputStream(file);
+                                bitmap.compress(settings.getCompressFormat(), settings.getQuality(), fos);
+                                if (thumbnails) {
+                                    writeLevels(file, session, settings);
+                                }
 
                                 // for statistics
-                                imagesProduced++;
-                                long now = System.currentTimeMillis();
-                                long sampleTime = now - startTimeInMillis;
-                                Log.e(TAG, "produced images at rate: " + (imagesProduced/(sampleTime/1000.0f)) + " per sec");
+                                mPacing.onFrameStored(arrival, System.nanoTime());
 
                                 //Display Image on View
                                 //ImageView mImageView = (ImageView) findViewById(R.id.imageView1);
@@ -168,24 +209,25 @@ public class ScreenCaptureImageActivity extends Activity {
                                 //mCanvas.drawBitmap(bitmap, 0, 0, null);
                                 //mImageView.setImageDrawable(new BitmapDrawable(getResources(), mTempBitmap));
 
-                                mFilePaths[mImageCount] = mPath;
+                                mFilePaths[mImageCount] = previewPath(mPath, width, previewWidth);
                                 mImageCount++;
 
 
                                 if (mImageCount == NUMBER_OF_LAYERS) {
-
+                                    // Handed over whole, so the UI thread never reads what the
+                                    // capture thread goes on filling.
+                                    final String[] paths = mFilePaths;
+                                    mImageCount = 0; //reset the image count
+                                    mFilePaths = new String[NUMBER_OF_LAYERS]; //reset the file paths
 
                                     runOnUiThread(new Runnable() {
                                         @Override
                                         public void run() {
-                                            for (int i = 0; i < mImageCount; i++) {
-                                                Bitmap myBitmap = BitmapFactory.decodeFile(mPath);
+                                            for (int i = 0; i < paths.length; i++) {
+                                                Bitmap myBitmap = BitmapFactory.decodeFile(paths[i]);
                                                 mLayers[i] = new BitmapDrawable(getResources(), myBitmap);
                                             }
 
-                                            mImageCount = 0; //reset the image count
-                                            mFilePaths = new String[NUMBER_OF_LAYERS]; //reset the file paths
-
                                             LayerDrawable layerDrawable = new LayerDrawable(mLayers);
                                             mImageView.setImageDrawable(layerDrawable);
                                             mLayers = new Drawable[NUMBER_OF_LAYERS]; //Reset the layers
@@ -207,19 +249,16 @@ public class ScreenCaptureImageActivity extends Activity {
                                 } catch (IOException ioe) {
                                     ioe.printStackTrace();
                                 }
+                                session.recordWrite(file, file.length());
                             }
 
 //                            if (bitmap!=null) {
 //                                bitmap.recycle();
 //                            }
-
-                            if (image!=null) {
-                                image.close();
-                            }
                         }
                     }
 
-                }, mHandler);
+                });
             }
         }
 
@@ -227,6 +266,87 @@ public class ScreenCaptureImageActivity extends Activity {
     }
 
 
+    @Override
+    public void onMemoryPressure(int pressure) {
+        if (pressure < MemoryGovernor.PRESSURE_LOW) {
+            return;
+        }
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                // The layered preview holds up to NUMBER_OF_LAYERS decoded frames.
+                mImageView.setImageDrawable(null);
+            }
+        });
+    }
+
+    /**
+     * Converts an RGBA plane to ARGB ints in {@link #mLevelPixels}, building the
+     * {@link MipPyramid} levels from each row as it is converted.
+     */
+    private void convert(ByteBuffer plane, int rowStride, int width, int height) {
+        if (mLevelPixels == null || mLevelPixels.length < width * height) {
+            mLevelPixels = new int[width * height];
+        }
+        int[] argb = mLevelPixels;
+        mPyramid.begin(argb, width, height);
+        IntBuffer rows = plane.duplicate().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        int intStride = rowStride / FrameSpool.BYTES_PER_PIXEL;
+        for (int y = 0; y < height; y++) {
+            rows.position(y * intStride);
+            int out = y * width;
+            rows.get(argb, out, width);
+            for (int end = out + width; out < end; out++) {
+                // Bytes R, G, B, A read as 0xAABBGGRR.
+                int pixel = argb[out];
+                argb[out] = pixel & 0xff00ff00 | (pixel & 0xff) << 16 | (pixel >>> 16) & 0xff;
+            }
+            mPyramid.onRow(y);
+        }
+    }
+
+    /**
+     * Writes the smaller {@link MipPyramid} levels of the frame last converted next to its file.
+     */
+    private void writeLevels(File file, CaptureStorage.Session session, CaptureSettings settings)
+            throws IOException {
+        for (int level = 1; level < MipPyramid.LEVELS; level++) {
+            int levelWidth = mPyramid.getWidth(level);
+            int levelHeight = mPyramid.getHeight(level);
+            if (levelWidth == 0 || levelHeight == 0) {
+                break;
+            }
+            Bitmap small = Bitmap.createBitmap(mPyramid.getLevel(level), 0, levelWidth,
+                    levelWidth, levelHeight, Bitmap.Config.ARGB_8888);
+            File levelFile = session.newFile(MipPyramid.levelFileName(file.getName(), level));
+            FileOutputStream out = new FileOutputStream(levelFile);
+            try {
+                small.compress(settings.getCompressFormat(), settings.getQuality(), out);
+            } finally {
+                out.close();
+                small.recycle();
+            }
+            session.recordWrite(levelFile, levelFile.length());
+        }
+    }
+
+    /**
+     * The smallest stored level of a frame {@code width} pixels wide that still covers
+     * {@code wanted} pixels, so the preview decodes no more pixels than it shows.
+     */
+    private static String previewPath(String path, int width, int wanted) {
+        String best = path;
+        for (int level = 1; level < MipPyramid.LEVELS && width > 0; level++) {
+            width /= 2;
+            File file = new File(MipPyramid.levelFileName(path, level));
+            if (width < wanted || !file.exists()) {
+                break;
+            }
+            best = file.getPath();
+        }
+        return best;
+    }
+
     private Buffer createImageHeaderBuffer(int width, int height) {
         return ByteBuffer.allocate(HEADER_BUFFER_CAPACITY).order(ByteOrder.LITTLE_ENDIAN).putInt(width).putInt(height).putInt(PIXEL_FORMAT).rewind();
     }
@@ -236,32 +356,25 @@ public class ScreenCaptureImageActivity extends Activity {
     }
 
     private void stopProjection() {
-        mHandler.post(new Runnable() {
+        if (mCaptureSession == null) {
+            return;
+        }
+        final CaptureStorage.Session session = mSession;
+        mSession = null;
+        Runnable end = new Runnable() {
             @Override
             public void run() {
-                mProjection.stop();
+                if (session != null) {
+                    session.end();
+                }
             }
-        });
-    }
-
-    private class VirtualDisplayCallback extends VirtualDisplay.Callback {
-
-        @Override
-        public void onPaused() {
-            super.onPaused();
-            Log.e(TAG, "VirtualDisplayCallback: onPaused");
-        }
-
-        @Override
-        public void onResumed() {
-            super.onResumed();
-            Log.e(TAG, "VirtualDisplayCallback: onResumed");
-        }
-
-        @Override
-        public void onStopped() {
-            super.onStopped();
-            Log.e(TAG, "VirtualDisplayCallback: onStopped");
+        };
+        // Queued behind any frame still being written on the capture thread, and before the
+        // release stops that thread. If the system stopped the projection, the thread is gone.
+        if (!mCaptureSession.getHandler().post(end)) {
+            end.run();
         }
+        mCaptureSession.release();
+        mCaptureSession = null;
     }
 }
@@ -1,17 +1,42 @@
 package com.example.android.screencapture;
 
-import android.app.Activity;
 import android.content.SharedPreferences;
 import android.os.Bundle;
-import android.preference.Preference;
 import android.preference.PreferenceActivity;
 
 /**
  * Created by costerman on 2/12/15.
  */
-public class SettingsActivity extends PreferenceActivity implements SharedPreferences.OnSharedPreferenceChangeListener {
+public class SettingsActivity extends PreferenceActivity {
 
     public static final String KEY_PREF_CAPTURE_SCREENSHOT = "pref_capture_screenshot";
+    public static final String KEY_PREF_RAW_SPOOL = "pref_raw_spool";
+    public static final String KEY_PREF_COMPRESS_SPOOL = "pref_compress_spool";
+    public static final String KEY_PREF_RAW_FORMAT = "pref_raw_format";
+    public static final String KEY_PREF_STORAGE_BUDGET = "pref_storage_budget";
+    public static final String KEY_PREF_MAX_FPS = "pref_max_fps";
+    public static final String KEY_PREF_CAPTURE_SCALE = "pref_capture_scale";
+    public static final String KEY_PREF_OUTPUT_FORMAT = "pref_output_format";
+    public static final String KEY_PREF_OUTPUT_QUALITY = "pref_output_quality";
+    public static final String KEY_PREF_BUFFER_COUNT = "pref_buffer_count";
+    public static final String KEY_PREF_PARALLELISM = "pref_parallelism";
+    public static final String KEY_PREF_FRAMES_IN_FLIGHT = "pref_frames_in_flight";
+    public static final String KEY_PREF_CAPTURE_REGIONS = "pref_capture_regions";
+    public static final String KEY_PREF_GRAYSCALE = "pref_grayscale";
+    public static final String KEY_PREF_MOTION_THRESHOLD = "pref_motion_threshold";
+    public static final String KEY_PREF_BURST_FRAMES = "pref_burst_frames";
+    public static final String KEY_PREF_REPLAY_SECONDS = "pref_replay_seconds";
+    public static final String KEY_PREF_STORE_THUMBNAILS = "pref_store_thumbnails";
+    public static final String KEY_PREF_STREAM_PORT = "pref_stream_port";
+
+    /**
+     * Parses the storage budget preference, stored in megabytes with -1 meaning unlimited.
+     */
+    public static long getStorageBudgetBytes(SharedPreferences sharedPreferences) {
+        long megabytes = Long.parseLong(sharedPreferences.getString(KEY_PREF_STORAGE_BUDGET, "-1"));
+        return megabytes < 0 ? CaptureStorage.UNLIMITED : megabytes * 1024 * 1024;
+    }
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -20,25 +45,4 @@ public class SettingsActivity extends PreferenceActivity implements SharedPrefer
                 .replace(android.R.id.content, new SettingsFragment())
                 .commit();
     }
-
-    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key){
-        if(key.equals(KEY_PREF_CAPTURE_SCREENSHOT)){
-            Preference captureScreenshotPref = findPreference(key);
-            captureScreenshotPref.setSummary(sharedPreferences.getString(key, ""));
-        }
-    }
-
-    @Override
-    protected void onResume() {
-        super.onResume();
-//        getPreferenceScreen().getSharedPreferences()
-//                .registerOnSharedPreferenceChangeListener(this);
-    }
-
-    @Override
-    protected void onPause() {
-        super.onPause();
-//        getPreferenceScreen().getSharedPreferences()
-//                .unregisterOnSharedPreferenceChangeListener(this);
-    }
 }
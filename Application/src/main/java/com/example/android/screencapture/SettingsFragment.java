@@ -1,15 +1,65 @@
 package com.example.android.screencapture;
 
+import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.preference.ListPreference;
+import android.preference.Preference;
 import android.preference.PreferenceFragment;
 
 /**
  * Created by costerman on 2/12/15.
  */
-public class SettingsFragment extends PreferenceFragment {
+public class SettingsFragment extends PreferenceFragment
+        implements SharedPreferences.OnSharedPreferenceChangeListener {
+
+    private static final String[] LIST_KEYS = {
+            SettingsActivity.KEY_PREF_MAX_FPS,
+            SettingsActivity.KEY_PREF_CAPTURE_SCALE,
+            SettingsActivity.KEY_PREF_RAW_FORMAT,
+            SettingsActivity.KEY_PREF_OUTPUT_FORMAT,
+            SettingsActivity.KEY_PREF_OUTPUT_QUALITY,
+            SettingsActivity.KEY_PREF_BUFFER_COUNT,
+            SettingsActivity.KEY_PREF_PARALLELISM,
+            SettingsActivity.KEY_PREF_FRAMES_IN_FLIGHT,
+            SettingsActivity.KEY_PREF_MOTION_THRESHOLD,
+            SettingsActivity.KEY_PREF_BURST_FRAMES,
+            SettingsActivity.KEY_PREF_REPLAY_SECONDS,
+            SettingsActivity.KEY_PREF_STREAM_PORT
+    };
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         addPreferencesFromResource(R.xml.preferences);
+        for (String key : LIST_KEYS) {
+            updateSummary(key);
+        }
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        // The preferences live in this fragment, not in the activity's own preference screen.
+        getPreferenceScreen().getSharedPreferences()
+                .registerOnSharedPreferenceChangeListener(this);
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        getPreferenceScreen().getSharedPreferences()
+                .unregisterOnSharedPreferenceChangeListener(this);
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        updateSummary(key);
+    }
+
+    private void updateSummary(String key) {
+        Preference preference = findPreference(key);
+        if (preference instanceof ListPreference) {
+            preference.setSummary(((ListPreference) preference).getEntry());
+        }
     }
 }
@@ -0,0 +1,154 @@
+package com.example.android.screencapture;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.View;
+
+import com.example.android.common.logger.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.UUID;
+
+/**
+ * Takes snapshots of a view without blocking the UI thread on encoding or disk.
+ *
+ * <p>{@link #snapshot} draws the view into a pooled bitmap through a {@link Canvas} on the UI
+ * thread, which is about as cheap as a frame of the view itself, and returns. The bitmap is then
+ * compressed and written on a background thread and goes back to the pool. The pool holds
+ * {@link #POOL_SIZE} bitmaps, so at most that many snapshots are in flight; further taps are
+ * skipped until one finishes, rather than queueing bitmaps without bound. Idle bitmaps are
+ * recycled under memory pressure.</p>
+ */
+public class SnapshotWriter implements MemoryGovernor.Client {
+
+    private static final String TAG = "SnapshotWriter";
+
+    public static final int POOL_SIZE = 2;
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    // Only used on the UI thread.
+    private final Canvas mCanvas = new Canvas();
+    private final ArrayDeque<Bitmap> mFree = new ArrayDeque<Bitmap>();
+    private int mInFlight;
+
+    public SnapshotWriter() {
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Thread snapshots are written on, for ordering work behind them.
+     */
+    public Handler getHandler() {
+        return mHandler;
+    }
+
+    /**
+     * Draws {@code view} and queues it to be written to {@code session}. Call on the UI thread.
+     *
+     * @return Whether the snapshot was taken; false if too many are still being written or the
+     *         view has not been laid out.
+     */
+    public boolean snapshot(View view, final CaptureStorage.Session session,
+                            CaptureSettings settings) {
+        int width = view.getWidth();
+        int height = view.getHeight();
+        if (width == 0 || height == 0) {
+            return false;
+        }
+        final Bitmap bitmap = acquire(width, height);
+        if (bitmap == null) {
+            return false;
+        }
+        bitmap.eraseColor(Color.TRANSPARENT);
+        mCanvas.setBitmap(bitmap);
+        view.draw(mCanvas);
+        mCanvas.setBitmap(null);
+
+        final Bitmap.CompressFormat format = settings.getCompressFormat();
+        final int quality = settings.getQuality();
+        final String filename = String.format("Screenshot-%s.%s", UUID.randomUUID().toString(),
+                settings.getFileExtension());
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(bitmap, session, filename, format, quality);
+                } finally {
+                    release(bitmap);
+                }
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized void onMemoryPressure(int pressure) {
+        if (pressure < MemoryGovernor.PRESSURE_LOW) {
+            return;
+        }
+        // Bitmaps being written go back to the pool and are only dropped at the next trim.
+        Bitmap bitmap;
+        while ((bitmap = mFree.poll()) != null) {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Finishes the queued snapshots, then stops the writer thread.
+     */
+    public void quit() {
+        mThread.quitSafely();
+    }
+
+    private static void write(Bitmap bitmap, CaptureStorage.Session session, String filename,
+                              Bitmap.CompressFormat format, int quality) {
+        File file = session.newFile(filename);
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(file);
+            bitmap.compress(format, quality, fos);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write snapshot", e);
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to close snapshot", e);
+                }
+                session.recordWrite(file, file.length());
+            }
+        }
+    }
+
+    private synchronized Bitmap acquire(int width, int height) {
+        Bitmap bitmap = mFree.poll();
+        if (bitmap == null && mInFlight >= POOL_SIZE) {
+            return null;
+        }
+        if (bitmap != null && (bitmap.getWidth() != width || bitmap.getHeight() != height)) {
+            // The view was resized, for instance by a rotation.
+            bitmap.recycle();
+            bitmap = null;
+        }
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        mInFlight++;
+        return bitmap;
+    }
+
+    private synchronized void release(Bitmap bitmap) {
+        mInFlight--;
+        mFree.push(bitmap);
+    }
+}
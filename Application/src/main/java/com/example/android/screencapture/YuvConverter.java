@@ -0,0 +1,234 @@
+package com.example.android.screencapture;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Converts RGBA_8888 planes to YUV 4:2:0, planar {@link FrameSpool#FORMAT_I420} or
+ * semi-planar {@link FrameSpool#FORMAT_NV12}, at 12 bits per pixel instead of 32.
+ *
+ * <p>Uses the BT.601 limited range matrix that video encoders expect, in 8-bit fixed point:
+ * luma per pixel, chroma per 2x2 block from the sum of its four pixels. Odd trailing rows and
+ * columns are dropped, since 4:2:0 needs even dimensions. Rows are converted in pairs, so the
+ * frame splits into bands of whole pairs that write disjoint parts of the output; with more
+ * than one thread each band is converted on its own thread. The output buffer and the per band
+ * row scratch are kept between frames. Not thread safe: convert one frame at a time.</p>
+ */
+public class YuvConverter {
+
+    // Per band scratch: two RGBA rows in, then two luma rows and a row of chroma out, laid out
+    // as in the output: U then V for I420, interleaved for NV12.
+    private class Band implements Callable<Void> {
+        private byte[] mRgba = new byte[0];
+        private byte[] mLuma = new byte[0];
+        private byte[] mChroma = new byte[0];
+        private int mFirstPair;
+        private int mPairs;
+
+        @Override
+        public Void call() {
+            convertBand(this);
+            return null;
+        }
+    }
+
+    private final ExecutorService mWorkers;
+    private final Band[] mBands;
+    private final List<Future<Void>> mFutures = new ArrayList<Future<Void>>();
+    private ByteBuffer mOutput = ByteBuffer.allocateDirect(0);
+
+    // Frame being converted, read by the bands.
+    private ByteBuffer mSource;
+    private int mSourceStride;
+    private int mPixelStride;
+    private int mWidth;
+    private int mHeight;
+    private int mFormat;
+
+    /**
+     * @param threads Bands a frame is split into, each converted on its own thread; 1 converts
+     *                on the calling thread.
+     */
+    public YuvConverter(int threads) {
+        threads = Math.max(1, threads);
+        mBands = new Band[threads];
+        for (int i = 0; i < threads; i++) {
+            mBands[i] = new Band();
+        }
+        mWorkers = threads > 1 ? Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int mCount;
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "YuvConverter-" + ++mCount);
+            }
+        }) : null;
+    }
+
+    /**
+     * Bytes of a converted frame; {@code width} and {@code height} are rounded down to even.
+     */
+    public static int frameSize(int width, int height) {
+        int evenWidth = width & ~1;
+        int evenHeight = height & ~1;
+        return evenWidth * evenHeight * 3 / 2;
+    }
+
+    /**
+     * Converts a frame. The result is in a buffer reused by the next call: luma rows of
+     * {@code width & ~1} bytes, then for I420 the U plane and the V plane at half width and
+     * height, or for NV12 interleaved U and V rows at full width.
+     *
+     * @param pixels Plane buffer positioned at the first pixel; its position is not changed.
+     * @param format {@link FrameSpool#FORMAT_I420} or {@link FrameSpool#FORMAT_NV12}.
+     * @return The converted frame, from position 0 to {@link #frameSize(int, int)}.
+     */
+    public ByteBuffer convert(ByteBuffer pixels, int width, int height, int rowStride,
+                              int pixelStride, int format) {
+        if (format != FrameSpool.FORMAT_I420 && format != FrameSpool.FORMAT_NV12) {
+            throw new IllegalArgumentException("Not a YUV 4:2:0 format: " + format);
+        }
+        int size = frameSize(width, height);
+        if (mOutput.capacity() < size) {
+            mOutput = ByteBuffer.allocateDirect(size);
+        }
+        mSource = pixels;
+        mSourceStride = rowStride;
+        mPixelStride = pixelStride;
+        mWidth = width & ~1;
+        mHeight = height & ~1;
+        mFormat = format;
+
+        int pairs = mHeight / 2;
+        int bands = mWorkers == null ? 1 : Math.min(mBands.length, Math.max(1, pairs));
+        int first = 0;
+        for (int i = 0; i < bands; i++) {
+            Band band = mBands[i];
+            band.mFirstPair = first;
+            band.mPairs = pairs * (i + 1) / bands - first;
+            first += band.mPairs;
+        }
+        try {
+            if (bands == 1) {
+                convertBand(mBands[0]);
+            } else {
+                for (int i = 0; i < bands; i++) {
+                    mFutures.add(mWorkers.submit(mBands[i]));
+                }
+                for (Future<Void> future : mFutures) {
+                    future.get();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while converting", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to convert frame", e.getCause());
+        } finally {
+            mFutures.clear();
+            mSource = null;
+        }
+
+        ByteBuffer output = mOutput.duplicate();
+        output.clear();
+        output.limit(size);
+        return output;
+    }
+
+    /**
+     * Stops the band threads.
+     */
+    public void release() {
+        if (mWorkers != null) {
+            mWorkers.shutdown();
+        }
+    }
+
+    private void convertBand(Band band) {
+        int width = mWidth;
+        int pixelStride = mPixelStride;
+        int rowBytes = (width - 1) * pixelStride + 4;
+        int chromaWidth = width / 2;
+        if (band.mRgba.length < rowBytes * 2) {
+            band.mRgba = new byte[rowBytes * 2];
+            band.mLuma = new byte[width * 2];
+            band.mChroma = new byte[width];
+        }
+        byte[] rgba = band.mRgba;
+        byte[] luma = band.mLuma;
+        byte[] chroma = band.mChroma;
+        boolean planar = mFormat == FrameSpool.FORMAT_I420;
+        // Offsets of U and V of block x, at x * step.
+        int uOffset = 0;
+        int vOffset = planar ? chromaWidth : 1;
+        int step = planar ? 1 : 2;
+
+        ByteBuffer source = mSource.duplicate();
+        int base = mSource.position();
+        ByteBuffer output = mOutput.duplicate();
+        int lumaSize = width * mHeight;
+        int chromaSize = lumaSize / 4;
+
+        for (int pair = band.mFirstPair; pair < band.mFirstPair + band.mPairs; pair++) {
+            int y = pair * 2;
+            source.position(base + y * mSourceStride);
+            source.get(rgba, 0, rowBytes);
+            source.position(base + (y + 1) * mSourceStride);
+            source.get(rgba, rowBytes, rowBytes);
+
+            for (int x = 0; x < chromaWidth; x++) {
+                int top = x * 2 * pixelStride;
+                int bottom = top + rowBytes;
+                int r0 = rgba[top] & 0xff;
+                int g0 = rgba[top + 1] & 0xff;
+                int b0 = rgba[top + 2] & 0xff;
+                int r1 = rgba[top + pixelStride] & 0xff;
+                int g1 = rgba[top + pixelStride + 1] & 0xff;
+                int b1 = rgba[top + pixelStride + 2] & 0xff;
+                int r2 = rgba[bottom] & 0xff;
+                int g2 = rgba[bottom + 1] & 0xff;
+                int b2 = rgba[bottom + 2] & 0xff;
+                int r3 = rgba[bottom + pixelStride] & 0xff;
+                int g3 = rgba[bottom + pixelStride + 1] & 0xff;
+                int b3 = rgba[bottom + pixelStride + 2] & 0xff;
+
+                luma[x * 2] = (byte) luma(r0, g0, b0);
+                luma[x * 2 + 1] = (byte) luma(r1, g1, b1);
+                luma[width + x * 2] = (byte) luma(r2, g2, b2);
+                luma[width + x * 2 + 1] = (byte) luma(r3, g3, b3);
+
+                // Sums of four pixels, the extra factor of four taken out by the shift.
+                int r = r0 + r1 + r2 + r3;
+                int g = g0 + g1 + g2 + g3;
+                int b = b0 + b1 + b2 + b3;
+                chroma[uOffset + x * step] =
+                        (byte) (((-38 * r - 74 * g + 112 * b + 512) >> 10) + 128);
+                chroma[vOffset + x * step] =
+                        (byte) (((112 * r - 94 * g - 18 * b + 512) >> 10) + 128);
+            }
+
+            output.position(y * width);
+            output.put(luma, 0, width * 2);
+            if (planar) {
+                output.position(lumaSize + pair * chromaWidth);
+                output.put(chroma, 0, chromaWidth);
+                output.position(lumaSize + chromaSize + pair * chromaWidth);
+                output.put(chroma, chromaWidth, chromaWidth);
+            } else {
+                output.position(lumaSize + pair * width);
+                output.put(chroma, 0, width);
+            }
+        }
+    }
+
+    private static int luma(int r, int g, int b) {
+        return ((66 * r + 129 * g + 25 * b + 128) >> 8) + 16;
+    }
+}
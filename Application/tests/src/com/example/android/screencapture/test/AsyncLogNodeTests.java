@@ -0,0 +1,169 @@
+package com.example.android.screencapture.test;
+
+import junit.framework.TestCase;
+
+import com.example.android.common.logger.AsyncLogNode;
+import com.example.android.common.logger.Log;
+import com.example.android.common.logger.LogNode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests ordering, overflow handling, deferred formatting and shutdown of {@link AsyncLogNode}.
+ */
+public class AsyncLogNodeTests extends TestCase {
+
+    private static class RecordingNode implements LogNode {
+        final List<String> mMessages = new ArrayList<String>();
+        final List<String> mTags = new ArrayList<String>();
+        volatile CountDownLatch mGate;
+
+        @Override
+        public void println(int priority, String tag, String msg, Throwable tr) {
+            CountDownLatch gate = mGate;
+            if (gate != null) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            // Only ever called from the dispatch thread.
+            mTags.add(tag);
+            mMessages.add(msg);
+        }
+    }
+
+    public void testKeepsPerThreadOrderAcrossProducers() throws Exception {
+        final AsyncLogNode node = new AsyncLogNode(64, AsyncLogNode.OverflowPolicy.BLOCK);
+        RecordingNode sink = new RecordingNode();
+        node.setNext(sink);
+
+        final int threads = 4;
+        final int perThread = 5000;
+        Thread[] producers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final String tag = "T" + t;
+            producers[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        node.println(4, tag, Integer.toString(i), null);
+                    }
+                }
+            };
+            producers[t].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        node.flush();
+        node.shutdown();
+
+        assertEquals(0, node.getDroppedCount());
+        assertEquals(threads * perThread, sink.mMessages.size());
+        int[] expected = new int[threads];
+        for (int i = 0; i < sink.mMessages.size(); i++) {
+            int t = sink.mTags.get(i).charAt(1) - '0';
+            assertEquals(Integer.toString(expected[t]), sink.mMessages.get(i));
+            expected[t]++;
+        }
+    }
+
+    public void testDropsAndReportsWhenFull() throws Exception {
+        AsyncLogNode node = new AsyncLogNode(8, AsyncLogNode.OverflowPolicy.DROP);
+        RecordingNode sink = new RecordingNode();
+        sink.mGate = new CountDownLatch(1);
+        node.setNext(sink);
+
+        // The dispatch thread holds at most one record while stuck in the gated sink.
+        for (int i = 0; i < 100; i++) {
+            node.println(4, "T", Integer.toString(i), null);
+        }
+        long dropped = node.getDroppedCount();
+        assertTrue(dropped >= 100 - 9);
+        sink.mGate.countDown();
+        node.flush();
+        node.shutdown();
+
+        assertEquals(100 - dropped + 1, sink.mMessages.size());
+        String summary = sink.mMessages.get(sink.mMessages.size() - 1);
+        assertEquals("Dropped " + dropped + " log records", summary);
+    }
+
+    public void testFormatsOnlyWhatIsLogged() throws Exception {
+        AsyncLogNode node = new AsyncLogNode(16, AsyncLogNode.OverflowPolicy.BLOCK);
+        RecordingNode sink = new RecordingNode();
+        node.setNext(sink);
+        LogNode previous = Log.getLogNode();
+        int previousLevel = Log.getMinLevel();
+        Log.setLogNode(node);
+        try {
+            Log.setMinLevel(Log.INFO);
+            assertFalse(Log.isLoggable(Log.DEBUG));
+            Log.d("T", "%d frames", 1);
+            Log.i("T", "%d frames in %.1f s", 2, 0.5f);
+            Log.w("T", "%d%%", 50);
+            Log.e("T", "bad %d format", "x");
+            node.flush();
+        } finally {
+            Log.setLogNode(previous);
+            Log.setMinLevel(previousLevel);
+            node.shutdown();
+        }
+
+        assertEquals(3, sink.mMessages.size());
+        assertEquals("2 frames in 0.5 s", sink.mMessages.get(0));
+        assertEquals("50%", sink.mMessages.get(1));
+        assertEquals("bad %d format [x]", sink.mMessages.get(2));
+    }
+
+    public void testPostedTaskRunsAfterQueuedRecords() throws Exception {
+        AsyncLogNode node = new AsyncLogNode(16, AsyncLogNode.OverflowPolicy.BLOCK);
+        final RecordingNode sink = new RecordingNode();
+        node.setNext(sink);
+        final int[] seen = new int[1];
+        for (int i = 0; i < 10; i++) {
+            node.println(4, "T", Integer.toString(i), null);
+        }
+        node.post(new Runnable() {
+            @Override
+            public void run() {
+                seen[0] = sink.mMessages.size();
+            }
+        });
+        node.shutdown();
+        assertEquals(10, seen[0]);
+    }
+
+    public void testRunsIdleTaskWhileQuiet() throws Exception {
+        AsyncLogNode node = new AsyncLogNode(16, AsyncLogNode.OverflowPolicy.BLOCK);
+        node.setNext(new RecordingNode());
+        final CountDownLatch runs = new CountDownLatch(3);
+        node.setIdleTask(new Runnable() {
+            @Override
+            public void run() {
+                runs.countDown();
+            }
+        }, 10);
+        assertTrue(runs.await(5, TimeUnit.SECONDS));
+        node.shutdown();
+    }
+
+    public void testShutdownDrainsQueuedRecords() throws Exception {
+        AsyncLogNode node = new AsyncLogNode(16, AsyncLogNode.OverflowPolicy.BLOCK);
+        RecordingNode sink = new RecordingNode();
+        node.setNext(sink);
+        for (int i = 0; i < 10; i++) {
+            node.println(4, "T", Integer.toString(i), null);
+        }
+        node.shutdown();
+        assertEquals(10, sink.mMessages.size());
+
+        node.println(4, "T", "late", null);
+        assertEquals(1, node.getDroppedCount());
+    }
+}
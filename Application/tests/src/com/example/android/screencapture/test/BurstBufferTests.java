@@ -0,0 +1,67 @@
+package com.example.android.screencapture.test;
+
+import junit.framework.TestCase;
+
+import com.example.android.screencapture.BurstBuffer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tests that {@link BurstBuffer} keeps frames packed and stays within its memory budget.
+ */
+public class BurstBufferTests extends TestCase {
+
+    public void testStoresFramesWithoutRowPadding() {
+        int width = 5;
+        int height = 3;
+        int rowStride = width * 4 + 12;
+        BurstBuffer burst = new BurstBuffer(width, height, 2);
+        assertTrue(burst.add(plane(width, height, rowStride, 1), rowStride, 100));
+        assertTrue(burst.add(plane(width, height, width * 4, 2), width * 4, 200));
+        assertTrue(burst.isFull());
+        assertFalse(burst.add(plane(width, height, rowStride, 3), rowStride, 300));
+
+        for (int frame = 0; frame < 2; frame++) {
+            ByteBuffer pixels = burst.getFrame(frame);
+            assertEquals(width * height * 4, pixels.remaining());
+            for (int i = 0; i < pixels.remaining(); i++) {
+                assertEquals(frame + 1 + i / 4, pixels.get(i));
+            }
+        }
+        assertEquals(200, burst.getTimestamp(1));
+    }
+
+    public void testCapsFramesByMemory() {
+        int frameBytes = 1920 * 1080 * 4;
+        long budget = BurstBuffer.MAX_BYTES;
+        int capacity = BurstBuffer.capacityFor(1000, frameBytes, budget);
+        assertTrue((long) capacity * frameBytes <= budget);
+        assertTrue((long) (capacity + 1) * frameBytes > budget);
+        assertEquals(30, BurstBuffer.capacityFor(30, 100, budget));
+        assertEquals(1, BurstBuffer.capacityFor(30, Integer.MAX_VALUE, budget));
+    }
+
+    public void testBudgetIsShareOfHeapLimit() {
+        long mib = 1024 * 1024;
+        assertEquals(48 * mib, BurstBuffer.budgetFor(192 * mib));
+        assertEquals(BurstBuffer.MAX_BYTES, BurstBuffer.budgetFor(2048 * mib));
+
+        BurstBuffer burst = new BurstBuffer(4, 4, 300, 10 * 4 * 4 * 4);
+        assertEquals(10, burst.getCapacity());
+    }
+
+    /**
+     * Frame whose pixel {@code i} has every byte set to {@code first + i}, padding set to -1.
+     */
+    private static ByteBuffer plane(int width, int height, int rowStride, int first) {
+        ByteBuffer plane = ByteBuffer.allocateDirect(rowStride * height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < rowStride; x++) {
+                int pixel = x / 4;
+                plane.put((byte) (pixel < width ? first + y * width + pixel : -1));
+            }
+        }
+        plane.rewind();
+        return plane;
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.android.screencapture.test;
+
+import junit.framework.TestCase;
+
+import com.example.android.screencapture.CaptureRegion;
+
+/**
+ * Tests parsing and clamping of {@link CaptureRegion} preference text.
+ */
+public class CaptureRegionTests extends TestCase {
+
+    public void testParsesRegionList() {
+        CaptureRegion[] regions = CaptureRegion.parse(" 0, 0, 100, 50 ;10,20,30,40");
+        assertEquals(2, regions.length);
+        assertEquals(new CaptureRegion(0, 0, 100, 50), regions[0]);
+        assertEquals(new CaptureRegion(10, 20, 30, 40), regions[1]);
+        assertEquals("10,20,30,40", regions[1].toString());
+    }
+
+    public void testBlankMeansWholeFrame() {
+        assertSame(CaptureRegion.NONE, CaptureRegion.parse(null));
+        assertSame(CaptureRegion.NONE, CaptureRegion.parse(""));
+        assertSame(CaptureRegion.NONE, CaptureRegion.parse("  "));
+    }
+
+    public void testSkipsMalformedEntries() {
+        CaptureRegion[] regions = CaptureRegion.parse(
+                "1,2,3;;a,b,c,d;1,2,3,4,5;0,0,10,10;1.5,0,10,10;99999999999,0,1,1");
+        assertEquals(1, regions.length);
+        assertEquals(new CaptureRegion(0, 0, 10, 10), regions[0]);
+    }
+
+    public void testSkipsNegativeAndEmptyRegions() {
+        CaptureRegion[] regions = CaptureRegion.parse(
+                "-1,0,10,10;0,-1,10,10;0,0,0,10;0,0,10,0;0,0,-5,10;5,5,1,1");
+        assertEquals(1, regions.length);
+        assertEquals(new CaptureRegion(5, 5, 1, 1), regions[0]);
+    }
+
+    public void testOnlyMalformedEntriesLeaveNoRegions() {
+        assertEquals(0, CaptureRegion.parse(";;").length);
+    }
+
+    public void testClampKeepsRegionInsideFrame() {
+        CaptureRegion region = new CaptureRegion(10, 20, 30, 40);
+        assertSame(region, region.clampTo(100, 100));
+        assertSame(region, region.clampTo(40, 60));
+    }
+
+    public void testClampCutsRegionPartlyOutside() {
+        CaptureRegion clamped = new CaptureRegion(80, 90, 50, 50).clampTo(100, 100);
+        assertEquals(new CaptureRegion(80, 90, 20, 10), clamped);
+    }
+
+    public void testClampDropsRegionFullyOutside() {
+        assertNull(new CaptureRegion(100, 0, 10, 10).clampTo(100, 100));
+        assertNull(new CaptureRegion(0, 150, 10, 10).clampTo(100, 100));
+    }
+
+    public void testClampHandlesSizesPastIntRange() {
+        CaptureRegion clamped = new CaptureRegion(10, 10, Integer.MAX_VALUE, Integer.MAX_VALUE)
+                .clampTo(100, 50);
+        assertEquals(new CaptureRegion(10, 10, 90, 40), clamped);
+        assertEquals(1, CaptureRegion.parse("10,10,2147483647,2147483647").length);
+    }
+
+    public void testOffsetCountsStrides() {
+        CaptureRegion region = new CaptureRegion(3, 2, 10, 10);
+        assertEquals(2 * 4096 + 3 * 4, region.offset(4096, 4));
+        assertEquals(0, new CaptureRegion(0, 0, 1, 1).offset(4096, 4));
+    }
+}
@@ -0,0 +1,167 @@
+package com.example.android.screencapture.test;
+
+import junit.framework.TestCase;
+
+import com.example.android.screencapture.CaptureStorage;
+import com.example.android.screencapture.FrameRecordWriter;
+import com.example.android.screencapture.FrameSpool;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Tests budget tracking and eviction in {@link CaptureStorage}.
+ */
+public class CaptureStorageTests extends TestCase {
+
+    private File mRoot;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRoot = File.createTempFile("capture", "");
+        assertTrue(mRoot.delete());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteRecursively(mRoot);
+        super.tearDown();
+    }
+
+    public void testFinishedSessionsAreEvictedFirst() throws Exception {
+        CaptureStorage storage = new CaptureStorage(mRoot, 3000, 0);
+
+        CaptureStorage.Session old = storage.beginSession("Old");
+        write(old, "a", 1000);
+        write(old, "b", 1000);
+        old.end();
+
+        CaptureStorage.Session current = storage.beginSession("Current");
+        write(current, "c", 1000);
+        assertEquals(3000, storage.getUsedBytes());
+
+        write(current, "d", 1000);
+        assertFalse(old.getDirectory().exists());
+        assertEquals(2000, storage.getUsedBytes());
+        assertEquals(2000, storage.getEvictedBytes());
+        assertFalse(storage.isThrottled());
+    }
+
+    public void testOldestFramesOfRunningSessionAreEvicted() throws Exception {
+        CaptureStorage storage = new CaptureStorage(mRoot, 2500, 0);
+        CaptureStorage.Session session = storage.beginSession("Capture");
+        write(session, "1", 1000);
+        write(session, "2", 1000);
+        write(session, "3", 1000);
+
+        assertFalse(session.newFile("1").exists());
+        assertTrue(session.newFile("2").exists());
+        assertTrue(session.newFile("3").exists());
+        assertEquals(2000, storage.getUsedBytes());
+    }
+
+    public void testThrottlesWhenLastFileAloneExceedsBudget() throws Exception {
+        CaptureStorage storage = new CaptureStorage(mRoot, 500, 0);
+        CaptureStorage.Session session = storage.beginSession("Capture");
+        write(session, "spool", 1000);
+        assertTrue(session.newFile("spool").exists());
+        assertTrue(storage.isThrottled());
+    }
+
+    public void testOldSegmentsOfRunningSpoolAreEvicted() throws Exception {
+        CaptureStorage storage = new CaptureStorage(mRoot, 2500, 0);
+        CaptureStorage.Session session = storage.beginSession("Capture");
+        File first = session.newFile("frames.spool");
+        FrameSpool spool = new FrameSpool(first, false, FrameSpool.DEFAULT_BAND_ROWS,
+                FrameRecordWriter.DEFAULT_SYNC_BYTES, FrameRecordWriter.DEFAULT_SYNC_INTERVAL_MS,
+                1000);
+        byte[] frame = new byte[468];
+        try {
+            // 500 bytes a frame with headers, so each segment holds two.
+            for (int i = 0; i < 10; i++) {
+                long before = spool.getWrittenBytes();
+                spool.writeEncodedFrame(frame, frame.length, 1, 1, FrameSpool.FORMAT_PNG);
+                session.recordWrite(spool.getFile(), spool.getWrittenBytes() - before);
+            }
+        } finally {
+            spool.close();
+        }
+
+        assertEquals(5, spool.getSegmentCount());
+        assertEquals(FrameSpool.segmentFile(first, 4), spool.getFile());
+        assertEquals("frames-4.spool", spool.getFile().getName());
+        assertFalse(first.exists());
+        assertFalse(FrameSpool.segmentFile(first, 2).exists());
+        assertTrue(FrameSpool.segmentFile(first, 3).exists());
+        assertEquals(2000, storage.getUsedBytes());
+        assertFalse(storage.isThrottled());
+    }
+
+    public void testExistingSessionsAreScannedOnce() throws Exception {
+        CaptureStorage first = new CaptureStorage(mRoot, CaptureStorage.UNLIMITED, 0);
+        CaptureStorage.Session session = first.beginSession("Capture");
+        write(session, "a", 700);
+        session.end();
+
+        CaptureStorage second = new CaptureStorage(mRoot, CaptureStorage.UNLIMITED, 0);
+        assertEquals(0, second.getUsedBytes());
+        second.scanExistingSessions();
+        second.scanExistingSessions();
+        assertEquals(700, second.getUsedBytes());
+        second.setBudgetBytes(100);
+        assertEquals(0, second.getUsedBytes());
+        assertFalse(session.getDirectory().exists());
+    }
+
+    public void testScanKeepsSessionsBegunMeanwhile() throws Exception {
+        CaptureStorage first = new CaptureStorage(mRoot, CaptureStorage.UNLIMITED, 0);
+        CaptureStorage.Session old = first.beginSession("Capture");
+        write(old, "a", 700);
+        old.end();
+
+        CaptureStorage second = new CaptureStorage(mRoot, 1000, 0);
+        CaptureStorage.Session running = second.beginSession("Capture");
+        write(running, "b", 600);
+        second.scanExistingSessions();
+        // The scanned session is the older one, so it goes, not the running one.
+        assertEquals(600, second.getUsedBytes());
+        assertFalse(old.getDirectory().exists());
+        assertTrue(running.getDirectory().exists());
+    }
+
+    public void testDeletesUnreportedFilesWithSession() throws Exception {
+        CaptureStorage storage = new CaptureStorage(mRoot, 1000, 0);
+        CaptureStorage.Session session = storage.beginSession("Capture");
+        write(session, "a", 700);
+        new FileOutputStream(session.newFile("unreported")).close();
+        session.end();
+
+        CaptureStorage.Session next = storage.beginSession("Capture");
+        write(next, "b", 700);
+        assertFalse(session.getDirectory().exists());
+    }
+
+    private static void write(CaptureStorage.Session session, String name, int bytes)
+            throws IOException {
+        File file = session.newFile(name);
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(new byte[bytes]);
+        } finally {
+            fos.close();
+        }
+        session.recordWrite(file, bytes);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.android.screencapture.test;
+
+import junit.framework.TestCase;
+
+import com.example.android.screencapture.FrameArena;
+import com.example.android.screencapture.MemoryGovernor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tests slab reuse, reference counting and leak tracking in {@link FrameArena}.
+ */
+public class FrameArenaTests extends TestCase {
+
+    public void testReusesReleasedSlabs() throws Exception {
+        FrameArena arena = new FrameArena(64, 2, true);
+        FrameArena.Slab first = arena.acquire();
+        ByteBuffer buffer = first.getBuffer();
+        assertTrue(buffer.isDirect());
+        assertEquals(64, buffer.remaining());
+        first.release();
+
+        assertSame(first, arena.acquire());
+        assertEquals(1, arena.getAllocated());
+        assertEquals(1, arena.getInUse());
+    }
+
+    public void testSharedSlabReturnsWithLastRelease() throws Exception {
+        FrameArena arena = new FrameArena(64, 1, true);
+        FrameArena.Slab slab = arena.acquire();
+        slab.retain();
+        slab.retain();
+        slab.release();
+        slab.release();
+        assertEquals(1, arena.getInUse());
+        slab.release();
+        assertEquals(0, arena.getInUse());
+        assertEquals(0, arena.reportLeaks());
+
+        try {
+            slab.release();
+            fail("Released more often than retained");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            slab.retain();
+            fail("Retained after the last release");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    public void testAcquireWaitsForRelease() throws Exception {
+        final FrameArena arena = new FrameArena(64, 1, false);
+        final FrameArena.Slab held = arena.acquire();
+        Thread releaser = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                held.release();
+            }
+        });
+        releaser.start();
+        long start = System.nanoTime();
+        FrameArena.Slab slab = arena.acquire();
+        assertTrue(System.nanoTime() - start >= 40000000L);
+        assertSame(held, slab);
+        releaser.join();
+    }
+
+    public void testReportsLeaksAndTrimsUnderPressure() throws Exception {
+        FrameArena arena = new FrameArena(64, 4, true);
+        FrameArena.Slab[] slabs = new FrameArena.Slab[4];
+        for (int i = 0; i < slabs.length; i++) {
+            slabs[i] = arena.acquire();
+        }
+        for (int i = 0; i < 3; i++) {
+            slabs[i].release();
+        }
+        assertEquals(1, arena.reportLeaks());
+
+        arena.onMemoryPressure(MemoryGovernor.PRESSURE_MODERATE);
+        assertEquals(4, arena.getAllocated());
+        arena.onMemoryPressure(MemoryGovernor.PRESSURE_LOW);
+        assertEquals(2, arena.getAllocated());
+    }
+}
@@ -0,0 +1,110 @@
+package com.example.android.screencapture.test;
+
+import junit.framework.TestCase;
+
+import com.example.android.screencapture.FrameHashIndex;
+import com.example.android.screencapture.FrameRecordWriter;
+import com.example.android.screencapture.PerceptualHash;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests {@link PerceptualHash} and that {@link FrameHashIndex} finds exactly the frames a linear
+ * scan would.
+ */
+public class FrameHashIndexTests extends TestCase {
+
+    public void testHashIgnoresBrightnessAndScale() {
+        long small = PerceptualHash.dHash(pattern(90, 64, 0), 90, 64, 90 * 4, 4);
+        long brighter = PerceptualHash.dHash(pattern(90, 64, 40), 90, 64, 90 * 4, 4);
+        long large = PerceptualHash.dHash(pattern(360, 256, 0), 360, 256, 360 * 4, 4);
+        ByteBuffer noise = ByteBuffer.allocate(90 * 64 * 4);
+        new Random(39).nextBytes(noise.array());
+        long other = PerceptualHash.dHash(noise, 90, 64, 90 * 4, 4);
+        assertEquals(0, PerceptualHash.distance(small, brighter));
+        assertTrue(PerceptualHash.distance(small, large) <= 4);
+        assertTrue(PerceptualHash.distance(small, other) > 10);
+    }
+
+    public void testSearchMatchesLinearScan() {
+        Random random = new Random(39);
+        int count = 200000;
+        long[] hashes = new long[count];
+        FrameHashIndex index = new FrameHashIndex();
+        for (int i = 0; i < count; i++) {
+            // Every tenth frame is a near copy of an earlier one, as on a mostly idle screen.
+            hashes[i] = i % 10 == 9 ? flipBits(hashes[i - 5], random, random.nextInt(6))
+                    : random.nextLong();
+            index.add(i, hashes[i]);
+        }
+        assertEquals(count, index.size());
+
+        for (int q = 0; q < 50; q++) {
+            long query = flipBits(hashes[random.nextInt(count)], random, random.nextInt(4));
+            int maxDistance = 10;
+            int expected = 0;
+            int nearest = Integer.MAX_VALUE;
+            for (long hash : hashes) {
+                int distance = PerceptualHash.distance(query, hash);
+                if (distance <= maxDistance) {
+                    expected++;
+                }
+                nearest = Math.min(nearest, distance);
+            }
+            List<FrameHashIndex.Match> matches = index.search(query, maxDistance);
+            assertEquals(expected, matches.size());
+            for (int i = 1; i < matches.size(); i++) {
+                assertTrue(matches.get(i - 1).getDistance() <= matches.get(i).getDistance());
+            }
+            FrameHashIndex.Match match = index.nearest(query, maxDistance);
+            assertEquals(nearest, match.getDistance());
+            assertEquals(hashes[(int) match.getFrame()], match.getHash());
+        }
+        assertNull(index.nearest(~hashes[0] ^ 0x5555, 2));
+    }
+
+    public void testLoadsSessionRecords() throws Exception {
+        File file = File.createTempFile("frames", ".hashes");
+        try {
+            FrameRecordWriter writer = new FrameRecordWriter(file, 0, 0);
+            byte[] record = new byte[FrameHashIndex.RECORD_SIZE];
+            for (int frame = 0; frame < 100; frame++) {
+                FrameHashIndex.encodeRecord(frame, frame * 0x0101010101010101L, record);
+                writer.append(record, 0, record.length);
+            }
+            writer.close();
+
+            FrameHashIndex index = FrameHashIndex.load(file);
+            assertEquals(100, index.size());
+            FrameHashIndex.Match match = index.nearest(42 * 0x0101010101010101L, 0);
+            assertEquals(42, match.getFrame());
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static ByteBuffer pattern(int width, int height, int brightness) {
+        ByteBuffer pixels = ByteBuffer.allocate(width * height * 4);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                // Smooth blobs, so the downscaled grid has clear gradients.
+                double u = (double) x / width;
+                double v = (double) y / height;
+                int value = (int) (100 + 80 * Math.sin(u * 7) * Math.cos(v * 5)) + brightness;
+                pixels.put((byte) value).put((byte) value).put((byte) value).put((byte) 0xff);
+            }
+        }
+        pixels.rewind();
+        return pixels;
+    }
+
+    private static long flipBits(long hash, Random random, int bits) {
+        for (int i = 0; i < bits; i++) {
+            hash ^= 1L << random.nextInt(64);
+        }
+        return hash;
+    }
+}
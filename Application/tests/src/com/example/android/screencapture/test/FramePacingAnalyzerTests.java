@@ -0,0 +1,50 @@
+package com.example.android.screencapture.test;
+
+import junit.framework.TestCase;
+
+import com.example.android.screencapture.FramePacingAnalyzer;
+
+/**
+ * Tests the pacing and latency figures of {@link FramePacingAnalyzer} on synthetic timestamps.
+ */
+public class FramePacingAnalyzerTests extends TestCase {
+
+    private static final long FRAME_NS = 16666667L;
+
+    public void testSteadyFramesHaveNoStutter() {
+        FramePacingAnalyzer analyzer = new FramePacingAnalyzer();
+        for (int i = 0; i < 300; i++) {
+            long timestamp = i * FRAME_NS;
+            analyzer.onFrameArrived(timestamp, timestamp + 2000000L);
+            analyzer.onFrameStored(timestamp + 2000000L, timestamp + 7000000L);
+        }
+        assertEquals(0, analyzer.getStutterCount());
+        assertEquals(60.0, analyzer.getRollingFps(), 0.01);
+        assertEquals(16.67, analyzer.getMeanIntervalMs(), 0.01);
+        assertEquals(0.0, analyzer.getJitterMs(), 0.01);
+        assertEquals(2.0, analyzer.getCallbackLatencyMs(50), 0.001);
+        assertEquals(5.0, analyzer.getStoreLatencyMs(95), 0.001);
+        assertEquals(300, analyzer.getStoredFrameCount());
+    }
+
+    public void testCountsLongIntervalsAsStutters() {
+        FramePacingAnalyzer analyzer = new FramePacingAnalyzer();
+        long timestamp = 0;
+        for (int i = 0; i < 200; i++) {
+            // Every fiftieth frame comes three frames late.
+            timestamp += i % 50 == 49 ? 3 * FRAME_NS : FRAME_NS;
+            analyzer.onFrameArrived(timestamp, timestamp);
+        }
+        assertEquals(4, analyzer.getStutterCount());
+        assertTrue(analyzer.getJitterMs() > 1);
+        assertTrue(analyzer.getRollingFps() < 60);
+    }
+
+    public void testReportsEveryInterval() {
+        FramePacingAnalyzer analyzer = new FramePacingAnalyzer();
+        assertFalse(analyzer.shouldReport(1));
+        assertFalse(analyzer.shouldReport(FramePacingAnalyzer.REPORT_INTERVAL_NS));
+        assertTrue(analyzer.shouldReport(FramePacingAnalyzer.REPORT_INTERVAL_NS + 1));
+        assertFalse(analyzer.shouldReport(FramePacingAnalyzer.REPORT_INTERVAL_NS + 2));
+    }
+}
@@ -0,0 +1,204 @@
+package com.example.android.screencapture.test;
+
+import junit.framework.TestCase;
+
+import com.example.android.screencapture.FrameRecordReader;
+import com.example.android.screencapture.FrameRecordWriter;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Tests group commit and torn tail recovery in {@link FrameRecordWriter}.
+ */
+public class FrameRecordWriterTests extends TestCase {
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("frames", ".spool");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testRecordsRoundTrip() throws Exception {
+        FrameRecordWriter writer = new FrameRecordWriter(mFile, Long.MAX_VALUE, Long.MAX_VALUE);
+        writer.append(payload(10, 1), 0, 10);
+        // Larger than the staging buffer, so it takes the direct write path.
+        writer.append(payload(600 * 1024, 2), 0, 600 * 1024);
+        writer.append(payload(0, 3), 0, 0);
+        writer.close();
+        assertEquals(1, writer.getCommitCount());
+
+        RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            FrameRecordReader reader = new FrameRecordReader(file.getChannel());
+            assertRecord(reader, 10, 1);
+            assertRecord(reader, 600 * 1024, 2);
+            assertRecord(reader, 0, 3);
+            assertNull(reader.next());
+            assertEquals(mFile.length(), reader.getValidLength());
+        } finally {
+            file.close();
+        }
+    }
+
+    public void testGatherAppendFromDirectBuffers() throws Exception {
+        byte[] expected = payload(4099, 9);
+        ByteBuffer direct = ByteBuffer.allocateDirect(expected.length);
+        direct.put(expected);
+        // Odd sized views, as produced when skipping row padding.
+        ByteBuffer[] parts = new ByteBuffer[3];
+        int[] bounds = {0, 1, 2050, 4099};
+        for (int i = 0; i < parts.length; i++) {
+            ByteBuffer part = direct.duplicate();
+            part.limit(bounds[i + 1]);
+            part.position(bounds[i]);
+            parts[i] = part;
+        }
+
+        FrameRecordWriter writer = new FrameRecordWriter(mFile, Long.MAX_VALUE, Long.MAX_VALUE);
+        writer.append(payload(10, 1), 0, 10);
+        writer.append(parts, parts.length);
+        writer.close();
+        assertEquals(2050, parts[2].position());
+
+        RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            FrameRecordReader reader = new FrameRecordReader(file.getChannel());
+            assertRecord(reader, 10, 1);
+            assertRecord(reader, 4099, 9);
+            assertNull(reader.next());
+        } finally {
+            file.close();
+        }
+    }
+
+    public void testGatherAppendOfMoreBuffersThanIovMax() throws Exception {
+        // One view per row of a padded 1080x1920 frame, plus the header.
+        int rows = 1920;
+        int rowBytes = 1080 * 4;
+        int rowStride = rowBytes + 64;
+        byte[] expected = payload(rows * rowBytes, 5);
+        ByteBuffer plane = ByteBuffer.allocateDirect(rows * rowStride);
+        ByteBuffer[] parts = new ByteBuffer[rows + 1];
+        parts[0] = ByteBuffer.allocate(0);
+        for (int r = 0; r < rows; r++) {
+            plane.position(r * rowStride);
+            plane.put(expected, r * rowBytes, rowBytes);
+            ByteBuffer row = plane.duplicate();
+            row.limit(r * rowStride + rowBytes);
+            row.position(r * rowStride);
+            parts[r + 1] = row;
+        }
+
+        FrameRecordWriter writer = new FrameRecordWriter(mFile, Long.MAX_VALUE, Long.MAX_VALUE);
+        writer.append(parts, parts.length);
+        writer.close();
+
+        RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            FrameRecordReader reader = new FrameRecordReader(file.getChannel());
+            assertRecord(reader, rows * rowBytes, 5);
+            assertNull(reader.next());
+        } finally {
+            file.close();
+        }
+    }
+
+    public void testCommitsOnByteWindow() throws Exception {
+        FrameRecordWriter writer = new FrameRecordWriter(mFile, 1000, Long.MAX_VALUE);
+        for (int i = 0; i < 10; i++) {
+            writer.append(payload(488, i), 0, 488);
+        }
+        assertEquals(5, writer.getCommitCount());
+        writer.close();
+    }
+
+    public void testCommitsIdleRecordsOnceDue() throws Exception {
+        FrameRecordWriter writer = new FrameRecordWriter(mFile, Long.MAX_VALUE, 50);
+        assertFalse(writer.commitIfDue());
+        writer.append(payload(100, 1), 0, 100);
+        assertFalse(writer.commitIfDue());
+        assertEquals(0, writer.getCommitCount());
+
+        Thread.sleep(60);
+        assertTrue(writer.commitIfDue());
+        assertEquals(1, writer.getCommitCount());
+        assertFalse(writer.commitIfDue());
+        writer.close();
+    }
+
+    public void testTornTailIsTruncatedOnOpen() throws Exception {
+        FrameRecordWriter writer = new FrameRecordWriter(mFile, Long.MAX_VALUE, Long.MAX_VALUE);
+        writer.append(payload(100, 1), 0, 100);
+        writer.append(payload(100, 2), 0, 100);
+        writer.close();
+        long intact = mFile.length();
+
+        // Simulate a crash part way through the third record.
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.seek(intact);
+        file.writeInt(Integer.reverseBytes(FrameRecordWriter.RECORD_MAGIC));
+        file.writeInt(Integer.reverseBytes(100));
+        file.write(new byte[20]);
+        file.close();
+
+        writer = new FrameRecordWriter(mFile, Long.MAX_VALUE, Long.MAX_VALUE);
+        assertEquals(28, writer.getRecoveredBytes());
+        assertEquals(intact, mFile.length());
+        writer.append(payload(5, 3), 0, 5);
+        writer.close();
+
+        file = new RandomAccessFile(mFile, "r");
+        try {
+            FrameRecordReader reader = new FrameRecordReader(file.getChannel());
+            assertRecord(reader, 100, 1);
+            assertRecord(reader, 100, 2);
+            assertRecord(reader, 5, 3);
+            assertNull(reader.next());
+        } finally {
+            file.close();
+        }
+    }
+
+    public void testCorruptPayloadStopsRecovery() throws Exception {
+        FrameRecordWriter writer = new FrameRecordWriter(mFile, Long.MAX_VALUE, Long.MAX_VALUE);
+        writer.append(payload(50, 1), 0, 50);
+        writer.append(payload(50, 2), 0, 50);
+        writer.close();
+
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.seek(mFile.length() - 1);
+        file.write(0x7F);
+        long valid = FrameRecordWriter.recover(file.getChannel());
+        file.close();
+        assertEquals(FrameRecordWriter.RECORD_HEADER_SIZE + 50, valid);
+    }
+
+    private static byte[] payload(int length, int seed) {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) (i * 31 + seed);
+        }
+        return payload;
+    }
+
+    private static void assertRecord(FrameRecordReader reader, int length, int seed)
+            throws Exception {
+        byte[] data = reader.next();
+        assertNotNull(data);
+        assertEquals(length, reader.getLength());
+        byte[] expected = payload(length, seed);
+        for (int i = 0; i < length; i++) {
+            assertEquals(expected[i], data[i]);
+        }
+    }
+}
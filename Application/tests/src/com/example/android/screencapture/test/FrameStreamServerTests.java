@@ -0,0 +1,118 @@
+package com.example.android.screencapture.test;
+
+import junit.framework.TestCase;
+
+import com.example.android.screencapture.FrameStreamClient;
+import com.example.android.screencapture.FrameStreamServer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Streams frames from {@link FrameStreamServer} to {@link FrameStreamClient} over loopback.
+ */
+public class FrameStreamServerTests extends TestCase {
+
+    private FrameStreamServer mServer;
+    private FrameStreamClient mClient;
+
+    @Override
+    protected void setUp() throws Exception {
+        mServer = new FrameStreamServer(0, true);
+        mClient = new FrameStreamClient("localhost", mServer.getPort());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mClient.close();
+        mServer.close();
+    }
+
+    public void testKeyframeRoundTrip() throws Exception {
+        // Padded rows, and a size that is not a whole number of tiles.
+        int width = 100;
+        int height = 70;
+        byte[] frame = randomFrame(width, height, 1);
+        mServer.publish(padded(frame, width, height, width * 4 + 16), width, height,
+                width * 4 + 16, 1234L);
+
+        mClient.next();
+        assertTrue(mClient.isKeyframe());
+        assertEquals(width, mClient.getWidth());
+        assertEquals(height, mClient.getHeight());
+        assertEquals(1234L, mClient.getTimestamp());
+        assertTrue(Arrays.equals(frame, mClient.getPixels()));
+    }
+
+    public void testSendsChangedTilesAsDelta() throws Exception {
+        int width = 100;
+        int height = 70;
+        byte[] frame = randomFrame(width, height, 2);
+        mServer.publish(ByteBuffer.wrap(frame), width, height, width * 4, 1L);
+        mClient.next();
+        assertTrue(mClient.isKeyframe());
+        long keyframeBytes = mClient.getByteCount();
+
+        // One pixel in the bottom right tile, which is cut short on both sides.
+        byte[] changed = frame.clone();
+        changed[((height - 1) * width + width - 1) * 4] ^= 0x55;
+        mServer.publish(ByteBuffer.wrap(changed), width, height, width * 4, 2L);
+        mClient.next();
+        assertFalse(mClient.isKeyframe());
+        assertEquals(2L, mClient.getTimestamp());
+        assertTrue(Arrays.equals(changed, mClient.getPixels()));
+        assertTrue(mClient.getByteCount() - keyframeBytes < keyframeBytes / 10);
+    }
+
+    public void testSizeChangeSendsKeyframe() throws Exception {
+        mServer.publish(ByteBuffer.wrap(randomFrame(64, 64, 3)), 64, 64, 64 * 4, 1L);
+        mClient.next();
+        byte[] smaller = randomFrame(32, 48, 4);
+        mServer.publish(ByteBuffer.wrap(smaller), 32, 48, 32 * 4, 2L);
+        mClient.next();
+        assertTrue(mClient.isKeyframe());
+        assertEquals(32, mClient.getWidth());
+        assertTrue(Arrays.equals(smaller, mClient.getPixels()));
+    }
+
+    public void testSlowClientSkipsStaleFrames() throws Exception {
+        int width = 512;
+        int height = 512;
+        int frames = 40;
+        byte[][] published = new byte[frames][];
+        // Nobody reads while frames are published; random pixels do not compress, so the
+        // socket buffers fill up after a few frames.
+        long slowest = 0;
+        for (int i = 0; i < frames; i++) {
+            published[i] = randomFrame(width, height, 10 + i);
+            long start = System.nanoTime();
+            mServer.publish(ByteBuffer.wrap(published[i]), width, height, width * 4, i + 1);
+            slowest = Math.max(slowest, System.nanoTime() - start);
+        }
+        assertTrue("Publishing waited for the client: " + slowest + " ns",
+                slowest < 500000000L);
+
+        do {
+            mClient.next();
+        } while (mClient.getTimestamp() < frames);
+        assertTrue(Arrays.equals(published[frames - 1], mClient.getPixels()));
+        assertTrue(mClient.getFrameCount() < frames);
+    }
+
+    private static byte[] randomFrame(int width, int height, long seed) {
+        byte[] frame = new byte[width * height * 4];
+        new Random(seed).nextBytes(frame);
+        return frame;
+    }
+
+    private static ByteBuffer padded(byte[] frame, int width, int height, int rowStride) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(rowStride * height);
+        for (int y = 0; y < height; y++) {
+            buffer.position(y * rowStride);
+            buffer.put(frame, y * width * 4, width * 4);
+        }
+        buffer.rewind();
+        return buffer;
+    }
+}
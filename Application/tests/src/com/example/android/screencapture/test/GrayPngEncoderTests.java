@@ -0,0 +1,116 @@
+package com.example.android.screencapture.test;
+
+import junit.framework.TestCase;
+
+import com.example.android.screencapture.GrayPngEncoder;
+import com.example.android.screencapture.LumaConverter;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+
+/**
+ * Tests luma conversion by {@link LumaConverter} and that {@link GrayPngEncoder} output decodes
+ * back to the exact luma it was given.
+ */
+public class GrayPngEncoderTests extends TestCase {
+
+    public void testConvertsRgbaRowsSkippingPadding() {
+        int width = 3;
+        int rowStride = width * 4 + 4;
+        ByteBuffer plane = ByteBuffer.allocate(rowStride * 2);
+        int[][] rgb = {{255, 255, 255}, {0, 0, 0}, {255, 0, 0}, {0, 255, 0}, {0, 0, 255},
+                {128, 128, 128}};
+        for (int i = 0; i < rgb.length; i++) {
+            int offset = (i / width) * rowStride + (i % width) * 4;
+            plane.put(offset, (byte) rgb[i][0]);
+            plane.put(offset + 1, (byte) rgb[i][1]);
+            plane.put(offset + 2, (byte) rgb[i][2]);
+            plane.put(offset + 3, (byte) 0xff);
+        }
+
+        byte[] luma = new LumaConverter().convert(plane, width, 2, rowStride, 4);
+        int[] expected = {255, 0, 77, 149, 29, 128};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("pixel " + i, expected[i], luma[i] & 0xff);
+        }
+    }
+
+    public void testRoundTripsLuma() throws Exception {
+        GrayPngEncoder encoder = new GrayPngEncoder();
+        Random random = new Random(38);
+        int width = 97;
+        int height = 61;
+        byte[] luma = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                // Gradients with noise, so every filter wins on some rows.
+                int value = y < 20 ? x * 2 : y < 40 ? y * 3 : random.nextInt(256);
+                luma[y * width + x] = (byte) value;
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.encode(luma, width, height, out);
+        // Reused for a second frame.
+        out.reset();
+        encoder.encode(luma, width, height, out);
+        encoder.release();
+
+        assertTrue(Arrays.equals(luma, decode(out.toByteArray(), width, height)));
+    }
+
+    private static byte[] decode(byte[] png, int width, int height) throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap(png);
+        assertEquals(0x89504e47, buffer.getInt());
+        assertEquals(0x0d0a1a0a, buffer.getInt());
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        boolean ended = false;
+        while (buffer.hasRemaining()) {
+            int length = buffer.getInt();
+            byte[] typeAndData = new byte[4 + length];
+            buffer.get(typeAndData);
+            CRC32 crc = new CRC32();
+            crc.update(typeAndData);
+            assertEquals((int) crc.getValue(), buffer.getInt());
+            String type = new String(typeAndData, 0, 4, "US-ASCII");
+            ByteBuffer data = ByteBuffer.wrap(typeAndData, 4, length);
+            if ("IHDR".equals(type)) {
+                assertEquals(width, data.getInt());
+                assertEquals(height, data.getInt());
+                assertEquals(8, data.get());
+                assertEquals(0, data.get());
+            } else if ("IDAT".equals(type)) {
+                compressed.write(typeAndData, 4, length);
+            } else if ("IEND".equals(type)) {
+                ended = true;
+            }
+        }
+        assertTrue(ended);
+
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressed.toByteArray());
+        byte[] filtered = new byte[(width + 1) * height];
+        assertEquals(filtered.length, inflater.inflate(filtered));
+        assertTrue(inflater.finished());
+
+        byte[] luma = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            int filter = filtered[y * (width + 1)];
+            for (int x = 0; x < width; x++) {
+                int value = filtered[y * (width + 1) + 1 + x];
+                if (filter == 1 && x > 0) {
+                    value += luma[y * width + x - 1];
+                } else if (filter == 2 && y > 0) {
+                    value += luma[(y - 1) * width + x];
+                } else {
+                    assertTrue("filter " + filter, filter <= 2);
+                }
+                luma[y * width + x] = (byte) value;
+            }
+        }
+        return luma;
+    }
+}
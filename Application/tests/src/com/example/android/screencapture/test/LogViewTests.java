@@ -0,0 +1,61 @@
+package com.example.android.screencapture.test;
+
+import android.test.InstrumentationTestCase;
+
+import com.example.android.common.logger.Log;
+import com.example.android.common.logger.LogView;
+
+/**
+ * Tests that a coalescing {@link LogView} shows lines logged from another thread before it is
+ * attached, as AsyncLogNode's dispatch thread does at startup.
+ */
+public class LogViewTests extends InstrumentationTestCase {
+
+    private LogView mView;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mView = new LogView(getInstrumentation().getTargetContext());
+                mView.setCoalescing(10, 0);
+            }
+        });
+    }
+
+    public void testShowsLinesLoggedBeforeAttach() throws Exception {
+        logFromOtherThread("Ready");
+        getInstrumentation().waitForIdleSync();
+        assertTrue(text().contains("Ready"));
+
+        // A lost flush would leave the next one unscheduled for good.
+        logFromOtherThread("Later");
+        getInstrumentation().waitForIdleSync();
+        assertTrue(text().contains("Ready"));
+        assertTrue(text().contains("Later"));
+    }
+
+    private void logFromOtherThread(final String msg) throws InterruptedException {
+        Thread logger = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mView.println(Log.INFO, "LogViewTests", msg, null);
+            }
+        });
+        logger.start();
+        logger.join();
+    }
+
+    private String text() {
+        final String[] text = new String[1];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                text[0] = mView.getText().toString();
+            }
+        });
+        return text[0];
+    }
+}
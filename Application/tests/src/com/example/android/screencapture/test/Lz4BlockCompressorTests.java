@@ -0,0 +1,79 @@
+package com.example.android.screencapture.test;
+
+import junit.framework.TestCase;
+
+import com.example.android.screencapture.Lz4BlockCompressor;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Round trip tests for {@link Lz4BlockCompressor}.
+ */
+public class Lz4BlockCompressorTests extends TestCase {
+
+    private Lz4BlockCompressor mCompressor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCompressor = new Lz4BlockCompressor();
+    }
+
+    public void testEmptyAndTinyInputs() throws Exception {
+        assertRoundTrip(new byte[0]);
+        assertRoundTrip(new byte[] {1, 2, 3});
+        assertRoundTrip(new byte[12]);
+    }
+
+    public void testFlatFrameCompressesWell() throws Exception {
+        // A band of identical RGBA pixels, as found on most of a typical UI.
+        byte[] band = new byte[1080 * 4 * 64];
+        for (int i = 0; i < band.length; i += 4) {
+            band[i] = (byte) 0xFA;
+            band[i + 1] = (byte) 0xFA;
+            band[i + 2] = (byte) 0xFA;
+            band[i + 3] = (byte) 0xFF;
+        }
+        int compressed = assertRoundTrip(band);
+        assertTrue("flat band should shrink at least 50x", compressed * 50 < band.length);
+    }
+
+    public void testRandomDataRoundTrips() throws Exception {
+        Random random = new Random(42);
+        byte[] data = new byte[100000];
+        random.nextBytes(data);
+        int compressed = assertRoundTrip(data);
+        assertTrue(compressed <= Lz4BlockCompressor.maxCompressedLength(data.length));
+    }
+
+    public void testReusedInstanceAcrossBlocks() throws Exception {
+        Random random = new Random(7);
+        for (int block = 0; block < 20; block++) {
+            byte[] data = new byte[random.nextInt(50000)];
+            for (int i = 0; i < data.length; i++) {
+                // Short runs with a small alphabet to produce a mix of literals and matches.
+                data[i] = (byte) (random.nextInt(8) == 0 ? random.nextInt(4) : (i > 0 ? data[i - 1] : 0));
+            }
+            assertRoundTrip(data);
+        }
+    }
+
+    public void testCountersTrackBytes() throws Exception {
+        mCompressor.resetCounters();
+        byte[] data = new byte[4096];
+        int compressed = mCompressor.compress(data, 0, data.length);
+        assertEquals(data.length, mCompressor.getUncompressedBytes());
+        assertEquals(compressed, mCompressor.getCompressedBytes());
+    }
+
+    private int assertRoundTrip(byte[] data) throws Exception {
+        int compressed = mCompressor.compress(data, 0, data.length);
+        byte[] restored = new byte[data.length];
+        int restoredLength = Lz4BlockCompressor.decompress(
+                mCompressor.getOutput(), 0, compressed, restored, 0, restored.length);
+        assertEquals(data.length, restoredLength);
+        assertTrue(Arrays.equals(data, restored));
+        return compressed;
+    }
+}
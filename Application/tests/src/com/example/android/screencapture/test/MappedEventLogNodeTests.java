@@ -0,0 +1,128 @@
+package com.example.android.screencapture.test;
+
+import junit.framework.TestCase;
+
+import com.example.android.common.logger.EventLogDecoder;
+import com.example.android.common.logger.Log;
+import com.example.android.common.logger.MappedEventLogNode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+
+/**
+ * Tests that {@link MappedEventLogNode} segments decode back to the logged data, across
+ * rotation.
+ */
+public class MappedEventLogNodeTests extends TestCase {
+
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = File.createTempFile("trace", "");
+        mDirectory.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    public void testEventsRoundTrip() throws Exception {
+        MappedEventLogNode node = new MappedEventLogNode(mDirectory, "events", 0, 2);
+        node.printf(Log.INFO, "Capture", null, "frame %d took %.1f ms, dropped %b (%s)",
+                new Object[] {42, 16.5f, false, "vsync"});
+        node.println(Log.WARN, "Storage", "Budget exhausted \u00e9", null);
+        node.printf(Log.DEBUG, "Capture", null, "frame %d took %.1f ms, dropped %b (%s)",
+                new Object[] {43, 17.25, true, null});
+        node.close();
+
+        String[] lines = decode(node.segmentFile(0), node.segmentFile(1));
+        assertEquals(4, lines.length);
+        assertTrue(lines[0].startsWith("--- segment 0 "));
+        assertTrue(lines[1].endsWith(" I Capture: frame 42 took 16.5 ms, dropped false (vsync)"));
+        assertTrue(lines[2].endsWith(" W Storage: Budget exhausted \u00e9"));
+        assertTrue(lines[3].endsWith(" D Capture: frame 43 took 17.3 ms, dropped true (null)"));
+    }
+
+    public void testRotatesAndKeepsNewestSegments() throws Exception {
+        // Smallest allowed segments, so a few thousand events span several of them.
+        MappedEventLogNode node = new MappedEventLogNode(mDirectory, "events", 0, 3);
+        int events = 40000;
+        for (int i = 0; i < events; i++) {
+            node.printf(Log.INFO, "Capture", null, "frame %d", new Object[] {i});
+        }
+        node.close();
+
+        String[] lines = decode(mDirectory.listFiles());
+        String last = lines[lines.length - 1];
+        assertTrue(last, last.endsWith("Capture: frame " + (events - 1)));
+        // Oldest events were overwritten, every remaining one follows its predecessor.
+        int previous = -1;
+        int segments = 0;
+        for (String line : lines) {
+            if (line.startsWith("---")) {
+                segments++;
+                continue;
+            }
+            int frame = Integer.parseInt(line.substring(line.lastIndexOf(' ') + 1));
+            if (previous >= 0) {
+                assertEquals(previous + 1, frame);
+            }
+            previous = frame;
+        }
+        assertEquals(3, segments);
+        assertTrue(lines.length - segments < events);
+    }
+
+    public void testReopenAppendsToNewestSegment() throws Exception {
+        MappedEventLogNode node = new MappedEventLogNode(mDirectory, "events", 0, 3);
+        node.println(Log.INFO, "Run", "first", null);
+        node.printf(Log.INFO, "Run", null, "frame %d", new Object[] {1});
+        node.close();
+        node = new MappedEventLogNode(mDirectory, "events", 0, 3);
+        node.printf(Log.INFO, "Run", null, "frame %d", new Object[] {2});
+        node.println(Log.INFO, "Run", "second", null);
+        node.close();
+
+        assertFalse(node.segmentFile(1).exists());
+        String[] lines = decode(mDirectory.listFiles());
+        assertEquals(5, lines.length);
+        assertTrue(lines[0].startsWith("--- segment 0 "));
+        assertTrue(lines[1].endsWith("Run: first"));
+        assertTrue(lines[2].endsWith("Run: frame 1"));
+        assertTrue(lines[3].endsWith("Run: frame 2"));
+        assertTrue(lines[4].endsWith("Run: second"));
+    }
+
+    public void testReopenAppendsAfterRotation() throws Exception {
+        MappedEventLogNode node = new MappedEventLogNode(mDirectory, "events", 0, 3);
+        while (!node.segmentFile(1).exists()) {
+            node.println(Log.INFO, "Run", "first", null);
+        }
+        node.close();
+        node = new MappedEventLogNode(mDirectory, "events", 0, 3);
+        node.println(Log.INFO, "Run", "second", null);
+        node.close();
+
+        String[] lines = decode(mDirectory.listFiles());
+        assertTrue(lines[lines.length - 1].endsWith("Run: second"));
+        assertFalse(node.segmentFile(2).exists());
+    }
+
+    private static String[] decode(File... files) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(output, true, "UTF-8");
+        new EventLogDecoder(out).decode(files);
+        return output.toString("UTF-8").split("\n");
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.android.screencapture.test;
+
+import android.content.ComponentCallbacks2;
+
+import junit.framework.TestCase;
+
+import com.example.android.screencapture.MemoryGovernor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests how {@link MemoryGovernor} raises, relieves and reports memory pressure.
+ */
+public class MemoryGovernorTests extends TestCase {
+
+    private static class RecordingClient implements MemoryGovernor.Client {
+        final List<Integer> mPressures = new ArrayList<Integer>();
+
+        @Override
+        public void onMemoryPressure(int pressure) {
+            mPressures.add(pressure);
+        }
+    }
+
+    public void testMapsTrimLevels() {
+        assertEquals(MemoryGovernor.PRESSURE_MODERATE, MemoryGovernor.pressureFor(
+                ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE));
+        assertEquals(MemoryGovernor.PRESSURE_LOW, MemoryGovernor.pressureFor(
+                ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW));
+        assertEquals(MemoryGovernor.PRESSURE_CRITICAL, MemoryGovernor.pressureFor(
+                ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL));
+        assertEquals(MemoryGovernor.PRESSURE_NONE, MemoryGovernor.pressureFor(
+                ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN));
+        assertEquals(MemoryGovernor.PRESSURE_MODERATE, MemoryGovernor.pressureFor(
+                ComponentCallbacks2.TRIM_MEMORY_BACKGROUND));
+        assertEquals(MemoryGovernor.PRESSURE_LOW, MemoryGovernor.pressureFor(
+                ComponentCallbacks2.TRIM_MEMORY_MODERATE));
+        assertEquals(MemoryGovernor.PRESSURE_CRITICAL, MemoryGovernor.pressureFor(
+                ComponentCallbacks2.TRIM_MEMORY_COMPLETE));
+    }
+
+    public void testRaisesAndRelievesPressure() {
+        MemoryGovernor governor = new MemoryGovernor();
+        RecordingClient client = new RecordingClient();
+        governor.register(client);
+
+        governor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW, 0);
+        // A lower level does not lower the pressure, but does postpone relief.
+        governor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE, 10);
+        governor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN, 20);
+        assertEquals(MemoryGovernor.PRESSURE_LOW, governor.getPressure());
+
+        assertEquals(MemoryGovernor.PRESSURE_LOW, governor.relax(MemoryGovernor.RELIEF_NS));
+        assertEquals(MemoryGovernor.PRESSURE_NONE, governor.relax(MemoryGovernor.RELIEF_NS + 10));
+        assertEquals(MemoryGovernor.PRESSURE_NONE, governor.relax(MemoryGovernor.RELIEF_NS + 20));
+
+        List<Integer> expected = new ArrayList<Integer>();
+        expected.add(MemoryGovernor.PRESSURE_LOW);
+        expected.add(MemoryGovernor.PRESSURE_NONE);
+        assertEquals(expected, client.mPressures);
+    }
+
+    public void testTellsLateClientsAndShrinksBudgets() {
+        MemoryGovernor governor = new MemoryGovernor();
+        assertEquals(8, governor.shrink(8));
+        governor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL, 0);
+
+        RecordingClient client = new RecordingClient();
+        governor.register(client);
+        assertEquals(1, client.mPressures.size());
+        assertEquals(MemoryGovernor.PRESSURE_CRITICAL, (int) client.mPressures.get(0));
+        assertEquals(1, governor.shrink(8));
+        assertEquals(2, MemoryGovernor.shrink(8, MemoryGovernor.PRESSURE_LOW));
+        assertEquals(1, MemoryGovernor.shrink(1, MemoryGovernor.PRESSURE_MODERATE));
+    }
+}
@@ -0,0 +1,75 @@
+package com.example.android.screencapture.test;
+
+import junit.framework.TestCase;
+
+import com.example.android.screencapture.MipPyramid;
+
+import java.util.Random;
+
+/**
+ * Tests that {@link MipPyramid} levels match a plain per-channel 2x2 average.
+ */
+public class MipPyramidTests extends TestCase {
+
+    public void testAverageRoundsEachChannel() {
+        assertEquals(0xff808080, MipPyramid.average(0xffffffff, 0xff000000, 0xffffffff,
+                0xff010101));
+        assertEquals(0x01020304, MipPyramid.average(0x01020304, 0x01020304, 0x01020304,
+                0x01020304));
+        assertEquals(0xffffffff, MipPyramid.average(-1, -1, -1, -1));
+    }
+
+    public void testLevelsMatchReference() {
+        int width = 37;
+        int height = 22;
+        int[] full = new int[width * height];
+        Random random = new Random(45);
+        MipPyramid pyramid = new MipPyramid();
+        pyramid.begin(full, width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                full[y * width + x] = random.nextInt();
+            }
+            pyramid.onRow(y);
+        }
+
+        int[] expected = full;
+        int expectedWidth = width;
+        for (int level = 1; level < MipPyramid.LEVELS; level++) {
+            int levelWidth = expectedWidth / 2;
+            int levelHeight = pyramid.getHeight(level - 1) / 2;
+            assertEquals(levelWidth, pyramid.getWidth(level));
+            assertEquals(levelHeight, pyramid.getHeight(level));
+            int[] next = new int[levelWidth * levelHeight];
+            for (int y = 0; y < levelHeight; y++) {
+                for (int x = 0; x < levelWidth; x++) {
+                    next[y * levelWidth + x] = reference(expected, expectedWidth, x * 2, y * 2);
+                    assertEquals(next[y * levelWidth + x],
+                            pyramid.getLevel(level)[y * levelWidth + x]);
+                }
+            }
+            expected = next;
+            expectedWidth = levelWidth;
+        }
+        assertEquals(2, pyramid.getHeight(3));
+    }
+
+    public void testLevelFileName() {
+        assertEquals("frame.mip2.jpg", MipPyramid.levelFileName("frame.jpg", 2));
+        assertEquals("frame.jpg", MipPyramid.levelFileName("frame.jpg", 0));
+        assertEquals("frame.mip1", MipPyramid.levelFileName("frame", 1));
+    }
+
+    private static int reference(int[] pixels, int width, int x, int y) {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            int sum = 2;
+            sum += (pixels[y * width + x] >>> shift) & 0xff;
+            sum += (pixels[y * width + x + 1] >>> shift) & 0xff;
+            sum += (pixels[(y + 1) * width + x] >>> shift) & 0xff;
+            sum += (pixels[(y + 1) * width + x + 1] >>> shift) & 0xff;
+            result |= (sum >> 2) << shift;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,62 @@
+package com.example.android.screencapture.test;
+
+import junit.framework.TestCase;
+
+import com.example.android.screencapture.MotionDetector;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tests the changed-tile fraction reported by {@link MotionDetector}.
+ */
+public class MotionDetectorTests extends TestCase {
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int ROW_STRIDE = WIDTH * 4 + 64;
+
+    public void testFirstFrameCountsAsChanged() {
+        MotionDetector detector = new MotionDetector();
+        assertEquals(1f, measure(detector, frame(0, 0, 0)));
+    }
+
+    public void testMeasuresChangedArea() {
+        MotionDetector detector = new MotionDetector();
+        measure(detector, frame(0, 0, 0));
+        detector.accept();
+
+        assertEquals(0f, measure(detector, frame(0, 0, 0)));
+        // The left half of the screen turns white.
+        assertEquals(0.5f, measure(detector, frame(WIDTH / 2, HEIGHT, 255)));
+    }
+
+    public void testDriftAddsUpAgainstStoredFrame() {
+        MotionDetector detector = new MotionDetector();
+        measure(detector, frame(WIDTH, HEIGHT, 0));
+        detector.accept();
+
+        // Each step is under the pixel threshold, but rejected frames do not move the reference.
+        assertEquals(0f, measure(detector, frame(WIDTH, HEIGHT, 10)));
+        assertEquals(1f, measure(detector, frame(WIDTH, HEIGHT, 20)));
+    }
+
+    private static float measure(MotionDetector detector, ByteBuffer frame) {
+        return detector.measure(frame, WIDTH, HEIGHT, ROW_STRIDE, 4);
+    }
+
+    /**
+     * Black frame with the top left {@code width x height} pixels set to {@code value}.
+     */
+    private static ByteBuffer frame(int width, int height, int value) {
+        ByteBuffer pixels = ByteBuffer.allocate(ROW_STRIDE * HEIGHT);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int offset = y * ROW_STRIDE + x * 4;
+                pixels.put(offset, (byte) value);
+                pixels.put(offset + 1, (byte) value);
+                pixels.put(offset + 2, (byte) value);
+            }
+        }
+        return pixels;
+    }
+}
@@ -0,0 +1,110 @@
+package com.example.android.screencapture.test;
+
+import junit.framework.TestCase;
+
+import com.example.android.screencapture.OrderedEncoder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests that {@link OrderedEncoder} writes jobs in submission order and bounds jobs in flight.
+ */
+public class OrderedEncoderTests extends TestCase {
+
+    private static class Job {
+        int mSequence;
+        int mDelayMs;
+    }
+
+    private static class RecordingStage implements OrderedEncoder.Stage<Job> {
+        final List<Integer> mWritten = Collections.synchronizedList(new ArrayList<Integer>());
+        final AtomicInteger mEncoding = new AtomicInteger();
+        volatile int mMaxEncoding;
+        volatile int mFailEvery;
+
+        @Override
+        public boolean encode(Job job) throws Exception {
+            int encoding = mEncoding.incrementAndGet();
+            mMaxEncoding = Math.max(mMaxEncoding, encoding);
+            Thread.sleep(job.mDelayMs);
+            mEncoding.decrementAndGet();
+            if (mFailEvery > 0 && job.mSequence % mFailEvery == 0) {
+                throw new Exception("Encoding failed");
+            }
+            return true;
+        }
+
+        @Override
+        public void write(Job job) {
+            mWritten.add(job.mSequence);
+        }
+    }
+
+    public void testWritesInSubmissionOrder() throws Exception {
+        RecordingStage stage = new RecordingStage();
+        OrderedEncoder<Job> encoder = new OrderedEncoder<Job>(stage, jobs(6), 4, "Test");
+        submit(encoder, 100);
+        encoder.awaitIdle();
+        encoder.shutdown();
+
+        assertEquals(100, stage.mWritten.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, (int) stage.mWritten.get(i));
+        }
+        assertTrue(stage.mMaxEncoding > 1);
+        assertEquals(0, encoder.getInFlight());
+    }
+
+    public void testSkipsFailedJobsInOrder() throws Exception {
+        RecordingStage stage = new RecordingStage();
+        stage.mFailEvery = 3;
+        OrderedEncoder<Job> encoder = new OrderedEncoder<Job>(stage, jobs(4), 3, "Test");
+        submit(encoder, 30);
+        encoder.awaitIdle();
+        encoder.shutdown();
+
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < 30; i++) {
+            if (i % 3 != 0) {
+                expected.add(i);
+            }
+        }
+        assertEquals(expected, stage.mWritten);
+    }
+
+    public void testBoundsJobsInFlight() throws Exception {
+        RecordingStage stage = new RecordingStage();
+        OrderedEncoder<Job> encoder = new OrderedEncoder<Job>(stage, jobs(8), 8, "Test");
+        encoder.setMaxInFlight(2);
+        assertEquals(2, encoder.getMaxInFlight());
+        submit(encoder, 20);
+        encoder.awaitIdle();
+        encoder.shutdown();
+
+        assertEquals(20, stage.mWritten.size());
+        assertTrue(String.valueOf(stage.mMaxEncoding), stage.mMaxEncoding <= 2);
+    }
+
+    private static Job[] jobs(int count) {
+        Job[] jobs = new Job[count];
+        for (int i = 0; i < count; i++) {
+            jobs[i] = new Job();
+        }
+        return jobs;
+    }
+
+    private static void submit(OrderedEncoder<Job> encoder, int count) throws Exception {
+        Random random = new Random(46);
+        for (int i = 0; i < count; i++) {
+            Job job = encoder.obtain();
+            job.mSequence = i;
+            // Later jobs often finish first.
+            job.mDelayMs = random.nextInt(8);
+            encoder.submit(job);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.example.android.screencapture.test;
+
+import junit.framework.TestCase;
+
+import com.example.android.common.logger.AsyncLogNode;
+import com.example.android.common.logger.Log;
+import com.example.android.common.logger.LogNode;
+import com.example.android.common.logger.RateLimitLogFilter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests token bucket limiting and suppression summaries of {@link RateLimitLogFilter}.
+ */
+public class RateLimitLogFilterTests extends TestCase {
+
+    private static class RecordingNode implements LogNode {
+        final List<String> mMessages = new ArrayList<String>();
+
+        @Override
+        public void println(int priority, String tag, String msg, Throwable tr) {
+            mMessages.add(tag + ": " + msg);
+        }
+    }
+
+    private RateLimitLogFilter mFilter;
+    private RecordingNode mSink;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // One line per second after a burst of three; summaries only when flushed.
+        mFilter = new RateLimitLogFilter(1, 3, Long.MAX_VALUE / 1000000L, Log.WARN);
+        mSink = new RecordingNode();
+        mFilter.setNext(mSink);
+    }
+
+    public void testLimitsEachKeyToItsBurst() {
+        for (int i = 0; i < 50; i++) {
+            mFilter.printf(Log.INFO, "Capture", null, "frame %d", new Object[] {i});
+            mFilter.println(Log.DEBUG, "Spool", "commit", null);
+        }
+        assertEquals(6, mSink.mMessages.size());
+        assertEquals("Capture: frame 0", mSink.mMessages.get(0));
+        assertEquals("Capture: frame 2", mSink.mMessages.get(4));
+        assertEquals(94, mFilter.getSuppressedCount());
+    }
+
+    public void testNeverLimitsWarnings() {
+        for (int i = 0; i < 20; i++) {
+            mFilter.println(Log.WARN, "Storage", "Budget exhausted", null);
+        }
+        assertEquals(20, mSink.mMessages.size());
+        assertEquals(0, mFilter.getSuppressedCount());
+    }
+
+    public void testSummarizesSuppressedMessages() {
+        for (int i = 0; i < 10; i++) {
+            mFilter.printf(Log.INFO, "Capture", null, "frame %d", new Object[] {i});
+        }
+        mFilter.flushSummaries();
+        assertEquals(4, mSink.mMessages.size());
+        assertEquals("Capture: Suppressed 7 messages like: frame %d", mSink.mMessages.get(3));
+
+        // Counts start again after a summary.
+        mFilter.flushSummaries();
+        assertEquals(4, mSink.mMessages.size());
+    }
+
+    public void testSummarizesOnceTrafficStops() throws Exception {
+        final RateLimitLogFilter filter = new RateLimitLogFilter(1, 3, 50, Log.WARN);
+        filter.setNext(mSink);
+        AsyncLogNode node = new AsyncLogNode(64, AsyncLogNode.OverflowPolicy.BLOCK);
+        node.setNext(filter);
+        node.setIdleTask(new Runnable() {
+            @Override
+            public void run() {
+                filter.emitDueSummaries();
+            }
+        }, 10);
+        for (int i = 0; i < 10; i++) {
+            node.println(Log.INFO, "Capture", "frame", null);
+        }
+        // Nothing else is logged, the idle task alone reports the suppression.
+        Thread.sleep(200);
+        node.shutdown();
+        assertEquals(4, mSink.mMessages.size());
+        assertEquals("Capture: Suppressed 7 messages like: frame", mSink.mMessages.get(3));
+    }
+
+    public void testRefillsOverTime() throws Exception {
+        RateLimitLogFilter filter = new RateLimitLogFilter(50, 1, Long.MAX_VALUE / 1000000L,
+                Log.WARN);
+        filter.setNext(mSink);
+        filter.println(Log.INFO, "T", "tick", null);
+        filter.println(Log.INFO, "T", "tick", null);
+        assertEquals(1, mSink.mMessages.size());
+        Thread.sleep(60);
+        filter.println(Log.INFO, "T", "tick", null);
+        assertEquals(2, mSink.mMessages.size());
+    }
+
+    public void testKeepsManyKeys() {
+        for (int i = 0; i < 1000; i++) {
+            mFilter.println(Log.INFO, "T" + i, "first", null);
+        }
+        assertEquals(1000, mSink.mMessages.size());
+    }
+
+    public void testCapsKeysAndSummarizesDroppedOnes() {
+        for (int i = 0; i < 5; i++) {
+            mFilter.println(Log.INFO, "Capture", "busy", null);
+        }
+        // Concatenated messages, a key each.
+        for (int i = 0; i < 5000; i++) {
+            mFilter.println(Log.INFO, "Stream", "Unable to stream on port " + i, null);
+            assertTrue(mFilter.getKeyCount() <= RateLimitLogFilter.MAX_KEYS);
+        }
+        assertTrue(mSink.mMessages.contains("Capture: Suppressed 2 messages like: busy"));
+
+        // Dropped keys start with a full bucket again.
+        mSink.mMessages.clear();
+        mFilter.println(Log.INFO, "Capture", "busy", null);
+        assertEquals(1, mSink.mMessages.size());
+    }
+
+    public void testDropsRefilledKeysFirst() throws Exception {
+        RateLimitLogFilter filter = new RateLimitLogFilter(20, 1, Long.MAX_VALUE / 1000000L,
+                Log.WARN);
+        filter.setNext(mSink);
+        for (int i = 0; i < RateLimitLogFilter.MAX_KEYS; i++) {
+            filter.println(Log.INFO, "T", "old " + i, null);
+        }
+        Thread.sleep(60);
+        filter.println(Log.INFO, "T", "new", null);
+        filter.println(Log.INFO, "T", "new", null);
+        // The refilled keys made room, nothing was summarized and "new" keeps its bucket.
+        assertEquals(1, filter.getKeyCount());
+        assertEquals(RateLimitLogFilter.MAX_KEYS + 1, mSink.mMessages.size());
+        assertEquals(1, filter.getSuppressedCount());
+    }
+}
@@ -0,0 +1,137 @@
+package com.example.android.screencapture.test;
+
+import junit.framework.TestCase;
+
+import com.example.android.screencapture.FrameRecordReader;
+import com.example.android.screencapture.FrameSpool;
+import com.example.android.screencapture.MemoryGovernor;
+import com.example.android.screencapture.ReplayRing;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests that {@link ReplayRing} keeps the newest window of frames and dumps them exactly.
+ */
+public class ReplayRingTests extends TestCase {
+
+    private static final int WIDTH = 40;
+    private static final int HEIGHT = 30;
+    private static final int ROW_STRIDE = WIDTH * 4 + 16;
+    private static final long FRAME_NS = 1000000L;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("replay", ".spool");
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testKeepsWindowFromKeyframe() throws Exception {
+        ReplayRing ring = new ReplayRing(WIDTH, HEIGHT, 10 * FRAME_NS, 1 << 20, 4);
+        List<byte[]> frames = addFrames(ring, 50);
+
+        // Frames 36 to 49: the group starting at 40 alone would not cover 10 frames.
+        assertEquals(14, ring.getFrameCount());
+        assertEquals(13 * FRAME_NS, ring.getSpanNs());
+        assertDumps(ring, frames.subList(36, 50));
+    }
+
+    public void testDropsOldestGroupsToFitBudget() throws Exception {
+        // Keyframes of accumulated noise barely compress, so only a few groups fit.
+        int frameBytes = WIDTH * HEIGHT * 4;
+        ReplayRing ring = new ReplayRing(WIDTH, HEIGHT, 1000 * FRAME_NS, frameBytes * 3, 3);
+        List<byte[]> frames = addFrames(ring, 40);
+
+        int count = ring.getFrameCount();
+        assertTrue(String.valueOf(count), count >= 3 && count < 20);
+        assertTrue(ring.getStoredBytes() <= frameBytes * 3);
+        assertDumps(ring, frames.subList(40 - count, 40));
+    }
+
+    public void testBudgetLeavesRoomForFrameArrays() {
+        int frameBytes = 1080 * 1920 * 4;
+        long heap = 256L * 1024 * 1024;
+        int budget = ReplayRing.budgetFor(heap, frameBytes);
+        assertEquals(heap / ReplayRing.HEAP_SHARE - 4L * frameBytes, budget);
+        assertEquals(ReplayRing.DEFAULT_BUDGET_BYTES,
+                ReplayRing.budgetFor(4096L * 1024 * 1024, frameBytes));
+        assertEquals(0, ReplayRing.budgetFor(64L * 1024 * 1024, frameBytes));
+    }
+
+    public void testShrinksUnderPressure() throws Exception {
+        ReplayRing ring = new ReplayRing(WIDTH, HEIGHT, 1000 * FRAME_NS, 1 << 20, 4);
+        addFrames(ring, 10);
+        assertEquals(1 << 20, ring.getCapacity());
+
+        ring.onMemoryPressure(MemoryGovernor.PRESSURE_LOW);
+        assertEquals(10, ring.getFrameCount());
+        List<byte[]> frames = addFrames(ring, 5);
+        assertEquals(1 << 18, ring.getCapacity());
+        // The frames held before were dropped; the ring starts again at a keyframe.
+        assertDumps(ring, frames);
+
+        // Relief does not grow it back within the capture.
+        ring.onMemoryPressure(MemoryGovernor.PRESSURE_NONE);
+        addFrames(ring, 1);
+        assertEquals(1 << 18, ring.getCapacity());
+    }
+
+    /**
+     * Adds frames that are mostly the previous one with a noisy band, as UI updates are.
+     */
+    private static List<byte[]> addFrames(ReplayRing ring, int count) {
+        Random random = new Random(44);
+        List<byte[]> frames = new ArrayList<byte[]>();
+        byte[] packed = new byte[WIDTH * HEIGHT * 4];
+        for (int i = 0; i < count; i++) {
+            int band = random.nextInt(HEIGHT - 4);
+            for (int j = band * WIDTH * 4; j < (band + 4) * WIDTH * 4; j++) {
+                packed[j] = (byte) random.nextInt();
+            }
+            frames.add(packed.clone());
+            ByteBuffer plane = ByteBuffer.allocateDirect(ROW_STRIDE * HEIGHT);
+            for (int y = 0; y < HEIGHT; y++) {
+                plane.position(y * ROW_STRIDE);
+                plane.put(packed, y * WIDTH * 4, WIDTH * 4);
+            }
+            plane.position(0);
+            ring.add(plane, ROW_STRIDE, i * FRAME_NS);
+        }
+        return frames;
+    }
+
+    private void assertDumps(ReplayRing ring, List<byte[]> expected) throws Exception {
+        FrameSpool spool = new FrameSpool(mFile, false, FrameSpool.DEFAULT_BAND_ROWS, 0, 0);
+        assertEquals(expected.size(), ring.dump(spool));
+        spool.close();
+
+        FileInputStream input = new FileInputStream(mFile);
+        try {
+            FrameRecordReader reader = new FrameRecordReader(input.getChannel());
+            for (byte[] frame : expected) {
+                byte[] record = reader.next();
+                assertNotNull(record);
+                byte[] pixels = Arrays.copyOfRange(record, FrameSpool.FRAME_HEADER_SIZE,
+                        reader.getLength());
+                assertTrue(Arrays.equals(frame, pixels));
+            }
+            assertNull(reader.next());
+        } finally {
+            input.close();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.example.android.screencapture.test;
+
+import com.example.android.screencapture.FrameSpool;
+import com.example.android.screencapture.YuvConverter;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Reports {@link YuvConverter} throughput on a 1080p frame, on one thread and on up to four.
+ * Not part of the test suite, as it asserts nothing and takes seconds; run it on its own:
+ *
+ * <pre>
+ * java -cp classes com.example.android.screencapture.test.YuvConverterBenchmark [frames]
+ * </pre>
+ */
+public class YuvConverterBenchmark {
+
+    public static void main(String[] args) {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int width = 1080;
+        int height = 1920;
+        byte[] bytes = new byte[width * 4 * height];
+        new Random(1).nextBytes(bytes);
+        ByteBuffer plane = ByteBuffer.allocateDirect(bytes.length);
+        plane.put(bytes);
+        plane.rewind();
+
+        int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        int[] counts = threads > 1 ? new int[] {1, threads} : new int[] {1};
+        for (int count : counts) {
+            YuvConverter converter = new YuvConverter(count);
+            for (int i = 0; i < 5; i++) {
+                converter.convert(plane, width, height, width * 4, 4, FrameSpool.FORMAT_I420);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < frames; i++) {
+                converter.convert(plane, width, height, width * 4, 4, FrameSpool.FORMAT_I420);
+            }
+            long elapsed = System.nanoTime() - start;
+            converter.release();
+            System.out.printf("YuvConverter %dx%d on %d threads: %.1f fps%n", width, height,
+                    count, frames * 1e9 / elapsed);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.example.android.screencapture.test;
+
+import junit.framework.TestCase;
+
+import com.example.android.screencapture.FrameRecordReader;
+import com.example.android.screencapture.FrameSpool;
+import com.example.android.screencapture.Lz4BlockCompressor;
+import com.example.android.screencapture.YuvConverter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * Tests {@link YuvConverter} against a floating point BT.601 reference. Throughput is measured
+ * apart, by {@link YuvConverterBenchmark}.
+ */
+public class YuvConverterTests extends TestCase {
+
+    public void testMatchesReferenceI420() {
+        int width = 37;
+        int height = 21;
+        int rowStride = width * 4 + 12;
+        ByteBuffer plane = randomPlane(width, height, rowStride, 49);
+        YuvConverter converter = new YuvConverter(1);
+        ByteBuffer yuv = converter.convert(plane, width, height, rowStride, 4,
+                FrameSpool.FORMAT_I420);
+
+        // Odd last row and column dropped.
+        int w = 36;
+        int h = 20;
+        assertEquals(w * h * 3 / 2, yuv.remaining());
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int offset = y * rowStride + x * 4;
+                double expected = 16 + 0.257 * red(plane, offset) + 0.504 * green(plane, offset)
+                        + 0.098 * blue(plane, offset);
+                assertClose(expected, yuv.get(y * w + x) & 0xff);
+            }
+        }
+        for (int y = 0; y < h / 2; y++) {
+            for (int x = 0; x < w / 2; x++) {
+                double r = 0;
+                double g = 0;
+                double b = 0;
+                for (int dy = 0; dy < 2; dy++) {
+                    for (int dx = 0; dx < 2; dx++) {
+                        int offset = (y * 2 + dy) * rowStride + (x * 2 + dx) * 4;
+                        r += red(plane, offset) / 4.0;
+                        g += green(plane, offset) / 4.0;
+                        b += blue(plane, offset) / 4.0;
+                    }
+                }
+                int chroma = y * (w / 2) + x;
+                assertClose(128 - 0.148 * r - 0.291 * g + 0.439 * b,
+                        yuv.get(w * h + chroma) & 0xff);
+                assertClose(128 + 0.439 * r - 0.368 * g - 0.071 * b,
+                        yuv.get(w * h * 5 / 4 + chroma) & 0xff);
+            }
+        }
+        assertEquals(0, plane.position());
+    }
+
+    public void testNv12InterleavesI420Planes() {
+        int width = 64;
+        int height = 48;
+        ByteBuffer plane = randomPlane(width, height, width * 4, 12);
+        byte[] i420 = toArray(new YuvConverter(1).convert(plane, width, height, width * 4, 4,
+                FrameSpool.FORMAT_I420));
+        YuvConverter threaded = new YuvConverter(3);
+        byte[] nv12 = toArray(threaded.convert(plane, width, height, width * 4, 4,
+                FrameSpool.FORMAT_NV12));
+        threaded.release();
+
+        int luma = width * height;
+        for (int i = 0; i < luma; i++) {
+            assertEquals(i420[i], nv12[i]);
+        }
+        for (int i = 0; i < luma / 4; i++) {
+            assertEquals(i420[luma + i], nv12[luma + i * 2]);
+            assertEquals(i420[luma + luma / 4 + i], nv12[luma + i * 2 + 1]);
+        }
+    }
+
+    public void testThreadsMatchSingleThread() {
+        int width = 200;
+        int height = 130;
+        ByteBuffer plane = randomPlane(width, height, width * 4 + 32, 7);
+        byte[] single = toArray(new YuvConverter(1).convert(plane, width, height, width * 4 + 32,
+                4, FrameSpool.FORMAT_I420));
+        YuvConverter threaded = new YuvConverter(4);
+        for (int i = 0; i < 3; i++) {
+            byte[] banded = toArray(threaded.convert(plane, width, height, width * 4 + 32, 4,
+                    FrameSpool.FORMAT_I420));
+            assertTrue(java.util.Arrays.equals(single, banded));
+        }
+        threaded.release();
+    }
+
+    public void testSpoolsYuvFrames() throws Exception {
+        int width = 40;
+        int height = 30;
+        ByteBuffer plane = randomPlane(width, height, width * 4, 3);
+        byte[] yuv = toArray(new YuvConverter(1).convert(plane, width, height, width * 4, 4,
+                FrameSpool.FORMAT_NV12));
+
+        File file = File.createTempFile("yuv", ".spool");
+        file.delete();
+        try {
+            FrameSpool spool = new FrameSpool(file, true, 16, 0, 0);
+            spool.writeFrame(ByteBuffer.wrap(yuv), width, height, width, FrameSpool.FORMAT_NV12);
+            spool.close();
+            assertEquals(yuv.length, spool.getRawBytes());
+
+            FileInputStream input = new FileInputStream(file);
+            try {
+                byte[] record = new FrameRecordReader(input.getChannel()).next();
+                ByteBuffer frame = ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN);
+                assertEquals(width, frame.getInt());
+                assertEquals(height, frame.getInt());
+                assertEquals(FrameSpool.FORMAT_NV12, frame.getInt());
+                assertEquals(16, frame.getInt());
+                assertEquals(FrameSpool.FLAG_LZ4, frame.getInt());
+                byte[] decoded = new byte[yuv.length];
+                int out = 0;
+                while (out < decoded.length) {
+                    int raw = frame.getInt();
+                    int stored = frame.getInt();
+                    if (stored == raw) {
+                        frame.get(decoded, out, raw);
+                    } else {
+                        Lz4BlockCompressor.decompress(record, frame.position(), stored,
+                                decoded, out, raw);
+                        frame.position(frame.position() + stored);
+                    }
+                    out += raw;
+                }
+                assertTrue(java.util.Arrays.equals(yuv, decoded));
+            } finally {
+                input.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static ByteBuffer randomPlane(int width, int height, int rowStride, long seed) {
+        byte[] bytes = new byte[rowStride * height];
+        new Random(seed).nextBytes(bytes);
+        ByteBuffer plane = ByteBuffer.allocateDirect(bytes.length);
+        plane.put(bytes);
+        plane.rewind();
+        return plane;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static int red(ByteBuffer plane, int offset) {
+        return plane.get(offset) & 0xff;
+    }
+
+    private static int green(ByteBuffer plane, int offset) {
+        return plane.get(offset + 1) & 0xff;
+    }
+
+    private static int blue(ByteBuffer plane, int offset) {
+        return plane.get(offset + 2) & 0xff;
+    }
+
+    private static void assertClose(double expected, int actual) {
+        assertTrue(expected + " vs " + actual, Math.abs(expected - actual) <= 1.0);
+    }
+}